@@ -26,7 +26,6 @@ import android.content.Intent;
 import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Bundle;
-import android.provider.Settings;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.util.Log;
@@ -96,8 +95,7 @@ public class DigitalAppWidgetProvider extends AppWidgetProvider {
     }
 
     public void refreshAlarm(Context c, RemoteViews clock) {
-        String nextAlarm = Settings.System.getString(
-                c.getContentResolver(), Settings.System.NEXT_ALARM_FORMATTED);
+        String nextAlarm = Alarms.getNextAlarmFormatted(c);
         if (!TextUtils.isEmpty(nextAlarm)) {
             clock.setTextViewText(R.id.nextAlarm,
                     c.getString(R.string.control_set_alarm_with_existing, nextAlarm));
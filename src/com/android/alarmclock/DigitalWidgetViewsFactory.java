@@ -22,7 +22,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.provider.Settings;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.util.Log;
@@ -280,8 +279,7 @@ public class DigitalWidgetViewsFactory extends BroadcastReceiver implements Remo
     }
 
     public void refreshAlarm(Context c, RemoteViews widget) {
-        String nextAlarm = Settings.System.getString(c.getContentResolver(),
-                Settings.System.NEXT_ALARM_FORMATTED);
+        String nextAlarm = Alarms.getNextAlarmFormatted(c);
         if (!TextUtils.isEmpty(nextAlarm)) {
             widget.setTextViewText(R.id.nextAlarm,
                     c.getString(R.string.control_set_alarm_with_existing, nextAlarm));
@@ -60,6 +60,7 @@ public final class Alarm implements Parcelable {
         p.writeString(label);
         p.writeParcelable(alert, flags);
         p.writeInt(silent ? 1 : 0);
+        p.writeInt(skipCalendarId);
     }
     //////////////////////////////
     // end Parcelable apis
@@ -75,6 +76,30 @@ public final class Alarm implements Parcelable {
         public static final Uri CONTENT_URI =
                 Uri.parse("content://com.android.deskclock/alarm");
 
+        /**
+         * The content:// style URL for the enabled alarms that fire between
+         * the times given by the PARAM_START and PARAM_END query parameters.
+         */
+        public static final Uri FIRING_URI =
+                Uri.parse("content://com.android.deskclock/alarm/firing");
+
+        /**
+         * Query parameters of CONTENT_URI for keyset pagination in the
+         * default sort order.  PARAM_AFTER and PARAM_THROUGH are sort keys
+         * written as "hour,minutes,_id"; rows after the first and up to and
+         * including the second are returned, at most PARAM_LIMIT of them.
+         */
+        public static final String PARAM_AFTER = "after";
+        public static final String PARAM_THROUGH = "through";
+        public static final String PARAM_LIMIT = "limit";
+
+        /**
+         * Query parameters of FIRING_URI, in UTC milliseconds from the epoch.
+         * The start is inclusive and the end exclusive.
+         */
+        public static final String PARAM_START = "start";
+        public static final String PARAM_END = "end";
+
         /**
          * Hour in 24-hour localtime 0 - 23.
          * <P>Type: INTEGER</P>
@@ -124,6 +149,12 @@ public final class Alarm implements Parcelable {
          */
         public static final String ALERT = "alert";
 
+        /**
+         * _id of the skip calendar of a repeating alarm, or 0 if it has none
+         * <P>Type: INTEGER</P>
+         */
+        public static final String SKIP_CALENDAR = "skip_calendar";
+
         /**
          * The default sort order for this table
          */
@@ -135,7 +166,7 @@ public final class Alarm implements Parcelable {
 
         static final String[] ALARM_QUERY_COLUMNS = {
             _ID, HOUR, MINUTES, DAYS_OF_WEEK, ALARM_TIME,
-            ENABLED, VIBRATE, MESSAGE, ALERT };
+            ENABLED, VIBRATE, MESSAGE, ALERT, SKIP_CALENDAR };
 
         /**
          * These save calls to cursor.getColumnIndexOrThrow()
@@ -150,6 +181,89 @@ public final class Alarm implements Parcelable {
         public static final int ALARM_VIBRATE_INDEX = 6;
         public static final int ALARM_MESSAGE_INDEX = 7;
         public static final int ALARM_ALERT_INDEX = 8;
+        public static final int ALARM_SKIP_CALENDAR_INDEX = 9;
+    }
+
+    public static class SnoozeColumns {
+        /**
+         * The content:// style URL for the snoozes table
+         */
+        public static final Uri CONTENT_URI =
+                Uri.parse("content://com.android.deskclock/snooze");
+
+        /**
+         * The content:// style URL for snoozed alarms joined with their
+         * snooze time
+         */
+        public static final Uri SNOOZED_ALARMS_URI =
+                Uri.parse("content://com.android.deskclock/snoozed_alarm");
+
+        /**
+         * The _id of the snoozed alarm
+         * <P>Type: INTEGER</P>
+         */
+        public static final String ALARM_ID = "alarm_id";
+
+        /**
+         * Time the snoozed alarm fires again, in UTC milliseconds from the
+         * epoch.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String SNOOZE_TIME = "snooze_time";
+
+        /**
+         * Columns of SNOOZED_ALARMS_URI.  The alarm columns come first so the
+         * cursor can be passed to {@link Alarm#Alarm(Cursor)}.
+         */
+        static final String[] SNOOZED_ALARM_QUERY_COLUMNS = {
+            Columns._ID, Columns.HOUR, Columns.MINUTES, Columns.DAYS_OF_WEEK,
+            Columns.ALARM_TIME, Columns.ENABLED, Columns.VIBRATE, Columns.MESSAGE,
+            Columns.ALERT, Columns.SKIP_CALENDAR, SNOOZE_TIME };
+
+        public static final int SNOOZE_TIME_INDEX = 10;
+    }
+
+    public static class SkipCalendarColumns implements BaseColumns {
+        /**
+         * The content:// style URL for the skip calendars table
+         */
+        public static final Uri CONTENT_URI =
+                Uri.parse("content://com.android.deskclock/skip_calendar");
+
+        /**
+         * The content:// style URL for the skipped days of each calendar and
+         * year.  Inserting replaces the row of the same calendar and year.
+         */
+        public static final Uri DAYS_URI =
+                Uri.parse("content://com.android.deskclock/skip_days");
+
+        /**
+         * Name of the calendar, such as the region its holidays are for
+         * <P>Type: STRING</P>
+         */
+        public static final String NAME = "name";
+
+        /**
+         * The _id of the calendar a row of skipped days belongs to
+         * <P>Type: INTEGER</P>
+         */
+        public static final String CALENDAR_ID = "calendar_id";
+
+        /**
+         * Year of a row of skipped days
+         * <P>Type: INTEGER</P>
+         */
+        public static final String YEAR = "year";
+
+        /**
+         * Bitmap of the skipped days of the year, see {@link SkipCalendar}
+         * <P>Type: BLOB</P>
+         */
+        public static final String DAYS = "days";
+
+        static final String[] QUERY_COLUMNS = { _ID, NAME };
+
+        static final String[] DAYS_QUERY_COLUMNS = { CALENDAR_ID, YEAR, DAYS };
     }
     //////////////////////////////
     // End column definitions
@@ -166,6 +280,7 @@ public final class Alarm implements Parcelable {
     public String     label;
     public Uri        alert;
     public boolean    silent;
+    public int        skipCalendarId;
 
     @Override
     public String toString() {
@@ -180,6 +295,7 @@ public final class Alarm implements Parcelable {
                 ", vibrate=" + vibrate +
                 ", label='" + label + '\'' +
                 ", silent=" + silent +
+                ", skipCalendarId=" + skipCalendarId +
                 '}';
     }
 
@@ -192,6 +308,7 @@ public final class Alarm implements Parcelable {
         time = c.getLong(Columns.ALARM_TIME_INDEX);
         vibrate = c.getInt(Columns.ALARM_VIBRATE_INDEX) == 1;
         label = c.getString(Columns.ALARM_MESSAGE_INDEX);
+        skipCalendarId = c.getInt(Columns.ALARM_SKIP_CALENDAR_INDEX);
         String alertString = c.getString(Columns.ALARM_ALERT_INDEX);
         if (Alarms.ALARM_ALERT_SILENT.equals(alertString)) {
             if (Log.LOGV) {
@@ -223,6 +340,22 @@ public final class Alarm implements Parcelable {
         label = p.readString();
         alert = (Uri) p.readParcelable(null);
         silent = p.readInt() == 1;
+        skipCalendarId = p.readInt();
+    }
+
+    // Creates a copy of the given alarm.
+    public Alarm(Alarm other) {
+        id = other.id;
+        enabled = other.enabled;
+        hour = other.hour;
+        minutes = other.minutes;
+        daysOfWeek = new DaysOfWeek(other.daysOfWeek.getCoded());
+        time = other.time;
+        vibrate = other.vibrate;
+        label = other.label;
+        alert = other.alert;
+        silent = other.silent;
+        skipCalendarId = other.skipCalendarId;
     }
 
     // Creates a default alarm at the current time.
@@ -400,12 +533,18 @@ public final class Alarm implements Parcelable {
          * @param c must be set to today
          */
         public int getNextAlarm(Calendar c) {
+            return getNextAlarm((c.get(Calendar.DAY_OF_WEEK) + 5) % 7);
+        }
+
+        /**
+         * returns number of days from today until next alarm
+         * @param today day of week with Monday as 0
+         */
+        public int getNextAlarm(int today) {
             if (mDays == 0) {
                 return -1;
             }
 
-            int today = (c.get(Calendar.DAY_OF_WEEK) + 5) % 7;
-
             int day = 0;
             int dayCount = 0;
             for (; dayCount < 7; dayCount++) {
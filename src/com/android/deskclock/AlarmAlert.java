@@ -104,6 +104,7 @@ public class AlarmAlert extends AlarmAlertFullScreen {
             // Launch the full screen activity but do not turn the screen on.
             Intent i = new Intent(this, AlarmAlertFullScreen.class);
             i.putExtra(Alarms.ALARM_INTENT_EXTRA, mAlarm);
+            i.putParcelableArrayListExtra(Alarms.ALARM_GROUP_EXTRA, mGroup);
             i.putExtra(SCREEN_OFF, true);
             startActivity(i);
             finish();
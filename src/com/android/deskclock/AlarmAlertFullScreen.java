@@ -39,6 +39,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 import com.android.deskclock.obfuscated.R;
 import com.android.deskclock.widget.multiwaveview.GlowPadView;
+import java.util.ArrayList;
 import java.util.Calendar;
 
 /**
@@ -54,6 +55,8 @@ public class AlarmAlertFullScreen extends Activity implements GlowPadView.OnTrig
     protected static final String SCREEN_OFF = "screen_off";
 
     protected Alarm mAlarm;
+    // Other alarms due in the same minute, alerting together with mAlarm.
+    protected ArrayList<Alarm> mGroup;
     public int mVolumeBehavior;
     boolean mFullscreenStyle;
     public GlowPadView mGlowPadView;
@@ -105,6 +108,7 @@ public class AlarmAlertFullScreen extends Activity implements GlowPadView.OnTrig
         super.onCreate(icicle);
 
         mAlarm = getIntent().getParcelableExtra(Alarms.ALARM_INTENT_EXTRA);
+        mGroup = getIntent().getParcelableArrayListExtra(Alarms.ALARM_GROUP_EXTRA);
 
         if (LOG) {
             Log.v("AlarmAlertFullScreen - onCreate");
@@ -149,7 +153,7 @@ public class AlarmAlertFullScreen extends Activity implements GlowPadView.OnTrig
     }
 
     public void setTitle() {
-        final String titleText = mAlarm.getLabelOrDefault(this);
+        final String titleText = Alarms.getAlertLabel(this, mAlarm, mGroup);
 
         TextView tv = (TextView) findViewById(R.id.alertTitle);
         tv.setText(titleText);
@@ -202,19 +206,29 @@ public class AlarmAlertFullScreen extends Activity implements GlowPadView.OnTrig
 
         final long snoozeTime = System.currentTimeMillis()
                 + (1000 * 60 * snoozeMinutes);
-        Alarms.saveSnoozeAlert(AlarmAlertFullScreen.this, mAlarm.id,
-                snoozeTime);
+        final AlarmJournal journal = AlarmJournal.getInstance(this);
+        final int groupSize = mGroup != null ? mGroup.size() : 0;
+        final int[] ids = new int[1 + groupSize];
+        ids[0] = mAlarm.id;
+        for (int i = 0; i < groupSize; i++) {
+            ids[i + 1] = mGroup.get(i).id;
+        }
+        Alarms.saveSnoozeAlerts(this, ids, snoozeTime);
+        for (int id : ids) {
+            journal.record(id, AlarmJournal.EVENT_SNOOZED, snoozeTime);
+        }
 
         // Get the display time for the snooze and update the notification.
         final Calendar c = Calendar.getInstance();
         c.setTimeInMillis(snoozeTime);
         String snoozeTimeStr = Alarms.formatTime(this, c);
-        String label = mAlarm.getLabelOrDefault(this);
+        String label = Alarms.getAlertLabel(this, mAlarm, mGroup);
 
         // Notify the user that the alarm has been snoozed.
         Intent dismissIntent = new Intent(this, AlarmReceiver.class);
         dismissIntent.setAction(Alarms.CANCEL_SNOOZE);
         dismissIntent.putExtra(Alarms.ALARM_INTENT_EXTRA, mAlarm);
+        dismissIntent.putParcelableArrayListExtra(Alarms.ALARM_GROUP_EXTRA, mGroup);
 
         Intent openAlarm = new Intent(this, DeskClock.class);
         openAlarm.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
@@ -232,7 +246,8 @@ public class AlarmAlertFullScreen extends Activity implements GlowPadView.OnTrig
         .setWhen(0)
         .addAction(android.R.drawable.ic_menu_close_clear_cancel,
                 getResources().getString(R.string.alarm_alert_dismiss_text),
-                PendingIntent.getBroadcast(this, mAlarm.id, dismissIntent, 0))
+                PendingIntent.getBroadcast(this, mAlarm.id, dismissIntent,
+                        PendingIntent.FLAG_UPDATE_CURRENT))
         .build();
         notif.contentIntent = PendingIntent.getActivity(this, mAlarm.id, openAlarm, 0);
         nm.notify(mAlarm.id, notif);
@@ -263,6 +278,13 @@ public class AlarmAlertFullScreen extends Activity implements GlowPadView.OnTrig
         // The service told us that the alarm has been killed, do not modify
         // the notification or stop the service.
         if (!killed) {
+            final AlarmJournal journal = AlarmJournal.getInstance(this);
+            journal.record(mAlarm.id, AlarmJournal.EVENT_DISMISSED, mAlarm.time);
+            if (mGroup != null) {
+                for (Alarm a : mGroup) {
+                    journal.record(a.id, AlarmJournal.EVENT_DISMISSED, a.time);
+                }
+            }
             // Cancel the notification and stop playing the alarm
             NotificationManager nm = getNotificationManager();
             nm.cancel(mAlarm.id);
@@ -284,6 +306,7 @@ public class AlarmAlertFullScreen extends Activity implements GlowPadView.OnTrig
         if (LOG) Log.v("AlarmAlert.OnNewIntent()");
 
         mAlarm = intent.getParcelableExtra(Alarms.ALARM_INTENT_EXTRA);
+        mGroup = intent.getParcelableArrayListExtra(Alarms.ALARM_GROUP_EXTRA);
 
         setTitle();
     }
@@ -18,6 +18,7 @@ package com.android.deskclock;
 
 import android.content.Context;
 import android.os.PowerManager;
+import android.text.format.DateUtils;
 
 /**
  * Hold a wakelock that can be acquired in the AlarmReceiver and
@@ -25,34 +26,51 @@ import android.os.PowerManager;
  */
 class AlarmAlertWakeLock {
 
-    public static PowerManager.WakeLock sCpuWakeLock;
+    // Tag of the cpu wake lock held while an alarm or timer sounds.
+    static final String TAG_CPU = "cpu";
 
-    static PowerManager.WakeLock createPartialWakeLock(Context context) {
+    // Longest an alarm or timer sounds is the longest auto silence, 30
+    // minutes, unless it is set to never.
+    private static final long CPU_MAX_HOLD_MS = DateUtils.HOUR_IN_MILLIS;
+    // Broadcast receivers finish well within this.
+    private static final long RECEIVER_MAX_HOLD_MS = DateUtils.MINUTE_IN_MILLIS;
+
+    private static TrackedWakeLock sCpuWakeLock;
+
+    /**
+     * Creates a partial wake lock for a broadcast receiver to hold while it
+     * handles a broadcast.
+     */
+    static TrackedWakeLock createPartialWakeLock(Context context, String tag) {
         PowerManager pm =
                 (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-        return pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, Log.LOGTAG);
+        return new TrackedWakeLock(pm, PowerManager.PARTIAL_WAKE_LOCK, tag,
+                RECEIVER_MAX_HOLD_MS);
     }
 
-    static void acquireCpuWakeLock(Context context) {
-        if (sCpuWakeLock != null) {
+    static synchronized void acquireCpuWakeLock(Context context) {
+        if (sCpuWakeLock != null && sCpuWakeLock.isHeld()) {
             return;
         }
 
-        sCpuWakeLock = createPartialWakeLock(context);
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        sCpuWakeLock = new TrackedWakeLock(pm, PowerManager.PARTIAL_WAKE_LOCK, TAG_CPU,
+                CPU_MAX_HOLD_MS);
         sCpuWakeLock.acquire();
     }
 
-    static void acquireScreenCpuWakeLock(Context context) {
-        if (sCpuWakeLock != null) {
+    static synchronized void acquireScreenCpuWakeLock(Context context) {
+        if (sCpuWakeLock != null && sCpuWakeLock.isHeld()) {
             return;
         }
         PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-        sCpuWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK
-                | PowerManager.ACQUIRE_CAUSES_WAKEUP | PowerManager.ON_AFTER_RELEASE, Log.LOGTAG);
+        sCpuWakeLock = new TrackedWakeLock(pm, PowerManager.PARTIAL_WAKE_LOCK
+                | PowerManager.ACQUIRE_CAUSES_WAKEUP | PowerManager.ON_AFTER_RELEASE, TAG_CPU,
+                CPU_MAX_HOLD_MS);
         sCpuWakeLock.acquire();
     }
 
-    static void releaseCpuLock() {
+    static synchronized void releaseCpuLock() {
         if (sCpuWakeLock != null) {
             sCpuWakeLock.release();
             sCpuWakeLock = null;
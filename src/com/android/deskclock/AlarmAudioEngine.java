@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnPreparedListener;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.DateUtils;
+import com.android.deskclock.obfuscated.R;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Plays alarm and timer ringtones on the alarm stream for AlarmKlaxon and
+ * TimerRingService.  Must be used on the main thread.
+ *
+ * Ringtones are prepared with prepareAsync(), so the main thread does not
+ * wait on the media server.  A player stays prepared between plays: stop()
+ * pauses and rewinds it, so playing the same ringtone again only starts it.
+ * The fallback ringtone is prepared when the engine is created, so a
+ * ringtone that fails to load switches to audio without another prepare.
+ * Players of released engines are kept in a small pool shared by all
+ * engines for a minute.
+ */
+final class AlarmAudioEngine {
+
+    // Volume suggested by media team for in-call alarms.
+    static final float IN_CALL_VOLUME = 0.125f;
+
+    // Scheme of the URIs returned by getAssetUri().
+    private static final String SCHEME_ASSET = "asset";
+
+    private static final int POOL_SIZE = 2;
+    private static final long POOL_IDLE_MS = DateUtils.MINUTE_IN_MILLIS;
+
+    // Idle players in the Idle state.  Only touched on the main thread.
+    private static final ArrayList<MediaPlayer> sPool = new ArrayList<MediaPlayer>(POOL_SIZE);
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable sTrimPool = new Runnable() {
+        @Override
+        public void run() {
+            for (MediaPlayer player : sPool) {
+                player.release();
+            }
+            sPool.clear();
+        }
+    };
+
+    /**
+     * Called when a ringtone starts playing.
+     */
+    interface OnStartListener {
+        void onStart();
+    }
+
+    private final Context mContext;
+    private final Player mRingtone = new Player();
+    private final Player mFallback = new Player();
+    private OnStartListener mOnStartListener;
+
+    AlarmAudioEngine(Context context) {
+        mContext = context;
+        mFallback.prepare(getResourceUri(R.raw.fallbackring), 1f);
+    }
+
+    /**
+     * Returns a URI for a sound in the app's assets that the engine can play.
+     */
+    static Uri getAssetUri(String path) {
+        return Uri.parse(SCHEME_ASSET + ":///" + path);
+    }
+
+    void setOnStartListener(OnStartListener listener) {
+        mOnStartListener = listener;
+    }
+
+    /**
+     * Loads the ringtone, so that a later play() of it only has to start it.
+     */
+    void prepare(Uri ringtone) {
+        mRingtone.prepare(ringtone, 1f);
+    }
+
+    /**
+     * Plays the ringtone in a loop, or the in-call alarm at a low volume if
+     * a call is in progress.  Nothing plays if the alarm stream is muted.
+     */
+    void play(Uri ringtone, boolean inCall) {
+        stop();
+        final boolean opened;
+        if (inCall) {
+            Log.v("Using the in-call alarm");
+            opened = mRingtone.prepare(getResourceUri(R.raw.in_call_alarm), IN_CALL_VOLUME);
+        } else {
+            opened = mRingtone.prepare(ringtone, 1f);
+        }
+        if (opened) {
+            mRingtone.start();
+        } else {
+            playFallback();
+        }
+    }
+
+    /**
+     * Stops the audio, keeping the ringtone prepared.
+     */
+    void stop() {
+        mRingtone.pause();
+        mFallback.pause();
+    }
+
+    /**
+     * Stops the audio and gives the players back to the pool.
+     */
+    void release() {
+        mRingtone.release();
+        mFallback.release();
+    }
+
+    private void playFallback() {
+        // The alert may be on the sd card which could be busy right now.
+        Log.v("Using the fallback ringtone");
+        if (mFallback.mSource == null
+                && !mFallback.prepare(getResourceUri(R.raw.fallbackring), 1f)) {
+            // At this point we just don't play anything.
+            return;
+        }
+        mFallback.start();
+    }
+
+    private Uri getResourceUri(int res) {
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_ANDROID_RESOURCE)
+                .authority(mContext.getPackageName())
+                .appendPath(Integer.toString(res))
+                .build();
+    }
+
+    private void setDataSource(MediaPlayer player, Uri source) throws IOException {
+        if (SCHEME_ASSET.equals(source.getScheme())) {
+            // Drop the leading '/' of the path.
+            final AssetFileDescriptor afd =
+                    mContext.getAssets().openFd(source.getPath().substring(1));
+            try {
+                player.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(),
+                        afd.getLength());
+            } finally {
+                afd.close();
+            }
+        } else {
+            player.setDataSource(mContext, source);
+        }
+    }
+
+    private static MediaPlayer obtainPlayer() {
+        if (sPool.isEmpty()) {
+            return new MediaPlayer();
+        }
+        final MediaPlayer player = sPool.remove(sPool.size() - 1);
+        if (sPool.isEmpty()) {
+            sHandler.removeCallbacks(sTrimPool);
+        }
+        return player;
+    }
+
+    private static void recyclePlayer(MediaPlayer player) {
+        if (sPool.size() >= POOL_SIZE) {
+            player.release();
+            return;
+        }
+        player.reset();
+        player.setOnPreparedListener(null);
+        player.setOnErrorListener(null);
+        sPool.add(player);
+        sHandler.removeCallbacks(sTrimPool);
+        sHandler.postDelayed(sTrimPool, POOL_IDLE_MS);
+    }
+
+    /**
+     * One looping MediaPlayer and the source it holds.
+     */
+    private final class Player implements OnPreparedListener, OnErrorListener {
+        private MediaPlayer mPlayer;
+        private Uri mSource;
+        private boolean mPrepared;
+        // Set from start() until pause(), whether or not prepared yet.
+        private boolean mStarted;
+
+        /**
+         * Starts preparing the source unless the player already holds it.
+         *
+         * @return false if the source could not be opened
+         */
+        boolean prepare(Uri source, float volume) {
+            if (mPlayer != null && source.equals(mSource)) {
+                mPlayer.setVolume(volume, volume);
+                return true;
+            }
+            reset();
+            if (mPlayer == null) {
+                mPlayer = obtainPlayer();
+                mPlayer.setOnPreparedListener(this);
+                mPlayer.setOnErrorListener(this);
+            }
+            try {
+                setDataSource(mPlayer, source);
+                mPlayer.setAudioStreamType(AudioManager.STREAM_ALARM);
+                mPlayer.setLooping(true);
+                mPlayer.setVolume(volume, volume);
+                mPlayer.prepareAsync();
+            } catch (Exception ex) {
+                Log.e("Unable to open " + source, ex);
+                // Must reset the media player to clear the error state.
+                mPlayer.reset();
+                return false;
+            }
+            mSource = source;
+            return true;
+        }
+
+        void start() {
+            mStarted = true;
+            if (mPrepared) {
+                startIfAudible();
+            }
+        }
+
+        void pause() {
+            if (mStarted && mPrepared && mPlayer.isPlaying()) {
+                mPlayer.pause();
+                mPlayer.seekTo(0);
+            }
+            mStarted = false;
+        }
+
+        void release() {
+            reset();
+            if (mPlayer != null) {
+                recyclePlayer(mPlayer);
+                mPlayer = null;
+            }
+        }
+
+        private void reset() {
+            mStarted = false;
+            mPrepared = false;
+            mSource = null;
+            if (mPlayer != null) {
+                mPlayer.reset();
+            }
+        }
+
+        private void startIfAudible() {
+            final AudioManager audioManager =
+                    (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
+            // do not play alarms if stream volume is 0
+            // (typically because ringer mode is silent).
+            if (audioManager.getStreamVolume(AudioManager.STREAM_ALARM) != 0) {
+                mPlayer.start();
+                if (mOnStartListener != null) {
+                    mOnStartListener.onStart();
+                }
+            }
+        }
+
+        @Override
+        public void onPrepared(MediaPlayer mp) {
+            mPrepared = true;
+            if (mStarted) {
+                startIfAudible();
+            }
+        }
+
+        @Override
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            Log.e("Error occurred while playing audio.");
+            final boolean started = mStarted;
+            reset();
+            if (started && this != mFallback) {
+                playFallback();
+            }
+            return true;
+        }
+    }
+}
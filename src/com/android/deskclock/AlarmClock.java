@@ -28,6 +28,7 @@ import android.content.Intent;
 import android.content.Loader;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.media.Ringtone;
@@ -45,6 +46,7 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnLongClickListener;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.CursorAdapter;
@@ -57,6 +59,7 @@ import com.android.deskclock.obfuscated.R;
 import com.android.deskclock.widget.ActionableToastBar;
 import com.android.deskclock.widget.swipeablelistview.SwipeableListView;
 import java.text.DateFormatSymbols;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashSet;
 
@@ -95,6 +98,17 @@ public class AlarmClock extends Activity implements LoaderManager.LoaderCallback
     // activity being created when launched.
     public boolean mFirstLoad = true;
 
+    // The list is loaded a page at a time as it is scrolled, one loader per
+    // page.  Every page but the last ends at a fixed alarm, so alarms added or
+    // removed later only reload the page they fall in.
+    private static final int PAGE_SIZE = 50;
+    // Load the next page when the list is scrolled this close to its end.
+    private static final int PAGE_PREFETCH = 10;
+    // Sort key of the alarm each page starts after, null for the first page.
+    private final ArrayList<int[]> mPageStarts = new ArrayList<int[]>();
+    // Cursor of each page, null until it is loaded.  Owned by the loaders.
+    private final ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+
     // Saved states for undo
     public Alarm mDeletedAlarm;
     public boolean mUndoShowing = false;
@@ -104,7 +118,15 @@ public class AlarmClock extends Activity implements LoaderManager.LoaderCallback
         super.onCreate(savedState);
         initialize(savedState);
         updateLayout();
-        getLoaderManager().initLoader(0, null, this);
+        mPageStarts.add(null);
+        mPages.add(null);
+        if (savedState == null) {
+            getLoaderManager().initLoader(0, null, this);
+        } else {
+            // A retained first page may end where the last instance's second
+            // page started, so load it again without an end.
+            getLoaderManager().restartLoader(0, null, this);
+        }
     }
 
     public void initialize(Bundle savedState) {
@@ -148,6 +170,19 @@ public class AlarmClock extends Activity implements LoaderManager.LoaderCallback
                 asyncDeleteAlarm(itemHolder.alarm);
             }
         });
+        mAlarmsList.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (firstVisibleItem + visibleItemCount + PAGE_PREFETCH >= totalItemCount) {
+                    loadNextPage();
+                }
+            }
+        });
         mAlarmsList.setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View view, MotionEvent event) {
@@ -306,15 +341,54 @@ public class AlarmClock extends Activity implements LoaderManager.LoaderCallback
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        return Alarms.getAlarmsCursorLoader(this);
+        // Only the last page is limited in size; the others end where the
+        // next one starts.
+        if (id == mPageStarts.size() - 1) {
+            return Alarms.getAlarmsCursorLoader(this, mPageStarts.get(id), null, PAGE_SIZE);
+        }
+        return Alarms.getAlarmsCursorLoader(this, mPageStarts.get(id), mPageStarts.get(id + 1), 0);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> cursorLoader, final Cursor data) {
-        mAdapter.swapCursor(data);
+        final int id = cursorLoader.getId();
+        if (id >= mPages.size()) {
+            // A page retained from before the activity was recreated.
+            return;
+        }
+        mPages.set(id, data);
+        // Swap in every loaded page, since the loader of a page closes its
+        // old cursor as soon as it delivers a new one.
+        final ArrayList<Cursor> loaded = new ArrayList<Cursor>(mPages.size());
+        for (Cursor page : mPages) {
+            if (page != null) {
+                loaded.add(page);
+            }
+        }
+        mAdapter.swapCursor(loaded.size() == 1 ? data
+                : new MergeCursor(loaded.toArray(new Cursor[loaded.size()])));
         gotoAlarmIfSpecified();
     }
 
+    /**
+     * Starts loading the page after the last one, if the last page is loaded
+     * and full.
+     */
+    private void loadNextPage() {
+        final int last = mPages.size() - 1;
+        final Cursor page = mPages.get(last);
+        if (page == null || page.isClosed() || page.getCount() < PAGE_SIZE
+                || !page.moveToLast()) {
+            return;
+        }
+        mPageStarts.add(Alarms.getSortKey(page));
+        mPages.add(null);
+        final LoaderManager loaderManager = getLoaderManager();
+        // The last page now ends at its last alarm rather than after PAGE_SIZE.
+        loaderManager.restartLoader(last, null, this);
+        loaderManager.initLoader(last + 1, null, this);
+    }
+
     /** If an alarm was passed in via intent and goes to that particular alarm in the list. */
     public void gotoAlarmIfSpecified() {
         final Intent intent = getIntent();
@@ -355,6 +429,10 @@ public class AlarmClock extends Activity implements LoaderManager.LoaderCallback
 
     @Override
     public void onLoaderReset(Loader<Cursor> cursorLoader) {
+        final int id = cursorLoader.getId();
+        if (id < mPages.size()) {
+            mPages.set(id, null);
+        }
         mAdapter.swapCursor(null);
     }
 
@@ -1139,6 +1217,7 @@ public class AlarmClock extends Activity implements LoaderManager.LoaderCallback
     }
 
     public void asyncDeleteAlarm(final Integer [] alarmIds) {
+        final AlarmWriteQueue writeQueue = AlarmWriteQueue.getInstance(this);
         final AsyncTask<Integer, Void, Void> deleteTask = new AsyncTask<Integer, Void, Void>() {
             @Override
             protected Void doInBackground(Integer... ids) {
@@ -1148,7 +1227,10 @@ public class AlarmClock extends Activity implements LoaderManager.LoaderCallback
                 return null;
             }
         };
-        deleteTask.execute(alarmIds);
+        for (final int id : alarmIds) {
+            writeQueue.cancel(id);
+        }
+        deleteTask.executeOnExecutor(writeQueue.getExecutor(), alarmIds);
     }
 
     public void asyncDeleteAlarm(final Alarm alarm) {
@@ -1164,7 +1246,9 @@ public class AlarmClock extends Activity implements LoaderManager.LoaderCallback
         };
         mDeletedAlarm = alarm;
         mUndoShowing = true;
-        deleteTask.execute(alarm);
+        final AlarmWriteQueue writeQueue = AlarmWriteQueue.getInstance(this);
+        writeQueue.cancel(alarm.id);
+        deleteTask.executeOnExecutor(writeQueue.getExecutor(), alarm);
         mUndoBar.show(new ActionableToastBar.ActionClickedListener() {
             @Override
             public void onActionClicked() {
@@ -1201,31 +1285,19 @@ public class AlarmClock extends Activity implements LoaderManager.LoaderCallback
                 }
             }
         };
-        updateTask.execute();
+        updateTask.executeOnExecutor(AlarmWriteQueue.getInstance(this).getExecutor());
     }
 
     public void asyncUpdateAlarm(final Alarm alarm, final boolean popToast) {
-        final AsyncTask<Alarm, Void, Void> updateTask = new AsyncTask<Alarm, Void, Void>() {
-            @Override
-            protected Void doInBackground(Alarm... alarms) {
-                for (final Alarm alarm : alarms) {
-                    Alarms.setAlarm(AlarmClock.this, alarm);
-                }
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                if (popToast) {
-                    popToast(alarm);
-                }
-            }
-        };
-        updateTask.execute(alarm);
+        // Rapid edits of the same alarm are coalesced and written together.
+        AlarmWriteQueue.getInstance(this).update(alarm);
+        if (popToast) {
+            popToast(alarm);
+        }
     }
 
     public void popToast(Alarm alarm) {
-        AlarmUtils.popAlarmSetToast(this, alarm.hour, alarm.minutes, alarm.daysOfWeek);
+        AlarmUtils.popAlarmSetToast(this, alarm);
     }
 
     /***
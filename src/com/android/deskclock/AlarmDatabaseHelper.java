@@ -19,12 +19,15 @@ package com.android.deskclock;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 
+import java.util.Set;
+
 /**
  * Helper class for opening the database from multiple providers.  Also provides
  * some common functionality.
@@ -32,14 +35,33 @@ import android.net.Uri;
 class AlarmDatabaseHelper extends SQLiteOpenHelper {
 
     public static final String DATABASE_NAME = "alarms.db";
-    public static final int DATABASE_VERSION = 5;
+    public static final int DATABASE_VERSION = 9;
+
+    // Oldest version that upgradeTo() can migrate from.  Databases older than
+    // this are dropped and recreated.
+    private static final int OLDEST_MIGRATABLE_VERSION = 5;
+
+    private final Context mContext;
 
     public AlarmDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        createAlarmsTable(db);
+        for (int version = OLDEST_MIGRATABLE_VERSION + 1; version <= DATABASE_VERSION;
+                version++) {
+            upgradeTo(db, version);
+        }
+    }
+
+    /**
+     * Creates the alarms table as of OLDEST_MIGRATABLE_VERSION.
+     */
+    private static void createAlarmsTable(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE alarms (" +
                    "_id INTEGER PRIMARY KEY," +
                    "hour INTEGER, " +
@@ -59,14 +81,100 @@ class AlarmDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(insertMe + "(9, 00, 96, 0, 0, 1, '', '');");
     }
 
+    /**
+     * Upgrades the schema from version - 1 to version, keeping all data.
+     */
+    private void upgradeTo(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 6:
+                // Snoozes move out of shared preferences.
+                db.execSQL("CREATE TABLE snoozes (" +
+                           "alarm_id INTEGER PRIMARY KEY, " +
+                           "snooze_time INTEGER);");
+                db.execSQL("CREATE INDEX snoozes_snooze_time ON snoozes (snooze_time);");
+                migrateSnoozePreferences(db);
+                break;
+            case 7:
+                // Indexes for WHERE_ENABLED with alarm time and for
+                // DEFAULT_SORT_ORDER.
+                db.execSQL("CREATE INDEX alarms_enabled_time ON alarms (enabled, alarmtime);");
+                db.execSQL("CREATE INDEX alarms_sort ON alarms (hour, minutes, _id DESC);");
+                break;
+            case 8:
+                // Skip calendars, shared by the alarms that refer to them.
+                db.execSQL("CREATE TABLE skip_calendars (" +
+                           "_id INTEGER PRIMARY KEY, " +
+                           "name TEXT);");
+                db.execSQL("CREATE TABLE skip_days (" +
+                           "calendar_id INTEGER, " +
+                           "year INTEGER, " +
+                           "days BLOB, " +
+                           "PRIMARY KEY (calendar_id, year));");
+                db.execSQL("ALTER TABLE alarms ADD COLUMN skip_calendar INTEGER NOT NULL " +
+                           "DEFAULT 0;");
+                break;
+            case 9:
+                // Extends alarms_enabled_time so the time range query can
+                // also look up repeating alarms, whose time is 0, by hour.
+                db.execSQL("DROP INDEX alarms_enabled_time;");
+                db.execSQL("CREATE INDEX alarms_enabled_time_hour ON alarms " +
+                           "(enabled, alarmtime, hour, minutes);");
+                break;
+            default:
+                throw new IllegalStateException("Don't know how to upgrade to " + version);
+        }
+    }
+
+    /**
+     * Moves the snoozes kept in the AlarmClock shared preferences by older
+     * versions into the snoozes table.
+     */
+    private void migrateSnoozePreferences(SQLiteDatabase db) {
+        final SharedPreferences prefs =
+                mContext.getSharedPreferences(Alarms.PREFERENCES, 0);
+        final Set<String> snoozedIds = prefs.getStringSet(Alarms.PREF_SNOOZE_IDS, null);
+        if (snoozedIds == null) {
+            return;
+        }
+
+        final SharedPreferences.Editor ed = prefs.edit();
+        for (String snoozedAlarm : snoozedIds) {
+            final String key = Alarms.getAlarmPrefSnoozeTimeKey(snoozedAlarm);
+            final long time = prefs.getLong(key, -1);
+            if (time > 0) {
+                final ContentValues values = new ContentValues(2);
+                values.put(Alarm.SnoozeColumns.ALARM_ID, Integer.parseInt(snoozedAlarm));
+                values.put(Alarm.SnoozeColumns.SNOOZE_TIME, time);
+                db.insertWithOnConflict("snoozes", null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            ed.remove(key);
+        }
+        ed.remove(Alarms.PREF_SNOOZE_IDS);
+        ed.apply();
+        if (Log.LOGV) Log.v("Migrated " + snoozedIds.size() + " snoozes");
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion,
             int currentVersion) {
+        if (oldVersion >= OLDEST_MIGRATABLE_VERSION) {
+            if (Log.LOGV) Log.v("Upgrading alarms database from version " +
+                    oldVersion + " to " + currentVersion);
+            for (int version = oldVersion + 1; version <= currentVersion; version++) {
+                upgradeTo(db, version);
+            }
+            return;
+        }
+
         if (Log.LOGV) Log.v(
                 "Upgrading alarms database from version " +
                 oldVersion + " to " + currentVersion +
                 ", which will destroy all old data");
         db.execSQL("DROP TABLE IF EXISTS alarms");
+        db.execSQL("DROP TABLE IF EXISTS snoozes");
+        db.execSQL("DROP TABLE IF EXISTS skip_calendars");
+        db.execSQL("DROP TABLE IF EXISTS skip_days");
         onCreate(db);
     }
 
@@ -20,16 +20,17 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.PowerManager.WakeLock;
 import android.preference.PreferenceManager;
 
-import com.android.deskclock.timer.TimerObj;
+import com.android.deskclock.timer.TimerRegistry;
 
 public class AlarmInitReceiver extends BroadcastReceiver {
 
     // A flag that indicates that switching the volume button default was done
     public static final String PREF_VOLUME_DEF_DONE = "vol_def_done";
 
+    static final String WAKE_LOCK_TAG = "AlarmInitReceiver";
+
     /**
      * Sets alarm on ACTION_BOOT_COMPLETED.  Resets alarm on
      * TIME_SET, TIMEZONE_CHANGED
@@ -39,21 +40,40 @@ public class AlarmInitReceiver extends BroadcastReceiver {
         final String action = intent.getAction();
         if (Log.LOGV) Log.v("AlarmInitReceiver " + action);
 
+        if (action.equals(Intent.ACTION_TIMEZONE_CHANGED)) {
+            ZoneOffsetTable.invalidate();
+        }
+        if (action.equals(Intent.ACTION_TIME_CHANGED)
+                || action.equals(Intent.ACTION_TIMEZONE_CHANGED)) {
+            AlarmScheduler.onClockChanged();
+            AlarmTimeline.onClockChanged();
+        }
+
         final PendingResult result = goAsync();
-        final WakeLock wl = AlarmAlertWakeLock.createPartialWakeLock(context);
+        final TrackedWakeLock wl = AlarmAlertWakeLock.createPartialWakeLock(context,
+                WAKE_LOCK_TAG);
         wl.acquire();
-        AsyncHandler.post(new Runnable() {
-            @Override public void run() {
-                // Remove the snooze alarm after a boot.
-                if (action.equals(Intent.ACTION_BOOT_COMPLETED)) {
+        // Boot work is split into separate tasks so that an alarm firing
+        // meanwhile can be handled between them.
+        if (action.equals(Intent.ACTION_BOOT_COMPLETED)) {
+            AsyncHandler.post(new Runnable() {
+                @Override public void run() {
+                    // Remove the snooze alarm after a boot.
                     Alarms.saveSnoozeAlert(context, Alarms.INVALID_ALARM_ID, -1);
+                }
+            });
+            AsyncHandler.post(new Runnable() {
+                @Override public void run() {
                     Alarms.disableExpiredAlarms(context);
-
+                }
+            });
+            AsyncHandler.post(new Runnable() {
+                @Override public void run() {
                     // Clear stopwatch and timers data
                     final SharedPreferences prefs =
                             PreferenceManager.getDefaultSharedPreferences(context);
                     Log.v("AlarmInitReceiver - Reset timers and clear stopwatch data");
-                    TimerObj.resetTimersInSharedPrefs(prefs);
+                    TimerRegistry.getInstance(context).resetAll();
                     Utils.clearSwSharedPref(prefs);
 
                     if (!prefs.getBoolean(PREF_VOLUME_DEF_DONE, false)) {
@@ -62,6 +82,10 @@ public class AlarmInitReceiver extends BroadcastReceiver {
                         switchVolumeButtonDefault(prefs);
                     }
                 }
+            });
+        }
+        AsyncHandler.post(new Runnable() {
+            @Override public void run() {
                 Alarms.setNextAlert(context);
                 result.finish();
                 Log.v("AlarmInitReceiver finished");
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Durable history of what alarms did, for auditing missed alarms.  Events
+ * are appended as fixed-size records to a memory-mapped ring file of
+ * bounded size, overwriting the oldest records once it is full.  Writes are
+ * plain memory stores, so they are cheap enough for the alarm path, and
+ * survive the process being killed.
+ *
+ * File layout, big-endian:
+ * <pre>
+ *   int   magic
+ *   int   version
+ *   long  number of records ever written
+ *   CAPACITY records of
+ *     int   alarm id
+ *     int   event type
+ *     long  scheduled time in UTC millis
+ *     long  actual time in UTC millis
+ * </pre>
+ * Record n is at slot n % CAPACITY.  The count in the header is updated
+ * after the record is written, so a crash loses at most the last record.
+ */
+final class AlarmJournal {
+
+    static final int EVENT_SCHEDULED = 1;
+    static final int EVENT_FIRED = 2;
+    static final int EVENT_SNOOZED = 3;
+    static final int EVENT_DISMISSED = 4;
+    static final int EVENT_KILLED = 5;
+    static final int EVENT_REPLACED = 6;
+    // The alert arrived too late and was ignored.
+    static final int EVENT_STALE = 7;
+
+    static final String FILE_NAME = "alarm_journal";
+    static final int CAPACITY = 1024;
+
+    private static final int MAGIC = 0x414a524e; // "AJRN"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    private static final int RECORD_SIZE = 4 + 4 + 8 + 8;
+    private static final int COUNT_OFFSET = 8;
+
+    private static AlarmJournal sInstance;
+
+    // Null if the file could not be mapped, in which case nothing is
+    // recorded.  Guarded by this.
+    private final MappedByteBuffer mBuffer;
+    private long mCount;
+
+    private AlarmJournal(File file) {
+        MappedByteBuffer buffer = null;
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_SIZE + CAPACITY * RECORD_SIZE);
+            } finally {
+                // The mapping stays valid after the file is closed.
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e("Unable to map the alarm journal", e);
+        }
+        mBuffer = buffer;
+        if (mBuffer == null) {
+            return;
+        }
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+            // New file, or one this version does not understand.
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putLong(COUNT_OFFSET, 0);
+        }
+        mCount = mBuffer.getLong(COUNT_OFFSET);
+    }
+
+    static synchronized AlarmJournal getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AlarmJournal(new File(context.getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Appends an event that happened now.
+     */
+    void record(int alarmId, int type, long scheduled) {
+        record(alarmId, type, scheduled, System.currentTimeMillis());
+    }
+
+    synchronized void record(int alarmId, int type, long scheduled, long actual) {
+        if (mBuffer == null) {
+            return;
+        }
+        final int offset = offsetOf(mCount);
+        mBuffer.putInt(offset, alarmId);
+        mBuffer.putInt(offset + 4, type);
+        mBuffer.putLong(offset + 8, scheduled);
+        mBuffer.putLong(offset + 16, actual);
+        mCount++;
+        mBuffer.putLong(COUNT_OFFSET, mCount);
+    }
+
+    private static int offsetOf(long record) {
+        return HEADER_SIZE + (int) (record % CAPACITY) * RECORD_SIZE;
+    }
+
+    /**
+     * Returns a reader positioned before the oldest record in the journal.
+     */
+    Reader newReader() {
+        synchronized (this) {
+            return new Reader(Math.max(mCount - CAPACITY, 0));
+        }
+    }
+
+    /**
+     * Reads the journal one record at a time, oldest first, like a Cursor.
+     * Records appended while reading are read too.  Records overwritten
+     * before they were read are skipped.
+     */
+    final class Reader {
+        private long mNext;
+        private long mSequence = -1;
+        private int mAlarmId;
+        private int mType;
+        private long mScheduled;
+        private long mActual;
+
+        private Reader(long first) {
+            mNext = first;
+        }
+
+        /**
+         * Moves to the next record.
+         *
+         * @return false if there are no more records
+         */
+        boolean next() {
+            synchronized (AlarmJournal.this) {
+                if (mBuffer == null || mNext >= mCount) {
+                    return false;
+                }
+                mNext = Math.max(mNext, mCount - CAPACITY);
+                final int offset = offsetOf(mNext);
+                mAlarmId = mBuffer.getInt(offset);
+                mType = mBuffer.getInt(offset + 4);
+                mScheduled = mBuffer.getLong(offset + 8);
+                mActual = mBuffer.getLong(offset + 16);
+                mSequence = mNext++;
+                return true;
+            }
+        }
+
+        /**
+         * Number of records written to the journal before this one.
+         */
+        long getSequence() {
+            return mSequence;
+        }
+
+        int getAlarmId() {
+            return mAlarmId;
+        }
+
+        int getType() {
+            return mType;
+        }
+
+        long getScheduled() {
+            return mScheduled;
+        }
+
+        long getActual() {
+            return mActual;
+        }
+    }
+
+    /**
+     * Writes the journal as CSV, oldest record first, with times in UTC
+     * millis.
+     */
+    void exportCsv(Writer out) throws IOException {
+        out.write("sequence,alarm_id,event,scheduled,actual,delay\n");
+        final Reader reader = newReader();
+        while (reader.next()) {
+            out.write(Long.toString(reader.getSequence()));
+            out.write(',');
+            out.write(Integer.toString(reader.getAlarmId()));
+            out.write(',');
+            out.write(getEventName(reader.getType()));
+            out.write(',');
+            out.write(Long.toString(reader.getScheduled()));
+            out.write(',');
+            out.write(Long.toString(reader.getActual()));
+            out.write(',');
+            out.write(Long.toString(reader.getActual() - reader.getScheduled()));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    static String getEventName(int type) {
+        switch (type) {
+            case EVENT_SCHEDULED:
+                return "scheduled";
+            case EVENT_FIRED:
+                return "fired";
+            case EVENT_SNOOZED:
+                return "snoozed";
+            case EVENT_DISMISSED:
+                return "dismissed";
+            case EVENT_KILLED:
+                return "killed";
+            case EVENT_REPLACED:
+                return "replaced";
+            case EVENT_STALE:
+                return "stale";
+            default:
+                return Integer.toString(type);
+        }
+    }
+}
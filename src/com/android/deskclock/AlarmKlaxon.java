@@ -19,11 +19,6 @@ package com.android.deskclock;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.AssetFileDescriptor;
-import android.content.res.Resources;
-import android.media.AudioManager;
-import android.media.MediaPlayer;
-import android.media.MediaPlayer.OnErrorListener;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Handler;
@@ -34,8 +29,12 @@ import android.preference.PreferenceManager;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.text.format.DateUtils;
+import android.view.LayoutInflater;
 import com.android.deskclock.obfuscated.R;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Manages alarms and vibe. Runs as a service so that it can continue to play
  * if another activity overrides the AlarmAlert dialog.
@@ -50,14 +49,20 @@ public class AlarmKlaxon extends Service {
 
     public boolean mPlaying = false;
     public Vibrator mVibrator;
-    public MediaPlayer mMediaPlayer;
+    public AlarmAudioEngine mAudio;
     public Alarm mCurrentAlarm;
+    // Other alarms sounding in the same alert as mCurrentAlarm.
+    public List<Alarm> mCurrentGroup = Collections.emptyList();
     public long mStartTime;
     public TelephonyManager mTelephonyManager;
     public int mInitialCallState;
 
+    // How long to stay warmed up past the alarm time.
+    private static final long WARM_UP_GRACE_MS = DateUtils.MINUTE_IN_MILLIS;
+
     // Internal messages
     public static final int KILLER = 1000;
+    private static final int WARM_UP_TIMEOUT = 1001;
     public Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -69,6 +74,12 @@ public class AlarmKlaxon extends Service {
                     sendKillBroadcast((Alarm) msg.obj, false);
                     stopSelf();
                     break;
+                case WARM_UP_TIMEOUT:
+                    // The alarm did not go off, e.g. it was disabled.
+                    if (!mPlaying) {
+                        stopSelf();
+                    }
+                    break;
             }
         }
     };
@@ -82,6 +93,10 @@ public class AlarmKlaxon extends Service {
             // we don't kill the alarm during a call.
             if (state != TelephonyManager.CALL_STATE_IDLE
                     && state != mInitialCallState) {
+                if (!mPlaying) {
+                    // Only warmed up.  The alarm will use the in-call alarm.
+                    return;
+                }
                 sendKillBroadcast(mCurrentAlarm, false);
                 stopSelf();
             }
@@ -91,6 +106,15 @@ public class AlarmKlaxon extends Service {
     @Override
     public void onCreate() {
         mVibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
+        mAudio = new AlarmAudioEngine(this);
+        mAudio.setOnStartListener(new AlarmAudioEngine.OnStartListener() {
+            @Override
+            public void onStart() {
+                if (mCurrentAlarm != null) {
+                    AlarmLatencyTracer.onAlerted(mCurrentAlarm.id, System.currentTimeMillis());
+                }
+            }
+        });
         // Listen for incoming calls to kill the alarm.
         mTelephonyManager =
                 (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
@@ -102,8 +126,11 @@ public class AlarmKlaxon extends Service {
     @Override
     public void onDestroy() {
         stop();
-        Intent alarmDone = new Intent(Alarms.ALARM_DONE_ACTION);
-        sendBroadcast(alarmDone);
+        mAudio.release();
+        if (mCurrentAlarm != null) {
+            Intent alarmDone = new Intent(Alarms.ALARM_DONE_ACTION);
+            sendBroadcast(alarmDone);
+        }
 
         // Stop listening for incoming calls.
         mTelephonyManager.listen(mPhoneStateListener, 0);
@@ -132,12 +159,29 @@ public class AlarmKlaxon extends Service {
             return START_NOT_STICKY;
         }
 
+        if (Alarms.ALARM_WARM_UP_ACTION.equals(intent.getAction())) {
+            if (mPlaying) {
+                // Leave the alarm that is sounding alone.
+                return START_STICKY;
+            }
+            warmUp(alarm);
+            mInitialCallState = mTelephonyManager.getCallState();
+            return START_NOT_STICKY;
+        }
+
         if (mCurrentAlarm != null) {
             sendKillBroadcast(mCurrentAlarm, true);
         }
 
-        play(alarm);
+        List<Alarm> group = intent.getParcelableArrayListExtra(Alarms.ALARM_GROUP_EXTRA);
+        if (group == null) {
+            group = Collections.emptyList();
+        }
+
+        // Set before play() for the audio start listener.
         mCurrentAlarm = alarm;
+        mCurrentGroup = group;
+        play(alarm, group);
         // Record the initial call state here so that the new alarm has the
         // newest state.
         mInitialCallState = mTelephonyManager.getCallState();
@@ -146,6 +190,16 @@ public class AlarmKlaxon extends Service {
     }
 
     public void sendKillBroadcast(Alarm alarm, boolean replaced) {
+        if (alarm != null) {
+            final AlarmJournal journal = AlarmJournal.getInstance(this);
+            final int event = replaced ? AlarmJournal.EVENT_REPLACED : AlarmJournal.EVENT_KILLED;
+            journal.record(alarm.id, event, alarm.time);
+            if (alarm == mCurrentAlarm) {
+                for (Alarm a : mCurrentGroup) {
+                    journal.record(a.id, event, a.time);
+                }
+            }
+        }
         long millis = System.currentTimeMillis() - mStartTime;
         int minutes = (int) Math.round(millis / (double)DateUtils.MINUTE_IN_MILLIS);
         Intent alarmKilled = new Intent(Alarms.ALARM_KILLED);
@@ -155,108 +209,87 @@ public class AlarmKlaxon extends Service {
         sendBroadcast(alarmKilled);
     }
 
-    // Volume suggested by media team for in-call alarms.
-    public static final float IN_CALL_VOLUME = 0.125f;
-
-    public void play(Alarm alarm) {
+    /**
+     * Plays one alert for the alarm and the other alarms due in the same
+     * minute: the ringtone of the first of them that is not silent, with
+     * vibration if any of them vibrates.
+     */
+    public void play(Alarm alarm, List<Alarm> group) {
         // stop() checks to see if we are already playing.
         stop();
 
         if (Log.LOGV) {
-            Log.v("AlarmKlaxon.play() " + alarm.id + " alert " + alarm.alert);
+            Log.v("AlarmKlaxon.play() " + alarm.id + " alert " + alarm.alert
+                    + " with " + group.size() + " more alarms");
         }
 
-        if (!alarm.silent) {
-            Uri alert = alarm.alert;
-            // Fall back on the default alarm if the database does not have an
-            // alarm stored.
-            if (alert == null) {
-                alert = RingtoneManager.getDefaultUri(
-                        RingtoneManager.TYPE_ALARM);
-                if (Log.LOGV) {
-                    Log.v("Using default alarm: " + alert.toString());
-                }
+        Alarm ringing = alarm.silent ? null : alarm;
+        boolean vibrate = alarm.vibrate;
+        for (Alarm a : group) {
+            if (ringing == null && !a.silent) {
+                ringing = a;
             }
+            vibrate |= a.vibrate;
+        }
 
-            // TODO: Reuse mMediaPlayer instead of creating a new one and/or use
-            // RingtoneManager.
-            mMediaPlayer = new MediaPlayer();
-            mMediaPlayer.setOnErrorListener(new OnErrorListener() {
-                @Override
-                public boolean onError(MediaPlayer mp, int what, int extra) {
-                    Log.e("Error occurred while playing audio.");
-                    mp.stop();
-                    mp.release();
-                    mMediaPlayer = null;
-                    return true;
-                }
-            });
-
-            try {
-                // Check if we are in a call. If we are, use the in-call alarm
-                // resource at a low volume to not disrupt the call.
-                if (mTelephonyManager.getCallState()
-                        != TelephonyManager.CALL_STATE_IDLE) {
-                    Log.v("Using the in-call alarm");
-                    mMediaPlayer.setVolume(IN_CALL_VOLUME, IN_CALL_VOLUME);
-                    setDataSourceFromResource(getResources(), mMediaPlayer,
-                            R.raw.in_call_alarm);
-                } else {
-                    mMediaPlayer.setDataSource(this, alert);
-                }
-                startAlarm(mMediaPlayer);
-            } catch (Exception ex) {
-                Log.v("Using the fallback ringtone");
-                // The alert may be on the sd card which could be busy right
-                // now. Use the fallback ringtone.
-                try {
-                    // Must reset the media player to clear the error state.
-                    mMediaPlayer.reset();
-                    setDataSourceFromResource(getResources(), mMediaPlayer,
-                            R.raw.fallbackring);
-                    startAlarm(mMediaPlayer);
-                } catch (Exception ex2) {
-                    // At this point we just don't play anything.
-                    Log.e("Failed to play fallback ringtone", ex2);
-                }
-            }
+        if (ringing != null) {
+            // Check if we are in a call. If we are, the engine uses the
+            // in-call alarm at a low volume to not disrupt the call.
+            mAudio.play(getAlertUri(ringing), mTelephonyManager.getCallState()
+                    != TelephonyManager.CALL_STATE_IDLE);
         }
 
         /* Start the vibrator after everything is ok with the media player */
-        if (alarm.vibrate) {
+        if (vibrate) {
             mVibrator.vibrate(sVibratePattern, 0);
         } else {
             mVibrator.cancel();
         }
 
+        mHandler.removeMessages(WARM_UP_TIMEOUT);
         enableKiller(alarm);
         mPlaying = true;
         mStartTime = System.currentTimeMillis();
+        if (ringing == null) {
+            AlarmLatencyTracer.onAlerted(alarm.id, mStartTime);
+        }
     }
 
-    // Do the common stuff when starting the alarm.
-    public void startAlarm(MediaPlayer player)
-            throws java.io.IOException, IllegalArgumentException,
-                   IllegalStateException {
-        final AudioManager audioManager = (AudioManager)getSystemService(Context.AUDIO_SERVICE);
-        // do not play alarms if stream volume is 0
-        // (typically because ringer mode is silent).
-        if (audioManager.getStreamVolume(AudioManager.STREAM_ALARM) != 0) {
-            player.setAudioStreamType(AudioManager.STREAM_ALARM);
-            player.setLooping(true);
-            player.prepare();
-            player.start();
+    /**
+     * Prepares the ringtone of an alarm that is about to go off, so play()
+     * only has to start it, and loads the alert layout.  The service stops
+     * if the alarm has not gone off shortly after its time.
+     */
+    public void warmUp(Alarm alarm) {
+        mHandler.removeMessages(WARM_UP_TIMEOUT);
+        mHandler.sendEmptyMessageDelayed(WARM_UP_TIMEOUT,
+                Math.max(alarm.time - System.currentTimeMillis(), 0) + WARM_UP_GRACE_MS);
+
+        warmUpAlertLayout();
+        mAudio.prepare(getAlertUri(alarm));
+    }
+
+    // Inflates the alert layout once and drops it, so its classes and
+    // drawables are loaded before AlarmAlertFullScreen needs them.
+    private void warmUpAlertLayout() {
+        try {
+            LayoutInflater.from(this).inflate(R.layout.alarm_alert, null);
+        } catch (RuntimeException e) {
+            if (Log.LOGV) Log.v("Unable to inflate the alarm alert layout early");
         }
     }
 
-    public void setDataSourceFromResource(Resources resources,
-            MediaPlayer player, int res) throws java.io.IOException {
-        AssetFileDescriptor afd = resources.openRawResourceFd(res);
-        if (afd != null) {
-            player.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(),
-                    afd.getLength());
-            afd.close();
+    // Falls back on the default alarm if the database does not have an alarm
+    // stored.
+    private Uri getAlertUri(Alarm alarm) {
+        if (alarm.alert != null) {
+            return alarm.alert;
+        }
+        final Uri alert = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM);
+        if (Log.LOGV) {
+            Log.v("Using default alarm: " + alert.toString());
         }
+        return alert;
     }
 
     /**
@@ -269,11 +302,7 @@ public class AlarmKlaxon extends Service {
             mPlaying = false;
 
             // Stop audio playing
-            if (mMediaPlayer != null) {
-                mMediaPlayer.stop();
-                mMediaPlayer.release();
-                mMediaPlayer = null;
-            }
+            mAudio.stop();
 
             // Stop vibrator
             mVibrator.cancel();
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import java.util.Arrays;
+
+/**
+ * Records how late the most recent alarm fires were, in a fixed-size ring
+ * buffer.  For each fire it keeps the scheduled time, when AlarmReceiver got
+ * the broadcast, when it held its wake lock and when AlarmKlaxon started the
+ * alert (audio and vibration).  All times are wall-clock millis.
+ */
+final class AlarmLatencyTracer {
+
+    static final int CAPACITY = 64;
+
+    // Guarded by AlarmLatencyTracer.class.
+    private static final int[] sIds = new int[CAPACITY];
+    private static final long[] sScheduled = new long[CAPACITY];
+    private static final long[] sDelivered = new long[CAPACITY];
+    private static final long[] sWakeLocked = new long[CAPACITY];
+    private static final long[] sAlerted = new long[CAPACITY];
+    private static int sNext;
+    private static int sCount;
+
+    private AlarmLatencyTracer() {}
+
+    /**
+     * Starts a record for an alarm broadcast received by AlarmReceiver.
+     */
+    static synchronized void onDelivered(int alarmId, long scheduled, long delivered,
+            long wakeLocked) {
+        sIds[sNext] = alarmId;
+        sScheduled[sNext] = scheduled;
+        sDelivered[sNext] = delivered;
+        sWakeLocked[sNext] = wakeLocked;
+        sAlerted[sNext] = 0;
+        sNext = (sNext + 1) % CAPACITY;
+        if (sCount < CAPACITY) sCount++;
+    }
+
+    /**
+     * Completes the latest record of the alarm when its alert starts.
+     */
+    static synchronized void onAlerted(int alarmId, long alerted) {
+        for (int i = 1; i <= sCount; i++) {
+            final int index = (sNext - i + CAPACITY) % CAPACITY;
+            if (sIds[index] == alarmId && sAlerted[index] == 0) {
+                sAlerted[index] = alerted;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the recorded fires.
+     */
+    static synchronized void clear() {
+        sNext = 0;
+        sCount = 0;
+    }
+
+    /**
+     * Returns a report with p50/p95/p99 of the delivery, wake lock and alert
+     * delays, followed by the recorded fires, oldest first.
+     */
+    static synchronized String dump() {
+        final long[] delivery = new long[sCount];
+        final long[] wakeLock = new long[sCount];
+        final long[] alert = new long[sCount];
+        int alerts = 0;
+        final StringBuilder records = new StringBuilder();
+        for (int i = 0; i < sCount; i++) {
+            final int index = (sNext - sCount + i + CAPACITY) % CAPACITY;
+            delivery[i] = sDelivered[index] - sScheduled[index];
+            wakeLock[i] = sWakeLocked[index] - sDelivered[index];
+            if (sAlerted[index] != 0) {
+                alert[alerts++] = sAlerted[index] - sScheduled[index];
+            }
+            records.append("  id=").append(sIds[index])
+                    .append(" scheduled=").append(sScheduled[index])
+                    .append(" delivered=+").append(delivery[i])
+                    .append(" wakelock=+").append(sWakeLocked[index] - sScheduled[index])
+                    .append(" alerted=")
+                    .append(sAlerted[index] == 0 ? "-" : "+" + (sAlerted[index] - sScheduled[index]))
+                    .append('\n');
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Alarm fire latency, last ").append(sCount).append(" fires (ms):\n");
+        appendPercentiles(sb, "delivered - scheduled", delivery, sCount);
+        appendPercentiles(sb, "wakelock - delivered", wakeLock, sCount);
+        appendPercentiles(sb, "alerted - scheduled", alert, alerts);
+        sb.append(records);
+        return sb.toString();
+    }
+
+    private static void appendPercentiles(StringBuilder sb, String name, long[] values,
+            int count) {
+        Arrays.sort(values, 0, count);
+        sb.append("  ").append(name).append(": n=").append(count);
+        if (count > 0) {
+            sb.append(" p50=").append(percentile(values, count, 50))
+                    .append(" p95=").append(percentile(values, count, 95))
+                    .append(" p99=").append(percentile(values, count, 99))
+                    .append(" max=").append(values[count - 1]);
+        }
+        sb.append('\n');
+    }
+
+    // Nearest-rank percentile of the first count sorted values.
+    private static long percentile(long[] sorted, int count, int p) {
+        final int rank = (p * count + 99) / 100;
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
@@ -17,29 +17,64 @@
 package com.android.deskclock;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.text.TextUtils;
 
+import java.util.ArrayList;
+
 public class AlarmProvider extends ContentProvider {
     public AlarmDatabaseHelper mOpenHelper;
 
     public static final int ALARMS = 1;
     public static final int ALARMS_ID = 2;
+    public static final int SNOOZES = 3;
+    public static final int SNOOZES_ID = 4;
+    public static final int SNOOZED_ALARMS = 5;
+    public static final int SKIP_CALENDARS = 6;
+    public static final int SKIP_CALENDARS_ID = 7;
+    public static final int SKIP_DAYS = 8;
+    public static final int ALARMS_FIRING = 9;
+
+    /**
+     * Method for {@link #call} that disables every enabled non-repeating
+     * alarm whose time is before the time given as the argument, and clears
+     * their snoozes.  The result holds the number of disabled alarms under
+     * EXTRA_COUNT.
+     */
+    public static final String METHOD_DISABLE_EXPIRED = "disable_expired";
+    public static final String EXTRA_COUNT = "count";
+
     public static final UriMatcher sURLMatcher = new UriMatcher(
             UriMatcher.NO_MATCH);
 
     static {
         sURLMatcher.addURI("com.android.deskclock", "alarm", ALARMS);
         sURLMatcher.addURI("com.android.deskclock", "alarm/#", ALARMS_ID);
+        sURLMatcher.addURI("com.android.deskclock", "alarm/firing", ALARMS_FIRING);
+        sURLMatcher.addURI("com.android.deskclock", "snooze", SNOOZES);
+        sURLMatcher.addURI("com.android.deskclock", "snooze/#", SNOOZES_ID);
+        sURLMatcher.addURI("com.android.deskclock", "snoozed_alarm", SNOOZED_ALARMS);
+        sURLMatcher.addURI("com.android.deskclock", "skip_calendar", SKIP_CALENDARS);
+        sURLMatcher.addURI("com.android.deskclock", "skip_calendar/#", SKIP_CALENDARS_ID);
+        sURLMatcher.addURI("com.android.deskclock", "skip_days", SKIP_DAYS);
     }
 
+    // Set while applyBatch is running on the current thread, so the
+    // operations skip their own change notifications.
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+
     public AlarmProvider() {
     }
 
@@ -53,25 +88,57 @@ public class AlarmProvider extends ContentProvider {
     public Cursor query(Uri url, String[] projectionIn, String selection,
             String[] selectionArgs, String sort) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        String limit = null;
 
         // Generate the body of the query
         int match = sURLMatcher.match(url);
         switch (match) {
             case ALARMS:
                 qb.setTables("alarms");
+                if (appendKeysetWhere(qb, url) && sort == null) {
+                    sort = Alarm.Columns.DEFAULT_SORT_ORDER;
+                }
+                final String limitParam = url.getQueryParameter(Alarm.Columns.PARAM_LIMIT);
+                if (limitParam != null) {
+                    limit = Integer.toString(Integer.parseInt(limitParam));
+                }
                 break;
+            case ALARMS_FIRING:
+                return queryFiring(url, projectionIn, sort);
             case ALARMS_ID:
                 qb.setTables("alarms");
                 qb.appendWhere("_id=");
                 qb.appendWhere(url.getPathSegments().get(1));
                 break;
+            case SNOOZES:
+                qb.setTables("snoozes");
+                break;
+            case SNOOZES_ID:
+                qb.setTables("snoozes");
+                qb.appendWhere("alarm_id=");
+                qb.appendWhere(url.getPathSegments().get(1));
+                break;
+            case SNOOZED_ALARMS:
+                qb.setTables("alarms JOIN snoozes ON (alarms._id = snoozes.alarm_id)");
+                break;
+            case SKIP_CALENDARS:
+                qb.setTables("skip_calendars");
+                break;
+            case SKIP_CALENDARS_ID:
+                qb.setTables("skip_calendars");
+                qb.appendWhere("_id=");
+                qb.appendWhere(url.getPathSegments().get(1));
+                break;
+            case SKIP_DAYS:
+                qb.setTables("skip_days");
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URL " + url);
         }
 
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         Cursor ret = qb.query(db, projectionIn, selection, selectionArgs,
-                              null, null, sort);
+                              null, null, sort, limit);
 
         if (ret == null) {
             if (Log.LOGV) Log.v("Alarms.query: failed");
@@ -82,14 +149,187 @@ public class AlarmProvider extends ContentProvider {
         return ret;
     }
 
+    /**
+     * Restricts an alarms query to the rows between the sort keys given in
+     * the PARAM_AFTER and PARAM_THROUGH parameters of the url, in the default
+     * sort order.  The redundant bounds on hour let SQLite scan a range of
+     * the alarms_sort index.
+     *
+     * @return true if either parameter was given
+     */
+    static boolean appendKeysetWhere(SQLiteQueryBuilder qb, Uri url) {
+        final int[] after = parseSortKey(url.getQueryParameter(Alarm.Columns.PARAM_AFTER));
+        final int[] through = parseSortKey(url.getQueryParameter(Alarm.Columns.PARAM_THROUGH));
+        if (after != null) {
+            qb.appendWhere("hour>=" + after[0] + " AND (hour>" + after[0]
+                    + " OR (hour=" + after[0] + " AND (minutes>" + after[1]
+                    + " OR (minutes=" + after[1] + " AND _id<" + after[2] + "))))");
+        }
+        if (through != null) {
+            if (after != null) {
+                qb.appendWhere(" AND ");
+            }
+            qb.appendWhere("hour<=" + through[0] + " AND (hour<" + through[0]
+                    + " OR (hour=" + through[0] + " AND (minutes<" + through[1]
+                    + " OR (minutes=" + through[1] + " AND _id>=" + through[2] + "))))");
+        }
+        return after != null || through != null;
+    }
+
+    /**
+     * Parses a sort key written as "hour,minutes,_id".
+     */
+    private static int[] parseSortKey(String key) {
+        if (key == null) {
+            return null;
+        }
+        final String[] parts = key.split(",");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Bad sort key " + key);
+        }
+        return new int[] {
+            Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])
+        };
+    }
+
+    /**
+     * Queries the enabled alarms that fire in the time range given by the
+     * url.  Non-repeating alarms are found by their time.  Repeating alarms
+     * are found by their hour, minutes and days of the week, one select per
+     * local day the range covers, using the offsets of the current timezone
+     * on that day, so a range across a DST change matches the fire times of
+     * {@link Alarms#calculateAlarmTime}.  Skip calendars are not applied.
+     */
+    private Cursor queryFiring(Uri url, String[] projectionIn, String sort) {
+        final long start = Long.parseLong(url.getQueryParameter(Alarm.Columns.PARAM_START));
+        final long end = Long.parseLong(url.getQueryParameter(Alarm.Columns.PARAM_END));
+        final Cursor ret = mOpenHelper.getReadableDatabase().rawQuery(
+                buildFiringQuery(projectionIn, start, end, sort), null);
+        if (ret != null) {
+            ret.setNotificationUri(getContext().getContentResolver(),
+                    Alarm.Columns.CONTENT_URI);
+        }
+        return ret;
+    }
+
+    /**
+     * Builds the SQL of {@link #queryFiring}.
+     */
+    static String buildFiringQuery(String[] projectionIn, long start, long end, String sort) {
+        final String select = "SELECT "
+                + (projectionIn == null ? "*" : TextUtils.join(",", projectionIn))
+                + " FROM alarms WHERE enabled=1 AND alarmtime";
+
+        // Repeating alarms have a time of 0.
+        final StringBuilder sql = new StringBuilder(select)
+                .append(">=").append(Math.max(start, 1)).append(" AND alarmtime<").append(end);
+        // A repeating alarm fires at least once in any week and a day, even
+        // with a DST change in between.
+        if (end - start >= 8 * ZoneOffsetTable.DAY_MILLIS) {
+            sql.append(" UNION ").append(select).append("=0");
+        } else {
+            final long localStart = start + ZoneOffsetTable.getOffset(start);
+            final long localEnd = end + ZoneOffsetTable.getOffset(end);
+            // A day more on each side, for times a DST change moves across
+            // midnight.
+            for (long day = Alarms.floorDiv(localStart, ZoneOffsetTable.DAY_MILLIS) - 1;
+                    day * ZoneOffsetTable.DAY_MILLIS < localEnd + ZoneOffsetTable.DAY_MILLIS;
+                    day++) {
+                final long dayStart = day * ZoneOffsetTable.DAY_MILLIS;
+                final long dayEnd = dayStart + ZoneOffsetTable.DAY_MILLIS;
+                // The offsets localToUtc() uses at the start and the end of
+                // the day; they differ on the day of a DST change.
+                final int before = (int) (dayStart - ZoneOffsetTable.localToUtc(dayStart));
+                final int after = (int) (dayEnd - ZoneOffsetTable.localToUtc(dayEnd));
+                if (before == after) {
+                    appendFiringDay(sql, select, day, 0, AlarmTimingWheel.MINUTES_PER_DAY,
+                            start + before - dayStart, end + before - dayStart);
+                    continue;
+                }
+                // Times before the later of the two wall-clock readings of
+                // the change, including those it skips or repeats, keep the
+                // earlier offset.
+                final long change = findOffsetChange(dayStart - ZoneOffsetTable.DAY_MILLIS,
+                        dayEnd + ZoneOffsetTable.DAY_MILLIS);
+                final long split = Math.max(0, Math.min(AlarmTimingWheel.MINUTES_PER_DAY,
+                        ceilMinutes(change + Math.max(before, after) - dayStart)));
+                appendFiringDay(sql, select, day, 0, split,
+                        start + before - dayStart, end + before - dayStart);
+                appendFiringDay(sql, select, day, split, AlarmTimingWheel.MINUTES_PER_DAY,
+                        start + after - dayStart, end + after - dayStart);
+            }
+        }
+        if (sort != null) {
+            sql.append(" ORDER BY ").append(sort);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Appends a select of the repeating alarms that fire on a local day at
+     * a minute in [first, last) whose local time, in millis from the start
+     * of the day, is in [rangeStart, rangeEnd).
+     */
+    private static void appendFiringDay(StringBuilder sql, String select, long day,
+            long first, long last, long rangeStart, long rangeEnd) {
+        // Minutes of the day in [from, to) are in the range.
+        final long from = Math.max(first, ceilMinutes(rangeStart));
+        final long to = Math.min(last, ceilMinutes(rangeEnd));
+        if (from >= to) {
+            return;
+        }
+        // UNION rather than UNION ALL: an alarm may match several days.
+        sql.append(" UNION ").append(select).append("=0")
+                .append(" AND hour>=").append(from / 60)
+                .append(" AND hour<=").append((to - 1) / 60)
+                .append(" AND hour*60+minutes>=").append(from)
+                .append(" AND hour*60+minutes<").append(to)
+                .append(" AND (daysofweek&").append(1 << Alarms.dayOfWeek(day))
+                .append(")!=0");
+    }
+
+    /**
+     * Returns the first millisecond in (from, to] with a different offset
+     * than from.  There is at most one DST change in the range.
+     */
+    private static long findOffsetChange(long from, long to) {
+        final int offset = ZoneOffsetTable.getOffset(from);
+        while (to - from > 1) {
+            final long mid = from + (to - from) / 2;
+            if (ZoneOffsetTable.getOffset(mid) == offset) {
+                from = mid;
+            } else {
+                to = mid;
+            }
+        }
+        return to;
+    }
+
+    private static long ceilMinutes(long millis) {
+        return Alarms.floorDiv(millis + ZoneOffsetTable.MINUTE_MILLIS - 1,
+                ZoneOffsetTable.MINUTE_MILLIS);
+    }
+
     @Override
     public String getType(Uri url) {
         int match = sURLMatcher.match(url);
         switch (match) {
             case ALARMS:
+            case ALARMS_FIRING:
                 return "vnd.android.cursor.dir/alarms";
             case ALARMS_ID:
                 return "vnd.android.cursor.item/alarms";
+            case SNOOZES:
+            case SNOOZED_ALARMS:
+                return "vnd.android.cursor.dir/snoozes";
+            case SNOOZES_ID:
+                return "vnd.android.cursor.item/snoozes";
+            case SKIP_CALENDARS:
+                return "vnd.android.cursor.dir/skip_calendars";
+            case SKIP_CALENDARS_ID:
+                return "vnd.android.cursor.item/skip_calendars";
+            case SKIP_DAYS:
+                return "vnd.android.cursor.dir/skip_days";
             default:
                 throw new IllegalArgumentException("Unknown URL");
         }
@@ -114,21 +354,182 @@ public class AlarmProvider extends ContentProvider {
             }
         }
         if (Log.LOGV) Log.v("*** notifyChange() rowId: " + rowId + " url " + url);
-        getContext().getContentResolver().notifyChange(url, null);
+        notifyChange(url);
         return count;
     }
 
     @Override
     public Uri insert(Uri url, ContentValues initialValues) {
-        if (sURLMatcher.match(url) != ALARMS) {
+        final int match = sURLMatcher.match(url);
+        if (match == SNOOZES) {
+            return insertSnooze(initialValues);
+        } else if (match == SKIP_CALENDARS || match == SKIP_DAYS) {
+            return insertSkipCalendar(match, initialValues);
+        } else if (match != ALARMS) {
             throw new IllegalArgumentException("Cannot insert into URL: " + url);
         }
 
         Uri newUrl = mOpenHelper.commonInsert(initialValues);
-        getContext().getContentResolver().notifyChange(newUrl, null);
+        notifyChange(newUrl);
         return newUrl;
     }
 
+    /**
+     * Inserts or replaces the snooze of an alarm.
+     */
+    private Uri insertSnooze(ContentValues values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long rowId = db.insertWithOnConflict("snoozes", null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+        if (rowId < 0) {
+            throw new SQLException("Failed to insert snooze");
+        }
+        Uri newUrl = ContentUris.withAppendedId(Alarm.SnoozeColumns.CONTENT_URI,
+                values.getAsInteger(Alarm.SnoozeColumns.ALARM_ID));
+        notifyChange(newUrl);
+        return newUrl;
+    }
+
+    /**
+     * Inserts a skip calendar, or inserts or replaces the skipped days of a
+     * calendar and year.
+     */
+    private Uri insertSkipCalendar(int match, ContentValues values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Uri newUrl;
+        if (match == SKIP_CALENDARS) {
+            final long rowId = db.insert("skip_calendars", Alarm.SkipCalendarColumns.NAME,
+                    values);
+            if (rowId < 0) {
+                throw new SQLException("Failed to insert skip calendar");
+            }
+            newUrl = ContentUris.withAppendedId(Alarm.SkipCalendarColumns.CONTENT_URI, rowId);
+        } else {
+            final long rowId = db.insertWithOnConflict("skip_days", null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            if (rowId < 0) {
+                throw new SQLException("Failed to insert skipped days");
+            }
+            newUrl = Alarm.SkipCalendarColumns.DAYS_URI;
+        }
+        notifyChange(newUrl);
+        return newUrl;
+    }
+
+    /**
+     * Inserts all alarms or snoozes in a single transaction and sends one
+     * change notification.
+     */
+    @Override
+    public int bulkInsert(Uri url, ContentValues[] values) {
+        final int match = sURLMatcher.match(url);
+        if (match != ALARMS && match != SNOOZES) {
+            throw new IllegalArgumentException("Cannot insert into URL: " + url);
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues v : values) {
+                if (match == SNOOZES) {
+                    // Replaces the snooze of the alarm, as insertSnooze does.
+                    if (db.insertWithOnConflict("snoozes", null, v,
+                            SQLiteDatabase.CONFLICT_REPLACE) < 0) {
+                        throw new SQLException("Failed to insert snooze");
+                    }
+                } else {
+                    mOpenHelper.commonInsert(v);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        notifyChange(url);
+        return values.length;
+    }
+
+    /**
+     * Applies all operations in a single transaction and sends one change
+     * notification for the alarms table.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        mApplyingBatch.set(true);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mApplyingBatch.set(false);
+        }
+        notifyChange(Alarm.Columns.CONTENT_URI);
+        return results;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!METHOD_DISABLE_EXPIRED.equals(method)) {
+            return null;
+        }
+
+        final String expired = "enabled=1 AND alarmtime!=0 AND alarmtime<?";
+        final String[] whereArgs = { arg };
+        final ContentValues values = new ContentValues(1);
+        values.put(Alarm.Columns.ENABLED, 0);
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count;
+        db.beginTransaction();
+        try {
+            db.delete("snoozes", "alarm_id IN (SELECT _id FROM alarms WHERE " + expired + ")",
+                    whereArgs);
+            count = db.update("alarms", values, expired, whereArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            notifyChange(Alarm.Columns.CONTENT_URI);
+            notifyChange(Alarm.SnoozeColumns.CONTENT_URI);
+        }
+
+        final Bundle result = new Bundle();
+        result.putInt(EXTRA_COUNT, count);
+        return result;
+    }
+
+    /**
+     * Deletes a skip calendar with its days, and detaches it from the alarms
+     * that use it.
+     */
+    private static int deleteSkipCalendar(SQLiteDatabase db, long id) {
+        final ContentValues values = new ContentValues(1);
+        values.put(Alarm.Columns.SKIP_CALENDAR, 0);
+        int count;
+        db.beginTransaction();
+        try {
+            db.update("alarms", values, "skip_calendar=" + id, null);
+            db.delete("skip_days", "calendar_id=" + id, null);
+            count = db.delete("skip_calendars", "_id=" + id, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    private void notifyChange(Uri url) {
+        final Boolean applyingBatch = mApplyingBatch.get();
+        if (applyingBatch == null || !applyingBatch) {
+            getContext().getContentResolver().notifyChange(url, null);
+        }
+    }
+
     public int delete(Uri url, String where, String[] whereArgs) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
@@ -147,11 +548,32 @@ public class AlarmProvider extends ContentProvider {
                 }
                 count = db.delete("alarms", where, whereArgs);
                 break;
+            case SNOOZES:
+                count = db.delete("snoozes", where, whereArgs);
+                break;
+            case SNOOZES_ID:
+                String alarmId = url.getPathSegments().get(1);
+                if (TextUtils.isEmpty(where)) {
+                    where = "alarm_id=" + alarmId;
+                } else {
+                    where = "alarm_id=" + alarmId + " AND (" + where + ")";
+                }
+                count = db.delete("snoozes", where, whereArgs);
+                break;
+            case SKIP_CALENDARS_ID:
+                count = deleteSkipCalendar(db, Long.parseLong(url.getPathSegments().get(1)));
+                if (count > 0) {
+                    notifyChange(Alarm.Columns.CONTENT_URI);
+                }
+                break;
+            case SKIP_DAYS:
+                count = db.delete("skip_days", where, whereArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Cannot delete from URL: " + url);
         }
 
-        getContext().getContentResolver().notifyChange(url, null);
+        notifyChange(url);
         return count;
     }
 }
@@ -23,8 +23,8 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Parcel;
-import android.os.PowerManager.WakeLock;
 import com.android.deskclock.obfuscated.R;
+import java.util.ArrayList;
 import java.util.Calendar;
 
 /**
@@ -37,18 +37,34 @@ public class AlarmReceiver extends BroadcastReceiver {
         is probably the result of a time or timezone change */
     public final static int STALE_WINDOW = 30 * 60 * 1000;
 
+    static final String WAKE_LOCK_TAG = "AlarmReceiver";
+
+    // When the broadcast arrived and when its wake lock was held, for
+    // AlarmLatencyTracer.
+    private long mDeliveredAt;
+    private long mWakeLockedAt;
+
     @Override
     public void onReceive(final Context context, final Intent intent) {
+        mDeliveredAt = System.currentTimeMillis();
         final PendingResult result = goAsync();
-        final WakeLock wl = AlarmAlertWakeLock.createPartialWakeLock(context);
+        final TrackedWakeLock wl = AlarmAlertWakeLock.createPartialWakeLock(context,
+                WAKE_LOCK_TAG);
         wl.acquire();
-        AsyncHandler.post(new Runnable() {
+        mWakeLockedAt = System.currentTimeMillis();
+        final Runnable handle = new Runnable() {
             @Override public void run() {
                 handleIntent(context, intent);
                 result.finish();
                 wl.release();
             }
-        });
+        };
+        if (Alarms.ALARM_ALERT_ACTION.equals(intent.getAction())
+                || Alarms.ALARM_WARM_UP_ACTION.equals(intent.getAction())) {
+            AsyncHandler.postAlarm(handle);
+        } else {
+            AsyncHandler.post(handle);
+        }
     }
 
     public void handleIntent(Context context, Intent intent) {
@@ -67,6 +83,13 @@ public class AlarmReceiver extends BroadcastReceiver {
 
             if (alarm != null) {
                 Alarms.disableSnoozeAlert(context, alarm.id);
+                final ArrayList<Alarm> group =
+                        intent.getParcelableArrayListExtra(Alarms.ALARM_GROUP_EXTRA);
+                if (group != null) {
+                    for (Alarm a : group) {
+                        Alarms.disableSnoozeAlert(context, a.id);
+                    }
+                }
                 Alarms.setNextAlert(context);
             } else {
                 // Don't know what snoozed alarm to cancel, so cancel them all.  This
@@ -77,6 +100,9 @@ public class AlarmReceiver extends BroadcastReceiver {
             // Inform any active UI that alarm snooze was cancelled
             context.sendBroadcast(new Intent(Alarms.ALARM_SNOOZE_CANCELLED));
             return;
+        } else if (Alarms.ALARM_WARM_UP_ACTION.equals(intent.getAction())) {
+            warmUp(context, intent);
+            return;
         } else if (!Alarms.ALARM_ALERT_ACTION.equals(intent.getAction())) {
             // Unknown intent, bail.
             return;
@@ -86,13 +112,21 @@ public class AlarmReceiver extends BroadcastReceiver {
         // Grab the alarm from the intent. Since the remote AlarmManagerService
         // fills in the Intent to add some extra data, it must unparcel the
         // Alarm object. It throws a ClassNotFoundException when unparcelling.
-        // To avoid this, do the marshalling ourselves.
-        final byte[] data = intent.getByteArrayExtra(Alarms.ALARM_RAW_DATA);
-        if (data != null) {
-        	final Parcel in = Parcel.obtain();
-            in.unmarshall(data, 0, data.length);
-            in.setDataPosition(0);
-            alarm = Alarm.CREATOR.createFromParcel(in);
+        // To avoid this, the intent carries an AlarmSnapshot instead.
+        final AlarmSnapshot snapshot = AlarmSnapshot.decode(
+                intent.getByteArrayExtra(Alarms.ALARM_SNAPSHOT_DATA));
+        if (snapshot != null) {
+            alarm = snapshot.resolve(context.getContentResolver());
+        } else {
+            // Scheduled by an older version before an upgrade.
+            final byte[] data = intent.getByteArrayExtra(Alarms.ALARM_RAW_DATA);
+            if (data != null) {
+                final Parcel in = Parcel.obtain();
+                in.unmarshall(data, 0, data.length);
+                in.setDataPosition(0);
+                alarm = Alarm.CREATOR.createFromParcel(in);
+                in.recycle();
+            }
         }
 
         if (alarm == null) {
@@ -104,14 +138,13 @@ public class AlarmReceiver extends BroadcastReceiver {
 
         // Disable the snooze alert if this alarm is the snooze.
         Alarms.disableSnoozeAlert(context, alarm.id);
-        // Disable this alarm if it does not repeat.
-        if (!alarm.daysOfWeek.isRepeatSet()) {
-            Alarms.enableAlarm(context, alarm.id, false);
-        } else {
-            // Enable the next alert if there is one. The above call to
-            // enableAlarm will call setNextAlert so avoid calling it twice.
-            Alarms.setNextAlert(context);
-        }
+        final ArrayList<Alarm> group = resolveGroup(context, intent, alarm.time);
+        // Disable the alarms that do not repeat and enable the next alert if
+        // there is one.
+        final ArrayList<Alarm> fired = new ArrayList<Alarm>(group.size() + 1);
+        fired.add(alarm);
+        fired.addAll(group);
+        Alarms.disableFiredAlarms(context, fired);
 
         // Intentionally verbose: always log the alarm time to provide useful
         // information in bug reports.
@@ -119,11 +152,21 @@ public class AlarmReceiver extends BroadcastReceiver {
         Log.v("Received alarm set for id=" + alarm.id + " " + Log.formatTime(alarm.time));
 
         // Always verbose to track down time change problems.
-        if (now > alarm.time + STALE_WINDOW) {
+        final boolean stale = now > alarm.time + STALE_WINDOW;
+        final AlarmJournal journal = AlarmJournal.getInstance(context);
+        for (Alarm a : fired) {
+            journal.record(a.id, stale ? AlarmJournal.EVENT_STALE : AlarmJournal.EVENT_FIRED,
+                    alarm.time, now);
+        }
+        if (stale) {
             Log.v("Ignoring stale alarm");
             return;
         }
 
+        if (mDeliveredAt != 0) {
+            AlarmLatencyTracer.onDelivered(alarm.id, alarm.time, mDeliveredAt, mWakeLockedAt);
+        }
+
         // Maintain a cpu wake lock until the AlarmAlert and AlarmKlaxon can
         // pick it up.
         AlarmAlertWakeLock.acquireCpuWakeLock(context);
@@ -144,8 +187,10 @@ public class AlarmReceiver extends BroadcastReceiver {
         */
 
         // Play the alarm alert and vibrate the device.
+        // The alarms due in the same minute share one alert.
         final Intent playAlarm = new Intent(Alarms.ALARM_ALERT_ACTION);
         playAlarm.putExtra(Alarms.ALARM_INTENT_EXTRA, alarm);
+        playAlarm.putParcelableArrayListExtra(Alarms.ALARM_GROUP_EXTRA, group);
         context.startService(playAlarm);
 
         // Trigger a notification that, when clicked, will show the alarm alert
@@ -153,6 +198,7 @@ public class AlarmReceiver extends BroadcastReceiver {
         // launched from a user action.
         final Intent notify = new Intent(context, AlarmAlertFullScreen.class);
         notify.putExtra(Alarms.ALARM_INTENT_EXTRA, alarm);
+        notify.putParcelableArrayListExtra(Alarms.ALARM_GROUP_EXTRA, group);
         final PendingIntent pendingNotify = PendingIntent.getActivity(context,
                 alarm.id, notify, 0);
 
@@ -170,8 +216,8 @@ public class AlarmReceiver extends BroadcastReceiver {
         cal.setTimeInMillis(alarm.time);
         final String alarmTime = Alarms.formatTime(context, cal);
 
-        // Use the alarm's label or the default label main text of the notification.
-        final String label = alarm.getLabelOrDefault(context);
+        // Use the alarms' labels or the default label main text of the notification.
+        final String label = Alarms.getAlertLabel(context, alarm, group);
 
         final Notification n = new Notification.Builder(context)
         .setContentTitle(label)
@@ -195,6 +241,7 @@ public class AlarmReceiver extends BroadcastReceiver {
         // take care of displaying it if it's OK to do so.
         final Intent alarmAlert = new Intent(context, c);
         alarmAlert.putExtra(Alarms.ALARM_INTENT_EXTRA, alarm);
+        alarmAlert.putParcelableArrayListExtra(Alarms.ALARM_GROUP_EXTRA, group);
         alarmAlert.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
                 | Intent.FLAG_ACTIVITY_NO_USER_ACTION);
         n.fullScreenIntent = PendingIntent.getActivity(context, alarm.id, alarmAlert, 0);
@@ -205,6 +252,54 @@ public class AlarmReceiver extends BroadcastReceiver {
         nm.notify(alarm.id, n);
     }
 
+    /**
+     * Has AlarmKlaxon prepare the ringtone of an alarm that is about to go
+     * off, so the alert only has to start it.
+     */
+    private void warmUp(Context context, Intent intent) {
+        final AlarmSnapshot snapshot = AlarmSnapshot.decode(
+                intent.getByteArrayExtra(Alarms.ALARM_SNAPSHOT_DATA));
+        if (snapshot == null) {
+            return;
+        }
+        final Alarm alarm = snapshot.resolve(context.getContentResolver());
+        if (alarm.silent || System.currentTimeMillis() >= alarm.time) {
+            return;
+        }
+        if (Log.LOGV) Log.v("Warming up alarm id=" + alarm.id);
+
+        // AlarmKlaxon holds the cpu wake lock until the alarm goes off or
+        // the warm-up expires.
+        AlarmAlertWakeLock.acquireCpuWakeLock(context);
+        final Intent warmUp = new Intent(Alarms.ALARM_WARM_UP_ACTION);
+        warmUp.setClass(context, AlarmKlaxon.class);
+        warmUp.putExtra(Alarms.ALARM_INTENT_EXTRA, alarm);
+        context.startService(warmUp);
+    }
+
+    /**
+     * Reads the other alarms due in the same minute that fire with the
+     * alert, with their time set to the alert time.  Alarms deleted or
+     * disabled since the alert was scheduled are left out.
+     */
+    private ArrayList<Alarm> resolveGroup(Context context, Intent intent, long time) {
+        final ArrayList<Alarm> group = new ArrayList<Alarm>();
+        final int[] ids = intent.getIntArrayExtra(Alarms.ALARM_GROUP_IDS);
+        if (ids == null) {
+            return group;
+        }
+        for (int id : ids) {
+            final Alarm a = Alarms.getAlarm(context.getContentResolver(), id);
+            // A snoozed alarm that does not repeat is disabled.
+            final boolean snoozed = Alarms.disableSnoozeAlert(context, id);
+            if (a != null && (a.enabled || snoozed)) {
+                a.time = time;
+                group.add(a);
+            }
+        }
+        return group;
+    }
+
     public NotificationManager getNotificationManager(Context context) {
         return (NotificationManager)
                 context.getSystemService(Context.NOTIFICATION_SERVICE);
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Process-wide model of the enabled alarms.  Non-repeating alarms are kept in
+ * a min-heap ordered by their fire time and repeating alarms in an
+ * {@link AlarmTimingWheel}.  Repeating alarms with a {@link SkipCalendar} do
+ * not repeat weekly, so they are kept in a second min-heap by their next fire
+ * time, which is recomputed once it has passed.  Alarms keeps it up to date as alarms are added,
+ * changed, enabled, disabled and deleted, so finding the next alert does not
+ * need to read the whole alarms table.
+ */
+final class AlarmScheduler {
+
+    private static AlarmScheduler sInstance;
+
+    private static final Comparator<Alarm> TIME_ORDER = new Comparator<Alarm>() {
+        @Override
+        public int compare(Alarm lhs, Alarm rhs) {
+            if (lhs.time < rhs.time) return -1;
+            if (lhs.time > rhs.time) return 1;
+            return 0;
+        }
+    };
+
+    // Non-repeating alarms, by the time stored in the database.
+    private final PriorityQueue<Alarm> mQueue = new PriorityQueue<Alarm>(16, TIME_ORDER);
+    // Repeating alarms, whose stored time is 0.
+    private final AlarmTimingWheel mWheel = new AlarmTimingWheel();
+    // Copies of repeating alarms with a skip calendar, by their next fire
+    // time.  Alarms whose days are all skipped are left out.
+    private final PriorityQueue<Alarm> mSkipQueue = new PriorityQueue<Alarm>(16, TIME_ORDER);
+    // Set when the times in mSkipQueue may be wrong for the current clock.
+    private boolean mSkipQueueStale;
+    // Copies of all alarms in the model, by id.
+    private final HashMap<Integer, Alarm> mAlarms = new HashMap<Integer, Alarm>();
+    private boolean mLoaded;
+
+    private AlarmScheduler() {}
+
+    /**
+     * Returns the scheduler, loading the enabled alarms from the database the
+     * first time it is used (or after {@link #invalidate()}).
+     */
+    static AlarmScheduler getInstance(Context context) {
+        final AlarmScheduler scheduler;
+        synchronized (AlarmScheduler.class) {
+            if (sInstance == null) {
+                sInstance = new AlarmScheduler();
+            }
+            scheduler = sInstance;
+        }
+        scheduler.ensureLoaded(context);
+        return scheduler;
+    }
+
+    private synchronized void ensureLoaded(Context context) {
+        if (mLoaded) {
+            return;
+        }
+        SkipCalendar.ensureLoaded(context);
+        final Cursor cursor = Alarms.getFilteredAlarmsCursor(context.getContentResolver());
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    do {
+                        final Alarm a = new Alarm(cursor);
+                        putLocked(a, a.time);
+                    } while (cursor.moveToNext());
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        mLoaded = true;
+        if (Log.LOGV) Log.v("AlarmScheduler loaded " + mAlarms.size() + " alarms");
+    }
+
+    /**
+     * Adds or replaces an enabled alarm.
+     *
+     * @param alarm the alarm, which is copied
+     * @param time the alarm time stored in the database; 0 for repeating alarms
+     */
+    synchronized void put(Alarm alarm, long time) {
+        putLocked(new Alarm(alarm), time);
+        AlarmTimeline.onAlarmChanged(alarm, time);
+    }
+
+    private void putLocked(Alarm alarm, long time) {
+        removeLocked(alarm.id);
+        alarm.enabled = true;
+        alarm.time = time;
+        mAlarms.put(alarm.id, alarm);
+        // A time of 0 indicates this is a repeating alarm.
+        if (time == 0 && alarm.skipCalendarId != 0) {
+            addToSkipQueue(new Alarm(alarm), System.currentTimeMillis());
+        } else if (time == 0) {
+            mWheel.add(alarm);
+        } else {
+            mQueue.add(alarm);
+        }
+    }
+
+    /**
+     * Sets the time of a copy of an alarm with a skip calendar to its next
+     * fire time after now, and queues it unless it never fires.
+     */
+    private void addToSkipQueue(Alarm copy, long now) {
+        copy.time = Alarms.calculateAlarmTime(copy.hour, copy.minutes, copy.daysOfWeek,
+                SkipCalendar.get(copy.skipCalendarId), now);
+        if (copy.time != -1) {
+            mSkipQueue.add(copy);
+        }
+    }
+
+    /**
+     * Removes the alarm with the given id if it is in the model.
+     */
+    synchronized void remove(int id) {
+        removeLocked(id);
+        AlarmTimeline.onAlarmRemoved(id);
+    }
+
+    private void removeLocked(int id) {
+        final Alarm alarm = mAlarms.remove(id);
+        if (alarm == null) {
+            return;
+        }
+        if (alarm.time == 0 && alarm.skipCalendarId != 0) {
+            // Alarms are equal by id.
+            mSkipQueue.remove(alarm);
+        } else if (alarm.time == 0) {
+            mWheel.remove(alarm);
+        } else {
+            mQueue.remove(alarm);
+        }
+    }
+
+    /**
+     * Drops the model so that it is reloaded on next use.
+     */
+    synchronized void invalidate() {
+        mQueue.clear();
+        mWheel.clear();
+        mSkipQueue.clear();
+        mAlarms.clear();
+        mLoaded = false;
+        AlarmTimeline.invalidate();
+    }
+
+    /**
+     * Called when the time or timezone changed, which moves the next fire
+     * time of alarms with a skip calendar.
+     */
+    static void onClockChanged() {
+        final AlarmScheduler scheduler;
+        synchronized (AlarmScheduler.class) {
+            scheduler = sInstance;
+        }
+        if (scheduler != null) {
+            synchronized (scheduler) {
+                scheduler.mSkipQueueStale = true;
+            }
+        }
+    }
+
+    /**
+     * Recomputes the times in mSkipQueue that have passed, or all of them if
+     * the clock changed.
+     */
+    private void updateSkipQueue(long now) {
+        if (mSkipQueueStale) {
+            final ArrayList<Alarm> all = new ArrayList<Alarm>(mSkipQueue);
+            mSkipQueue.clear();
+            for (Alarm a : all) {
+                addToSkipQueue(a, now);
+            }
+            mSkipQueueStale = false;
+        }
+        while (!mSkipQueue.isEmpty() && mSkipQueue.peek().time < now) {
+            addToSkipQueue(mSkipQueue.poll(), now);
+        }
+    }
+
+    /**
+     * Returns a copy of the enabled alarm that fires next, with its time set
+     * to the fire time, or null if there is none.
+     *
+     * @param now current time in millis
+     * @param snoozedIds ids of snoozed alarms; these are skipped since their
+     *        snooze time overrides the scheduled time
+     * @param expired receives non-repeating alarms whose time has passed.
+     *        They are removed from the model and should be disabled.
+     * @param group if not null, receives copies of the other alarms that
+     *        fire in the same minute as the returned one
+     */
+    synchronized Alarm nextAlert(long now, Set<Integer> snoozedIds, List<Alarm> expired,
+            List<Alarm> group) {
+        ArrayList<Alarm> skipped = null;
+        Alarm next = null;
+        while (!mQueue.isEmpty()) {
+            final Alarm a = mQueue.peek();
+            if (snoozedIds.contains(a.id)) {
+                if (skipped == null) {
+                    skipped = new ArrayList<Alarm>();
+                }
+                skipped.add(mQueue.poll());
+                continue;
+            }
+            if (a.time < now) {
+                mQueue.poll();
+                mAlarms.remove(a.id);
+                expired.add(new Alarm(a));
+                continue;
+            }
+            next = a;
+            break;
+        }
+        if (skipped != null) {
+            mQueue.addAll(skipped);
+        }
+
+        updateSkipQueue(now);
+        Alarm skipping = null;
+        skipped = null;
+        while (!mSkipQueue.isEmpty()) {
+            final Alarm a = mSkipQueue.peek();
+            if (snoozedIds.contains(a.id)) {
+                if (skipped == null) {
+                    skipped = new ArrayList<Alarm>();
+                }
+                skipped.add(mSkipQueue.poll());
+                continue;
+            }
+            skipping = a;
+            break;
+        }
+        if (skipped != null) {
+            mSkipQueue.addAll(skipped);
+        }
+        if (skipping != null && (next == null || skipping.time < next.time)) {
+            next = skipping;
+        }
+
+        final ArrayList<Alarm> repeatingGroup = group == null ? null : new ArrayList<Alarm>();
+        final Alarm repeating = mWheel.next(now, snoozedIds, repeatingGroup);
+        final Alarm first;
+        if (repeating != null && (next == null || repeating.time < next.time)) {
+            first = repeating;
+        } else if (next != null) {
+            first = new Alarm(next);
+        } else {
+            return null;
+        }
+        if (group == null) {
+            return first;
+        }
+
+        final long end = endOfMinute(first.time);
+        if (repeating != null && repeating.time < end) {
+            if (repeating != first) group.add(repeating);
+            group.addAll(repeatingGroup);
+        }
+        // Other alarms of the same minute are at the head of the queues,
+        // after the first one.
+        addHeadToGroup(mQueue, first, end, now, snoozedIds, group);
+        addHeadToGroup(mSkipQueue, first, end, now, snoozedIds, group);
+        return first;
+    }
+
+    private static void addHeadToGroup(PriorityQueue<Alarm> queue, Alarm first, long end,
+            long now, Set<Integer> snoozedIds, List<Alarm> group) {
+        final ArrayList<Alarm> polled = new ArrayList<Alarm>();
+        while (!queue.isEmpty() && queue.peek().time < end) {
+            final Alarm a = queue.poll();
+            polled.add(a);
+            if (a.id != first.id && a.time >= now && !snoozedIds.contains(a.id)) {
+                group.add(new Alarm(a));
+            }
+        }
+        queue.addAll(polled);
+    }
+
+    /**
+     * Returns the start of the minute after the one the time falls in.
+     */
+    static long endOfMinute(long time) {
+        return time - time % ZoneOffsetTable.MINUTE_MILLIS + ZoneOffsetTable.MINUTE_MILLIS;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.content.ContentResolver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size snapshot of a scheduled alarm, sent with the alert intent in
+ * place of a marshalled Parcel.  The layout is versioned and does not depend
+ * on the Parcel format, so intents scheduled by an older version of the app
+ * still decode after an upgrade.  The full alarm is read from the database
+ * when the alert is received.
+ *
+ * Layout, big-endian:
+ * <pre>
+ *   byte  version
+ *   int   alarm id
+ *   int   schedule: bits 0-4 hour, 5-10 minutes, 11-17 days of week
+ *   long  fire time in UTC millis
+ *   int   hash of the label
+ * </pre>
+ */
+final class AlarmSnapshot {
+
+    static final byte VERSION = 1;
+    static final int SIZE = 1 + 4 + 4 + 8 + 4;
+
+    final int id;
+    final int schedule;
+    final long time;
+    final int labelHash;
+
+    private AlarmSnapshot(int id, int schedule, long time, int labelHash) {
+        this.id = id;
+        this.schedule = schedule;
+        this.time = time;
+        this.labelHash = labelHash;
+    }
+
+    static byte[] encode(Alarm alarm, long time) {
+        final int schedule = alarm.hour
+                | alarm.minutes << 5
+                | alarm.daysOfWeek.getCoded() << 11;
+        return ByteBuffer.allocate(SIZE)
+                .put(VERSION)
+                .putInt(alarm.id)
+                .putInt(schedule)
+                .putLong(time)
+                .putInt(labelHash(alarm.label))
+                .array();
+    }
+
+    /**
+     * Returns the snapshot in data, or null if it has an unknown version, the
+     * wrong size or a schedule no alarm can have.
+     */
+    static AlarmSnapshot decode(byte[] data) {
+        if (data == null || data.length != SIZE || data[0] != VERSION) {
+            return null;
+        }
+        final ByteBuffer in = ByteBuffer.wrap(data, 1, SIZE - 1);
+        final AlarmSnapshot snapshot =
+                new AlarmSnapshot(in.getInt(), in.getInt(), in.getLong(), in.getInt());
+        if ((snapshot.schedule >>> 18) != 0 || snapshot.getHour() > 23
+                || snapshot.getMinutes() > 59) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    int getHour() {
+        return schedule & 0x1f;
+    }
+
+    int getMinutes() {
+        return (schedule >> 5) & 0x3f;
+    }
+
+    int getDaysOfWeek() {
+        return (schedule >> 11) & 0x7f;
+    }
+
+    /**
+     * Reads the alarm from the database with its time set to the fire time.
+     * If the alarm has been deleted since it was scheduled, one is built
+     * from the snapshot with the default label and alert.
+     */
+    Alarm resolve(ContentResolver resolver) {
+        Alarm alarm = Alarms.getAlarm(resolver, id);
+        if (alarm == null) {
+            Log.v("Alarm id=" + id + " no longer exists, using the snapshot");
+            alarm = new Alarm();
+            alarm.id = id;
+            alarm.hour = getHour();
+            alarm.minutes = getMinutes();
+            alarm.daysOfWeek = new Alarm.DaysOfWeek(getDaysOfWeek());
+        } else if (labelHash(alarm.label) != labelHash) {
+            if (Log.LOGV) Log.v("Alarm id=" + id + " label changed since it was scheduled");
+        }
+        alarm.time = time;
+        return alarm;
+    }
+
+    private static int labelHash(String label) {
+        return label == null ? 0 : label.hashCode();
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorted stream of the upcoming fire times of all enabled and snoozed
+ * alarms.  Occurrences are computed lazily, as far ahead as they have been
+ * asked for, and cached.  Editing an alarm or a snooze only recomputes the
+ * occurrences of that alarm; a time or timezone change recomputes them all
+ * on next use.
+ *
+ * A snoozed alarm fires at its snooze time instead of its scheduled times
+ * before it, the same as in {@link Alarms#calculateNextAlert(Context)}.
+ */
+final class AlarmTimeline {
+
+    /**
+     * One time an alarm fires.
+     */
+    static final class Occurrence {
+        final int alarmId;
+        final long time;
+        final boolean snoozed;
+
+        Occurrence(int alarmId, long time, boolean snoozed) {
+            this.alarmId = alarmId;
+            this.time = time;
+            this.snoozed = snoozed;
+        }
+    }
+
+    private static final long NONE = Long.MAX_VALUE;
+
+    /**
+     * The schedule of one alarm, and a cursor over the occurrences of it
+     * that are not cached yet.
+     */
+    private static final class Source {
+        final int id;
+        boolean enabled;
+        int hour;
+        int minutes;
+        Alarm.DaysOfWeek daysOfWeek;
+        int skipCalendarId;
+        // Time stored in the database; 0 for repeating alarms.
+        long time;
+        // 0 when not snoozed.
+        long snoozeTime;
+
+        long next = NONE;
+        boolean nextSnoozed;
+
+        Source(int id) {
+            this.id = id;
+        }
+
+        void setSchedule(Alarm alarm, long time) {
+            enabled = true;
+            hour = alarm.hour;
+            minutes = alarm.minutes;
+            daysOfWeek = new Alarm.DaysOfWeek(alarm.daysOfWeek.getCoded());
+            skipCalendarId = alarm.skipCalendarId;
+            this.time = time;
+        }
+
+        /**
+         * Moves the cursor to the first occurrence at or after the time.
+         */
+        void start(long from) {
+            if (snoozeTime != 0 && snoozeTime >= from) {
+                next = snoozeTime;
+                nextSnoozed = true;
+            } else {
+                next = scheduledAfter(Math.max(from - 1, snoozeTime));
+                nextSnoozed = false;
+            }
+        }
+
+        void advance() {
+            next = scheduledAfter(next);
+            nextSnoozed = false;
+        }
+
+        private long scheduledAfter(long after) {
+            if (!enabled) {
+                return NONE;
+            }
+            // A time of 0 indicates this is a repeating alarm.
+            if (time == 0) {
+                final long next = Alarms.calculateAlarmTime(hour, minutes, daysOfWeek,
+                        SkipCalendar.get(skipCalendarId), after);
+                return next != -1 ? next : NONE;
+            }
+            return time > after ? time : NONE;
+        }
+    }
+
+    private static final Comparator<Source> NEXT_ORDER = new Comparator<Source>() {
+        @Override
+        public int compare(Source lhs, Source rhs) {
+            if (lhs.next < rhs.next) return -1;
+            if (lhs.next > rhs.next) return 1;
+            return 0;
+        }
+    };
+
+    private static AlarmTimeline sInstance;
+
+    // All fields are guarded by this.
+    private final HashMap<Integer, Source> mSources = new HashMap<Integer, Source>();
+    // Sources with occurrences at or after mHorizon, by their next one.
+    private final PriorityQueue<Source> mPending = new PriorityQueue<Source>(16, NEXT_ORDER);
+    // All occurrences in [mFrom, mHorizon), by time.
+    private final ArrayList<Occurrence> mOccurrences = new ArrayList<Occurrence>();
+    private long mFrom;
+    private long mHorizon;
+    // Set when the cached occurrences may be wrong for the current clock.
+    private boolean mStale = true;
+    // Read without the lock by peekInstance().
+    private volatile boolean mLoaded;
+
+    // Package-private for tests, which fill it with add() and addSnooze().
+    AlarmTimeline() {}
+
+    /**
+     * Returns the timeline, loading the enabled and snoozed alarms from the
+     * database the first time it is used (or after {@link #invalidate()}).
+     * Must not be called on the main thread.
+     */
+    static AlarmTimeline getInstance(Context context) {
+        final AlarmTimeline timeline;
+        synchronized (AlarmTimeline.class) {
+            if (sInstance == null) {
+                sInstance = new AlarmTimeline();
+            }
+            timeline = sInstance;
+        }
+        timeline.ensureLoaded(context);
+        return timeline;
+    }
+
+    /**
+     * Returns the timeline if it is loaded, or null.  Does not block on
+     * loading, so it is safe on the main thread.
+     */
+    static AlarmTimeline peekInstance() {
+        final AlarmTimeline timeline = getInstanceIfCreated();
+        return timeline != null && timeline.mLoaded ? timeline : null;
+    }
+
+    private static synchronized AlarmTimeline getInstanceIfCreated() {
+        return sInstance;
+    }
+
+    private synchronized void ensureLoaded(Context context) {
+        if (mLoaded) {
+            return;
+        }
+        SkipCalendar.ensureLoaded(context);
+        Cursor cursor = Alarms.getFilteredAlarmsCursor(context.getContentResolver());
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    do {
+                        final Alarm a = new Alarm(cursor);
+                        add(a, a.time);
+                    } while (cursor.moveToNext());
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        cursor = Alarms.getSnoozedAlarmsCursor(context.getContentResolver());
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    do {
+                        addSnooze(cursor.getInt(Alarm.Columns.ALARM_ID_INDEX),
+                                cursor.getLong(Alarm.SnoozeColumns.SNOOZE_TIME_INDEX));
+                    } while (cursor.moveToNext());
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        mStale = true;
+        mLoaded = true;
+        if (Log.LOGV) Log.v("AlarmTimeline loaded " + mSources.size() + " alarms");
+    }
+
+    /**
+     * Adds an enabled alarm while loading.
+     *
+     * @param time the alarm time stored in the database; 0 for repeating alarms
+     */
+    synchronized void add(Alarm alarm, long time) {
+        getSource(alarm.id).setSchedule(alarm, time);
+        mStale = true;
+    }
+
+    /**
+     * Adds the snooze of an alarm while loading.
+     */
+    synchronized void addSnooze(int id, long snoozeTime) {
+        getSource(id).snoozeTime = snoozeTime;
+        mStale = true;
+    }
+
+    /**
+     * Called when an alarm is enabled or changed.
+     *
+     * @param time the alarm time stored in the database; 0 for repeating alarms
+     */
+    static void onAlarmChanged(Alarm alarm, long time) {
+        final AlarmTimeline timeline = getInstanceIfCreated();
+        if (timeline != null) {
+            timeline.update(alarm.id, alarm, time, false, 0);
+        }
+    }
+
+    /**
+     * Called when an alarm is disabled or deleted.  Its snooze, if any, is
+     * kept until {@link #onSnoozeChanged(int, long)} clears it.
+     */
+    static void onAlarmRemoved(int id) {
+        final AlarmTimeline timeline = getInstanceIfCreated();
+        if (timeline != null) {
+            timeline.update(id, null, 0, false, 0);
+        }
+    }
+
+    /**
+     * Called when an alarm is snoozed or its snooze is cleared.
+     *
+     * @param snoozeTime the snooze time, or 0 if the snooze was cleared
+     */
+    static void onSnoozeChanged(int id, long snoozeTime) {
+        final AlarmTimeline timeline = getInstanceIfCreated();
+        if (timeline != null) {
+            timeline.update(id, null, 0, true, snoozeTime);
+        }
+    }
+
+    /**
+     * Called when the alarms or snoozes changed in ways the other callbacks
+     * do not describe.  The timeline is loaded again on next use.
+     */
+    static void invalidate() {
+        final AlarmTimeline timeline = getInstanceIfCreated();
+        if (timeline != null) {
+            synchronized (timeline) {
+                timeline.mSources.clear();
+                timeline.mLoaded = false;
+                timeline.mStale = true;
+            }
+        }
+    }
+
+    /**
+     * Called when the time or timezone changed.
+     */
+    static void onClockChanged() {
+        final AlarmTimeline timeline = getInstanceIfCreated();
+        if (timeline != null) {
+            synchronized (timeline) {
+                timeline.mStale = true;
+            }
+        }
+    }
+
+    private synchronized void update(int id, Alarm alarm, long time, boolean snooze,
+            long snoozeTime) {
+        if (!mLoaded) {
+            // Loading reads the change from the database.
+            return;
+        }
+        final Source source = getSource(id);
+        if (snooze) {
+            source.snoozeTime = snoozeTime;
+        } else if (alarm != null) {
+            source.setSchedule(alarm, time);
+        } else {
+            source.enabled = false;
+        }
+        if (!source.enabled && source.snoozeTime == 0) {
+            mSources.remove(id);
+        }
+        if (mStale) {
+            return;
+        }
+
+        // Drop the cached occurrences of the alarm and compute them again.
+        for (Iterator<Occurrence> it = mOccurrences.iterator(); it.hasNext(); ) {
+            if (it.next().alarmId == id) {
+                it.remove();
+            }
+        }
+        mPending.remove(source);
+        if (!mSources.containsKey(id)) {
+            return;
+        }
+        source.start(mFrom);
+        while (source.next < mHorizon) {
+            insert(new Occurrence(id, source.next, source.nextSnoozed));
+            source.advance();
+        }
+        if (source.next != NONE) {
+            mPending.add(source);
+        }
+    }
+
+    private Source getSource(int id) {
+        Source source = mSources.get(id);
+        if (source == null) {
+            source = new Source(id);
+            mSources.put(id, source);
+        }
+        return source;
+    }
+
+    private void insert(Occurrence occurrence) {
+        // After any occurrences at the same time.
+        mOccurrences.add(indexOf(occurrence.time + 1), occurrence);
+    }
+
+    /**
+     * Returns the index of the first cached occurrence at or after the time.
+     */
+    private int indexOf(long time) {
+        int low = 0;
+        int high = mOccurrences.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mOccurrences.get(mid).time < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Makes the cache start at the given time, dropping the occurrences
+     * before it, or recomputing everything if it started later or is stale.
+     */
+    private void moveTo(long from) {
+        if (mStale || from < mFrom) {
+            mOccurrences.clear();
+            mPending.clear();
+            for (Source source : mSources.values()) {
+                source.start(from);
+                if (source.next != NONE) {
+                    mPending.add(source);
+                }
+            }
+            mFrom = from;
+            mHorizon = from;
+            mStale = false;
+        } else if (from > mFrom) {
+            mOccurrences.subList(0, indexOf(from)).clear();
+            mFrom = from;
+            if (from > mHorizon) {
+                // The cursors of the pending sources are only known to be at
+                // or after the old horizon, so some may now be in the past.
+                // Move those forward to the new start.
+                while (!mPending.isEmpty() && mPending.peek().next < from) {
+                    final Source source = mPending.poll();
+                    source.start(from);
+                    if (source.next != NONE) {
+                        mPending.add(source);
+                    }
+                }
+                mHorizon = from;
+            }
+        }
+    }
+
+    /**
+     * Caches all occurrences before the time.
+     */
+    private void extendTo(long to) {
+        while (!mPending.isEmpty() && mPending.peek().next < to) {
+            final Source source = mPending.poll();
+            mOccurrences.add(new Occurrence(source.id, source.next, source.nextSnoozed));
+            source.advance();
+            if (source.next != NONE) {
+                mPending.add(source);
+            }
+        }
+        mHorizon = Math.max(mHorizon, to);
+    }
+
+    /**
+     * Returns the occurrences in [from, to), by time.
+     */
+    synchronized List<Occurrence> getOccurrences(long from, long to) {
+        moveTo(from);
+        extendTo(to);
+        return new ArrayList<Occurrence>(mOccurrences.subList(0, indexOf(to)));
+    }
+
+    /**
+     * Returns up to count occurrences at or after the time, by time.
+     */
+    synchronized List<Occurrence> getNext(long now, int count) {
+        moveTo(now);
+        while (mOccurrences.size() < count && !mPending.isEmpty()) {
+            extendTo(mPending.peek().next + 1);
+        }
+        return new ArrayList<Occurrence>(
+                mOccurrences.subList(0, Math.min(count, mOccurrences.size())));
+    }
+
+    /**
+     * Returns the first occurrence at or after the time, or null if no alarm
+     * is enabled or snoozed.
+     */
+    synchronized Occurrence getNext(long now) {
+        moveTo(now);
+        if (mOccurrences.isEmpty() && !mPending.isEmpty()) {
+            extendTo(mPending.peek().next + 1);
+        }
+        return mOccurrences.isEmpty() ? null : mOccurrences.get(0);
+    }
+
+    /**
+     * Returns the next time the alarm fires, or -1 if it is neither enabled
+     * nor snoozed.
+     */
+    synchronized long getNextTime(int id, long now) {
+        final Source source = mSources.get(id);
+        if (source == null) {
+            return -1;
+        }
+        moveTo(now);
+        for (Occurrence occurrence : mOccurrences) {
+            if (occurrence.alarmId == id) {
+                return occurrence.time;
+            }
+        }
+        // None cached, so the cursor of the alarm is at its next one.
+        return source.next == NONE ? -1 : source.next;
+    }
+
+    /**
+     * Returns when the alarm fires next if it is enabled as given, using the
+     * cached occurrences when they are for the same schedule.
+     */
+    static long getNextTime(Alarm alarm, long now) {
+        final AlarmTimeline timeline = peekInstance();
+        if (timeline != null) {
+            synchronized (timeline) {
+                final Source source = timeline.mSources.get(alarm.id);
+                if (source != null && source.enabled && source.snoozeTime == 0
+                        && source.hour == alarm.hour && source.minutes == alarm.minutes
+                        && source.daysOfWeek.getCoded() == alarm.daysOfWeek.getCoded()
+                        && source.skipCalendarId == alarm.skipCalendarId) {
+                    final long time = timeline.getNextTime(alarm.id, now);
+                    if (time != -1) {
+                        return time;
+                    }
+                }
+            }
+        }
+        final long time = Alarms.calculateAlarmTime(alarm.hour, alarm.minutes, alarm.daysOfWeek,
+                SkipCalendar.get(alarm.skipCalendarId), now);
+        return time != -1 ? time
+                : Alarms.calculateAlarmTime(alarm.hour, alarm.minutes, alarm.daysOfWeek, now);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Index of repeating alarms keyed by minute of the week.  A repeating alarm
+ * fires at the same hour and minute on each day set in its DaysOfWeek, so it
+ * occupies up to seven of the 10,080 slots of the week.  The next occurrence
+ * is found by scanning a bitmap of occupied slots forward from now.
+ *
+ * Slots are numbered in local wall-clock time starting on Monday at 00:00,
+ * matching the bit order of Alarm.DaysOfWeek, so the index does not change
+ * when the time or timezone does.  Results match
+ * {@link Alarms#calculateAlarmTime(int, int, Alarm.DaysOfWeek, long)}.
+ */
+final class AlarmTimingWheel {
+
+    static final int MINUTES_PER_DAY = 24 * 60;
+    static final int SLOTS = 7 * MINUTES_PER_DAY;
+
+    private final long[] mBits = new long[(SLOTS + 63) / 64];
+    private final HashMap<Integer, ArrayList<Alarm>> mSlots =
+            new HashMap<Integer, ArrayList<Alarm>>();
+
+    /**
+     * Adds a repeating alarm to every slot it fires in.
+     */
+    void add(Alarm alarm) {
+        for (int day = 0; day < 7; day++) {
+            if (!alarm.daysOfWeek.isSet(day)) continue;
+            final int slot = slotOf(day, alarm.hour, alarm.minutes);
+            ArrayList<Alarm> alarms = mSlots.get(slot);
+            if (alarms == null) {
+                alarms = new ArrayList<Alarm>(1);
+                mSlots.put(slot, alarms);
+                mBits[slot >> 6] |= 1L << slot;
+            }
+            alarms.add(alarm);
+        }
+    }
+
+    /**
+     * Removes an alarm previously passed to {@link #add(Alarm)}.  The alarm
+     * must still have the hour, minutes and days it was added with.
+     */
+    void remove(Alarm alarm) {
+        for (int day = 0; day < 7; day++) {
+            if (!alarm.daysOfWeek.isSet(day)) continue;
+            final int slot = slotOf(day, alarm.hour, alarm.minutes);
+            final ArrayList<Alarm> alarms = mSlots.get(slot);
+            if (alarms == null) continue;
+            alarms.remove(alarm);
+            if (alarms.isEmpty()) {
+                mSlots.remove(slot);
+                mBits[slot >> 6] &= ~(1L << slot);
+            }
+        }
+    }
+
+    void clear() {
+        mSlots.clear();
+        Arrays.fill(mBits, 0);
+    }
+
+    /**
+     * Returns the next repeating alarm to fire after now, with its time set
+     * to the fire time, or null if there is none.
+     *
+     * @param snoozedIds ids of alarms to skip
+     * @param group if not null, receives copies of the other alarms that
+     *        fire at the same time, with their time set
+     */
+    Alarm next(long now, Set<Integer> snoozedIds, List<Alarm> group) {
+        if (mSlots.isEmpty()) {
+            return null;
+        }
+        final long local = now + ZoneOffsetTable.getOffset(now);
+        final long today = Alarms.floorDiv(local, ZoneOffsetTable.DAY_MILLIS);
+        final int nowSlot = Alarms.dayOfWeek(today) * MINUTES_PER_DAY + (int)
+                ((local - today * ZoneOffsetTable.DAY_MILLIS) / ZoneOffsetTable.MINUTE_MILLIS);
+        // Wall-clock millis of slot 0 of this week.  Positions past SLOTS
+        // are the slots of next week.
+        final long weekStart = (today - Alarms.dayOfWeek(today)) * ZoneOffsetTable.DAY_MILLIS;
+
+        // An alarm in the current minute has already fired, so scan the rest
+        // of the week first and then wrap around up to and including now.
+        // Around a DST change a later slot can fire sooner: a time in the
+        // gap is moved forward past the slots after it.  So once a time is
+        // found, the slots whose wall-clock time could still resolve to an
+        // earlier instant are scanned as well.
+        final int end = nowSlot + SLOTS + 1;
+        long time = Long.MAX_VALUE;
+        long maxOffset = 0;
+        int first = -1;
+        for (int pos = nextPosition(nowSlot + 1, end); pos >= 0;
+                pos = nextPosition(pos + 1, end)) {
+            final long wall = weekStart + pos * ZoneOffsetTable.MINUTE_MILLIS;
+            if (first >= 0 && wall - maxOffset > time) break;
+            if (firstNotSnoozed(mSlots.get(pos % SLOTS), snoozedIds) == null) continue;
+            final long t = ZoneOffsetTable.localToUtc(wall, now);
+            if (t != -1 && t < time) {
+                time = t;
+                maxOffset = Math.max(ZoneOffsetTable.getOffset(t - ZoneOffsetTable.DAY_MILLIS),
+                        ZoneOffsetTable.getOffset(t + ZoneOffsetTable.DAY_MILLIS));
+                if (first < 0) first = pos;
+            }
+        }
+        if (first < 0) {
+            return null;
+        }
+
+        // Collect the alarms of every slot that resolves to that time.
+        Alarm next = null;
+        for (int pos = first; pos >= 0; pos = nextPosition(pos + 1, end)) {
+            final long wall = weekStart + pos * ZoneOffsetTable.MINUTE_MILLIS;
+            if (wall - maxOffset > time) break;
+            if (ZoneOffsetTable.localToUtc(wall, now) != time) continue;
+            final ArrayList<Alarm> alarms = mSlots.get(pos % SLOTS);
+            for (int i = 0; i < alarms.size(); i++) {
+                final Alarm a = alarms.get(i);
+                if (snoozedIds.contains(a.id)) continue;
+                final Alarm copy = new Alarm(a);
+                copy.time = time;
+                if (next == null) {
+                    next = copy;
+                } else if (group != null) {
+                    group.add(copy);
+                } else {
+                    return next;
+                }
+            }
+        }
+        return next;
+    }
+
+    private static Alarm firstNotSnoozed(ArrayList<Alarm> alarms, Set<Integer> snoozedIds) {
+        for (int i = 0; i < alarms.size(); i++) {
+            final Alarm a = alarms.get(i);
+            if (!snoozedIds.contains(a.id)) {
+                return a;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first occupied slot in [from, to), or -1.
+     */
+    private int nextSetBit(int from, int to) {
+        if (from >= to) {
+            return -1;
+        }
+        int word = from >> 6;
+        long bits = mBits[word] & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                final int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+                return slot < to ? slot : -1;
+            }
+            if (++word == mBits.length || (word << 6) >= to) {
+                return -1;
+            }
+            bits = mBits[word];
+        }
+    }
+
+    /**
+     * Returns the first occupied position in [from, to), where positions
+     * from SLOTS on wrap around to slot 0, or -1.
+     */
+    private int nextPosition(int from, int to) {
+        if (from < SLOTS) {
+            final int slot = nextSetBit(from, Math.min(to, SLOTS));
+            if (slot >= 0) return slot;
+            from = SLOTS;
+        }
+        final int slot = nextSetBit(from - SLOTS, to - SLOTS);
+        return slot < 0 ? -1 : slot + SLOTS;
+    }
+
+    private static int slotOf(int day, int hour, int minute) {
+        return day * MINUTES_PER_DAY + hour * 60 + minute;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serial write-behind queue for alarm edits made in the alarm list.  Updates
+ * are held for a short while and coalesced per alarm id, the last write
+ * winning, then written in one provider transaction followed by a single
+ * setNextAlert.  Adds and deletes should run on {@link #getExecutor()} so
+ * they stay ordered with the updates.
+ */
+final class AlarmWriteQueue {
+
+    // How long an update waits for more updates before it is written.
+    private static final long COALESCE_DELAY_MS = 100;
+
+    private static AlarmWriteQueue sInstance;
+
+    private final Context mContext;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    // Pending updates by alarm id.  Guarded by this.
+    private final LinkedHashMap<Integer, Alarm> mPending =
+            new LinkedHashMap<Integer, Alarm>();
+    private boolean mFlushScheduled;
+
+    // Counters, guarded by this.
+    private int mMaxDepth;
+    private int mCoalesced;
+    private int mBatches;
+    private int mWrites;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private AlarmWriteQueue(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    static synchronized AlarmWriteQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AlarmWriteQueue(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the serial executor the writes run on.
+     */
+    Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Queues an update of the alarm.  The alarm is copied, so later changes
+     * to it need another call.
+     */
+    synchronized void update(Alarm alarm) {
+        if (mPending.put(alarm.id, new Alarm(alarm)) != null) {
+            mCoalesced++;
+        }
+        mMaxDepth = Math.max(mMaxDepth, mPending.size());
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mExecutor.schedule(mFlush, COALESCE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Drops a pending update of the alarm.  Called before it is deleted.
+     */
+    synchronized void cancel(int id) {
+        mPending.remove(id);
+    }
+
+    private void flush() {
+        final ArrayList<Alarm> batch;
+        synchronized (this) {
+            batch = new ArrayList<Alarm>(mPending.values());
+            mPending.clear();
+            mFlushScheduled = false;
+            mBatches++;
+            mWrites += batch.size();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (Log.LOGV) Log.v("AlarmWriteQueue writing " + batch.size() + " alarms");
+        Alarms.setAlarms(mContext, batch);
+    }
+
+    /**
+     * Number of updates waiting to be written.
+     */
+    synchronized int getQueueDepth() {
+        return mPending.size();
+    }
+
+    /**
+     * Largest number of updates that have waited at once.
+     */
+    synchronized int getMaxQueueDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * Number of updates replaced by a later update of the same alarm before
+     * they were written.
+     */
+    synchronized int getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    synchronized int getBatchCount() {
+        return mBatches;
+    }
+
+    synchronized int getWriteCount() {
+        return mWrites;
+    }
+}
@@ -19,22 +19,30 @@ package com.android.deskclock;
 import android.app.AlarmManager;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.Parcel;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
+import android.text.format.DateUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -66,6 +74,10 @@ public class Alarms {
     // to it handling ALARM_DISMISS_ACTION cancelled
     public static final String ALARM_SNOOZE_CANCELLED = "com.android.deskclock.ALARM_SNOOZE_CANCELLED";
 
+    // Sent by AlarmManager a few seconds before ALARM_ALERT_ACTION, when the
+    // alarm warm-up setting is on, so AlarmKlaxon can prepare the ringtone.
+    public static final String ALARM_WARM_UP_ACTION = "com.android.deskclock.ALARM_WARM_UP";
+
     // A broadcast sent every time the next alarm time is set in the system
     public static final String NEXT_ALARM_TIME_SET = "com.android.deskclock.NEXT_ALARM_TIME_SET";
 
@@ -93,8 +105,25 @@ public class Alarms {
     // This extra is the raw Alarm object data. It is used in the
     // AlarmManagerService to avoid a ClassNotFoundException when filling in
     // the Intent extras.
+    // Older versions sent a marshalled Parcel under this key, which
+    // AlarmReceiver still reads from intents scheduled before an upgrade.
     public static final String ALARM_RAW_DATA = "intent.extra.alarm_raw";
 
+    // This extra is an AlarmSnapshot of the alarm, used for the same reason
+    // as ALARM_RAW_DATA.
+    public static final String ALARM_SNAPSHOT_DATA = "intent.extra.alarm_snapshot";
+
+    // Ids of the other alarms due in the same minute as the one in
+    // ALARM_SNAPSHOT_DATA.  They fire together, in one alert.
+    public static final String ALARM_GROUP_IDS = "intent.extra.alarm_group_ids";
+
+    // The other alarms firing with the one in ALARM_INTENT_EXTRA, as an
+    // ArrayList of Alarm.  Used by the intents within the app.
+    public static final String ALARM_GROUP_EXTRA = "intent.extra.alarm_group";
+
+    // Off unless the user turns it on in the settings.
+    static final String DEFAULT_WARM_UP_SECONDS = "0";
+
     public static final String PREF_SNOOZE_IDS = "snooze_ids";
     public static final String PREF_SNOOZE_TIME = "snooze_time";
 
@@ -107,6 +136,15 @@ public class Alarms {
 
     final static int INVALID_ALARM_ID = -1;
 
+    // The next alert last set by setNextAlert, so that unchanged alerts are
+    // not committed again.  Guarded by Alarms.class.
+    private static boolean sHasCommittedAlert;
+    private static Alarm sCommittedAlarm;
+    private static String sCommittedTimeString;
+    private static int[] sCommittedGroupIds;
+    private static int sCommits;
+    private static int sSkippedCommits;
+
     /**
      * Creates a new Alarm and fills in the given alarm's id.
      */
@@ -118,12 +156,52 @@ public class Alarms {
 
         long timeInMillis = calculateAlarm(alarm);
         if (alarm.enabled) {
+            AlarmScheduler.getInstance(context).put(alarm,
+                    values.getAsLong(Alarm.Columns.ALARM_TIME));
             clearSnoozeIfNeeded(context, timeInMillis);
         }
         setNextAlert(context);
         return timeInMillis;
     }
 
+    /**
+     * Creates all of the given alarms in a single provider transaction and
+     * fills in their ids.  Sets the next alert once at the end.
+     */
+    public static void addAlarms(Context context, List<Alarm> alarms) {
+        final ContentValues[] values = new ContentValues[alarms.size()];
+        final ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(alarms.size());
+        for (int i = 0; i < values.length; i++) {
+            values[i] = createContentValues(alarms.get(i));
+            ops.add(ContentProviderOperation.newInsert(Alarm.Columns.CONTENT_URI)
+                    .withValues(values[i]).build());
+        }
+
+        final ContentProviderResult[] results;
+        try {
+            results = context.getContentResolver().applyBatch(
+                    Alarm.Columns.CONTENT_URI.getAuthority(), ops);
+        } catch (RemoteException e) {
+            Log.e("Error adding alarms", e);
+            return;
+        } catch (OperationApplicationException e) {
+            Log.e("Error adding alarms", e);
+            return;
+        }
+
+        final AlarmScheduler scheduler = AlarmScheduler.getInstance(context);
+        for (int i = 0; i < results.length; i++) {
+            final Alarm alarm = alarms.get(i);
+            alarm.id = (int) ContentUris.parseId(results[i].uri);
+            if (alarm.enabled) {
+                scheduler.put(alarm, values[i].getAsLong(Alarm.Columns.ALARM_TIME));
+                clearSnoozeIfNeeded(context, calculateAlarm(alarm));
+            }
+        }
+        setNextAlert(context);
+    }
+
     /**
      * Removes an existing Alarm.  If this alarm is snoozing, disables
      * snooze.  Sets next alert.
@@ -137,16 +215,69 @@ public class Alarms {
 
         Uri uri = ContentUris.withAppendedId(Alarm.Columns.CONTENT_URI, alarmId);
         contentResolver.delete(uri, "", null);
+        AlarmScheduler.getInstance(context).remove(alarmId);
 
         setNextAlert(context);
     }
 
 
-    public static CursorLoader getAlarmsCursorLoader(Context context) {
-        return new CursorLoader(context, Alarm.Columns.CONTENT_URI,
+    /**
+     * Returns a loader for one page of the alarm list, in the default sort
+     * order.
+     *
+     * @param after sort key from {@link #getSortKey(Cursor)} the page starts
+     *        after, or null to start at the first alarm
+     * @param through sort key the page ends at, inclusive, or null for none
+     * @param limit maximum number of alarms in the page, or 0 for no limit
+     */
+    public static CursorLoader getAlarmsCursorLoader(Context context, int[] after,
+            int[] through, int limit) {
+        final Uri.Builder builder = Alarm.Columns.CONTENT_URI.buildUpon();
+        if (after != null) {
+            builder.appendQueryParameter(Alarm.Columns.PARAM_AFTER, formatSortKey(after));
+        }
+        if (through != null) {
+            builder.appendQueryParameter(Alarm.Columns.PARAM_THROUGH, formatSortKey(through));
+        }
+        if (limit > 0) {
+            builder.appendQueryParameter(Alarm.Columns.PARAM_LIMIT, Integer.toString(limit));
+        }
+        return new CursorLoader(context, builder.build(),
                 Alarm.Columns.ALARM_QUERY_COLUMNS, null, null, Alarm.Columns.DEFAULT_SORT_ORDER);
     }
 
+    /**
+     * Returns the sort key of the alarm at the current position of a cursor
+     * over ALARM_QUERY_COLUMNS.
+     */
+    public static int[] getSortKey(Cursor cursor) {
+        return new int[] {
+                cursor.getInt(Alarm.Columns.ALARM_HOUR_INDEX),
+                cursor.getInt(Alarm.Columns.ALARM_MINUTES_INDEX),
+                cursor.getInt(Alarm.Columns.ALARM_ID_INDEX) };
+    }
+
+    private static String formatSortKey(int[] key) {
+        return key[0] + "," + key[1] + "," + key[2];
+    }
+
+    /**
+     * Queries the enabled alarms that fire at or after start and before end,
+     * such as the ones a widget or notification shows for the next hours.
+     * Days skipped by a skip calendar are not taken into account.
+     *
+     * @return cursor over ALARM_QUERY_COLUMNS in the default sort order
+     */
+    public static Cursor getAlarmsFiringBetween(ContentResolver contentResolver, long start,
+            long end) {
+        final Uri uri = Alarm.Columns.FIRING_URI.buildUpon()
+                .appendQueryParameter(Alarm.Columns.PARAM_START, Long.toString(start))
+                .appendQueryParameter(Alarm.Columns.PARAM_END, Long.toString(end))
+                .build();
+        return contentResolver.query(uri, Alarm.Columns.ALARM_QUERY_COLUMNS,
+                null, null, Alarm.Columns.DEFAULT_SORT_ORDER);
+    }
+
     /**
      * Queries all alarms
      * @return cursor over all alarms
@@ -157,6 +288,15 @@ public class Alarms {
                 null, null, Alarm.Columns.DEFAULT_SORT_ORDER);
     }
 
+    /**
+     * Queries snoozed alarms joined with their snooze time, earliest first.
+     */
+    static Cursor getSnoozedAlarmsCursor(ContentResolver contentResolver) {
+        return contentResolver.query(Alarm.SnoozeColumns.SNOOZED_ALARMS_URI,
+                Alarm.SnoozeColumns.SNOOZED_ALARM_QUERY_COLUMNS, null, null,
+                Alarm.SnoozeColumns.SNOOZE_TIME + " ASC");
+    }
+
     // public method to get a more limited set of alarms from the database.
     public static Cursor getFilteredAlarmsCursor(
             ContentResolver contentResolver) {
@@ -166,7 +306,7 @@ public class Alarms {
     }
 
     public static ContentValues createContentValues(Alarm alarm) {
-        ContentValues values = new ContentValues(8);
+        ContentValues values = new ContentValues(9);
         // Set the alarm_time value if this alarm does not repeat. This will be
         // used later to disable expire alarms.
         long time = 0;
@@ -186,6 +326,7 @@ public class Alarms {
         values.put(Alarm.Columns.DAYS_OF_WEEK, alarm.daysOfWeek.getCoded());
         values.put(Alarm.Columns.VIBRATE, alarm.vibrate);
         values.put(Alarm.Columns.MESSAGE, alarm.label);
+        values.put(Alarm.Columns.SKIP_CALENDAR, alarm.skipCalendarId);
 
         // A null alert Uri indicates a silent alarm.
         values.put(Alarm.Columns.ALERT, alarm.alert == null ? ALARM_ALERT_SILENT
@@ -197,17 +338,27 @@ public class Alarms {
     public static void clearSnoozeIfNeeded(Context context, long alarmTime) {
         // If this alarm fires before the next snooze, clear the snooze to
         // enable this alarm.
-        SharedPreferences prefs = context.getSharedPreferences(PREFERENCES, 0);
-
-        // Get the list of snoozed alarms
-        final Set<String> snoozedIds = prefs.getStringSet(PREF_SNOOZE_IDS, new HashSet<String>());
-        for (String snoozedAlarm : snoozedIds) {
-            final long snoozeTime = prefs.getLong(getAlarmPrefSnoozeTimeKey(snoozedAlarm), 0);
-            if (alarmTime < snoozeTime) {
-                final int alarmId = Integer.parseInt(snoozedAlarm);
-                clearSnoozePreference(context, prefs, alarmId);
+        final ContentResolver cr = context.getContentResolver();
+        final String where = Alarm.SnoozeColumns.SNOOZE_TIME + ">?";
+        final String[] whereArgs = { Long.toString(alarmTime) };
+        final Cursor cursor = cr.query(Alarm.SnoozeColumns.CONTENT_URI,
+                new String[] { Alarm.SnoozeColumns.ALARM_ID }, where, whereArgs, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return;
             }
+            final NotificationManager nm = (NotificationManager)
+                    context.getSystemService(Context.NOTIFICATION_SERVICE);
+            do {
+                nm.cancel(cursor.getInt(0));
+            } while (cursor.moveToNext());
+        } finally {
+            cursor.close();
         }
+        cr.delete(Alarm.SnoozeColumns.CONTENT_URI, where, whereArgs);
     }
 
     /**
@@ -246,9 +397,66 @@ public class Alarms {
             return rowsUpdated;
         }
 
+        long timeInMillis = onAlarmUpdated(context, alarm, values);
+
+        setNextAlert(context);
+
+        return timeInMillis;
+    }
+
+    /**
+     * Updates all of the given alarms in a single provider transaction and
+     * sets the next alert once at the end.
+     */
+    public static void setAlarms(Context context, List<Alarm> alarms) {
+        final ContentValues[] values = new ContentValues[alarms.size()];
+        final ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(alarms.size());
+        for (int i = 0; i < values.length; i++) {
+            final Alarm alarm = alarms.get(i);
+            values[i] = createContentValues(alarm);
+            ops.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(Alarm.Columns.CONTENT_URI, alarm.id))
+                    .withValues(values[i]).build());
+        }
+
+        final ContentProviderResult[] results;
+        try {
+            results = context.getContentResolver().applyBatch(
+                    Alarm.Columns.CONTENT_URI.getAuthority(), ops);
+        } catch (RemoteException e) {
+            Log.e("Error updating alarms", e);
+            return;
+        } catch (OperationApplicationException e) {
+            Log.e("Error updating alarms", e);
+            return;
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            final Alarm alarm = alarms.get(i);
+            if (results[i].count < 1) {
+                Log.e("Error updating alarm " + alarm);
+                continue;
+            }
+            onAlarmUpdated(context, alarm, values[i]);
+        }
+        setNextAlert(context);
+    }
+
+    /**
+     * Brings the scheduler and snoozes in line with an alarm that was just
+     * written with the given values.
+     * @return Time when the alarm will fire.
+     */
+    private static long onAlarmUpdated(Context context, Alarm alarm, ContentValues values) {
         long timeInMillis = calculateAlarm(alarm);
 
-        if (alarm.enabled) {
+        final AlarmScheduler scheduler = AlarmScheduler.getInstance(context);
+        if (!alarm.enabled) {
+            scheduler.remove(alarm.id);
+        } else {
+            scheduler.put(alarm, values.getAsLong(Alarm.Columns.ALARM_TIME));
+
             // Disable the snooze if we just changed the snoozed alarm. This
             // only does work if the snoozed alarm is the same as the given
             // alarm.
@@ -260,9 +468,6 @@ public class Alarms {
             // have the modified alarm fire next.
             clearSnoozeIfNeeded(context, timeInMillis);
         }
-
-        setNextAlert(context);
-
         return timeInMillis;
     }
 
@@ -279,6 +484,33 @@ public class Alarms {
         setNextAlert(context);
     }
 
+    /**
+     * Disables the alarms that do not repeat after they fired together, then
+     * sets the next alert once.
+     */
+    static void disableFiredAlarms(final Context context, List<Alarm> alarms) {
+        for (Alarm alarm : alarms) {
+            if (!alarm.daysOfWeek.isRepeatSet()) {
+                enableAlarmInternal(context, alarm.id, false);
+            }
+        }
+        setNextAlert(context);
+    }
+
+    /**
+     * Returns the labels of an alert's alarms, for its title.
+     */
+    static String getAlertLabel(Context context, Alarm alarm, List<Alarm> group) {
+        if (group == null || group.isEmpty()) {
+            return alarm.getLabelOrDefault(context);
+        }
+        final StringBuilder sb = new StringBuilder(alarm.getLabelOrDefault(context));
+        for (Alarm a : group) {
+            sb.append(", ").append(a.getLabelOrDefault(context));
+        }
+        return sb.toString();
+    }
+
     public static void enableAlarmInternal(final Context context,
             final int id, boolean enabled) {
         enableAlarmInternal(context, getAlarm(context.getContentResolver(), id),
@@ -297,8 +529,8 @@ public class Alarms {
 
         // If we are enabling the alarm, calculate alarm time since the time
         // value in Alarm may be old.
+        long time = 0;
         if (enabled) {
-            long time = 0;
             if (!alarm.daysOfWeek.isRepeatSet()) {
                 time = calculateAlarm(alarm);
             }
@@ -310,35 +542,55 @@ public class Alarms {
 
         resolver.update(ContentUris.withAppendedId(
                 Alarm.Columns.CONTENT_URI, alarm.id), values, null, null);
+
+        final AlarmScheduler scheduler = AlarmScheduler.getInstance(context);
+        if (enabled) {
+            scheduler.put(alarm, time);
+        } else {
+            scheduler.remove(alarm.id);
+        }
     }
 
     public static Alarm calculateNextAlert(final Context context) {
-        long minTime = Long.MAX_VALUE;
-        long now = System.currentTimeMillis();
-        final SharedPreferences prefs = context.getSharedPreferences(PREFERENCES, 0);
+        return calculateNextAlert(context, null);
+    }
 
-        Set<Alarm> alarms = new HashSet<Alarm>();
+    /**
+     * Returns the alarm that fires next, or null if there is none.
+     *
+     * @param group if not null, receives the other alarms, scheduled or
+     *        snoozed, that are due in the same minute.  They fire together
+     *        with the returned alarm.
+     */
+    static Alarm calculateNextAlert(final Context context, List<Alarm> group) {
+        long now = System.currentTimeMillis();
 
-        // We need to to build the list of alarms from both the snoozed list and the scheduled
+        // We need to to build the next alarm from both the snoozed list and the scheduled
         // list.  For a non-repeating alarm, when it goes of, it becomes disabled.  A snoozed
         // non-repeating alarm is not in the active list in the database.
 
-        // first go through the snoozed alarms
-        final Set<String> snoozedIds = prefs.getStringSet(PREF_SNOOZE_IDS, new HashSet<String>());
-        for (String snoozedAlarm : snoozedIds) {
-            final int alarmId = Integer.parseInt(snoozedAlarm);
-            final Alarm a = getAlarm(context.getContentResolver(), alarmId);
-            alarms.add(a);
-        }
-
-        // Now add the scheduled alarms
-        final Cursor cursor = getFilteredAlarmsCursor(context.getContentResolver());
+        // first go through the snoozed alarms, which are joined with their
+        // snooze time and sorted by it.
+        final Set<Integer> snoozedIds = new HashSet<Integer>();
+        final List<Alarm> expired = new ArrayList<Alarm>();
+        final List<Alarm> snoozed = new ArrayList<Alarm>();
+        final Cursor cursor = getSnoozedAlarmsCursor(context.getContentResolver());
         if (cursor != null) {
             try {
                 if (cursor.moveToFirst()) {
                     do {
                         final Alarm a = new Alarm(cursor);
-                        alarms.add(a);
+                        // The time in the database is either 0 (repeating) or a
+                        // specific time for a non-repeating alarm. Replace it with
+                        // the snooze time so the AlarmReceiver has the right time
+                        // to compare.
+                        a.time = cursor.getLong(Alarm.SnoozeColumns.SNOOZE_TIME_INDEX);
+                        snoozedIds.add(a.id);
+                        if (a.time < now) {
+                            expired.add(a);
+                        } else if (snoozed.isEmpty() || group != null) {
+                            snoozed.add(a);
+                        }
                     } while (cursor.moveToNext());
                 }
             } finally {
@@ -346,27 +598,30 @@ public class Alarms {
             }
         }
 
-        Alarm alarm = null;
+        // Now take the earliest scheduled alarm that is not snoozed
+        final List<Alarm> scheduledGroup = group == null ? null : new ArrayList<Alarm>();
+        Alarm alarm = AlarmScheduler.getInstance(context).nextAlert(now, snoozedIds, expired,
+                scheduledGroup);
+        for (Alarm a : expired) {
+            Log.v("Disabling expired alarm set for " + Log.formatTime(a.time));
+            // Expired alarm, disable it and move along.
+            enableAlarmInternal(context, a, false);
+        }
 
-        for (Alarm a : alarms) {
-            // A time of 0 indicates this is a repeating alarm, so
-            // calculate the time to get the next alert.
-            if (a.time == 0) {
-                a.time = calculateAlarm(a);
+        if (!snoozed.isEmpty() && (alarm == null || snoozed.get(0).time < alarm.time)) {
+            if (scheduledGroup != null && alarm != null) {
+                scheduledGroup.add(alarm);
             }
+            alarm = snoozed.get(0);
+        }
 
-            // Update the alarm if it has been snoozed
-            updateAlarmTimeForSnooze(prefs, a);
-
-            if (a.time < now) {
-                Log.v("Disabling expired alarm set for " + Log.formatTime(a.time));
-                // Expired alarm, disable it and move along.
-                enableAlarmInternal(context, a, false);
-                continue;
+        if (group != null && alarm != null) {
+            final long end = AlarmScheduler.endOfMinute(alarm.time);
+            for (Alarm a : scheduledGroup) {
+                if (a != alarm && a.time < end) group.add(a);
             }
-            if (a.time < minTime) {
-                minTime = a.time;
-                alarm = a;
+            for (Alarm a : snoozed) {
+                if (a != alarm && a.time < end) group.add(a);
             }
         }
 
@@ -378,24 +633,14 @@ public class Alarms {
      * boot.
      */
     public static void disableExpiredAlarms(final Context context) {
-        Cursor cur = getFilteredAlarmsCursor(context.getContentResolver());
-        long now = System.currentTimeMillis();
-
-        try {
-            if (cur.moveToFirst()) {
-                do {
-                    Alarm alarm = new Alarm(cur);
-                    // A time of 0 means this alarm repeats. If the time is
-                    // non-zero, check if the time is before now.
-                    if (alarm.time != 0 && alarm.time < now) {
-                        Log.v("Disabling expired alarm set for " +
-                              Log.formatTime(alarm.time));
-                        enableAlarmInternal(context, alarm, false);
-                    }
-                } while (cur.moveToNext());
-            }
-        } finally {
-            cur.close();
+        final Bundle result = context.getContentResolver().call(Alarm.Columns.CONTENT_URI,
+                AlarmProvider.METHOD_DISABLE_EXPIRED,
+                Long.toString(System.currentTimeMillis()), null);
+        final int count = result == null ? 0 : result.getInt(AlarmProvider.EXTRA_COUNT);
+        if (count > 0) {
+            Log.v("Disabled " + count + " expired alarms");
+            // The rows changed underneath the scheduler.
+            AlarmScheduler.getInstance(context).invalidate();
         }
     }
 
@@ -405,14 +650,86 @@ public class Alarms {
      * otherwise loads all alarms, activates next alert.
      */
     public static void setNextAlert(final Context context) {
-        final Alarm alarm = calculateNextAlert(context);
+        final List<Alarm> group = new ArrayList<Alarm>();
+        final Alarm alarm = calculateNextAlert(context, group);
+        // Load the timeline here, off the main thread, so the clock views can
+        // read the next alarm from it.
+        AlarmTimeline.getInstance(context);
+        String timeString = "";
         if (alarm != null) {
-            enableAlert(context, alarm, alarm.time);
-        } else {
-            disableAlert(context);
+            Calendar c = Calendar.getInstance();
+            c.setTimeInMillis(alarm.time);
+            timeString = formatDayAndTime(context, c);
+        }
+        final int[] groupIds = new int[group.size()];
+        for (int i = 0; i < groupIds.length; i++) {
+            groupIds[i] = group.get(i).id;
+        }
+        Arrays.sort(groupIds);
+
+        synchronized (Alarms.class) {
+            if (sHasCommittedAlert && isSameAlert(sCommittedAlarm, alarm)
+                    && sCommittedTimeString.equals(timeString)
+                    && Arrays.equals(sCommittedGroupIds, groupIds)) {
+                // AlarmManager, the status bar and the system settings already
+                // have this alert.
+                sSkippedCommits++;
+                if (Log.LOGV) Log.v("Next alert unchanged, skipped " + sSkippedCommits
+                        + " of " + (sSkippedCommits + sCommits) + " commits");
+                return;
+            }
+
+            if (alarm != null) {
+                enableAlert(context, alarm, alarm.time, timeString, groupIds);
+            } else {
+                disableAlert(context);
+            }
+            Intent i = new Intent(NEXT_ALARM_TIME_SET);
+            context.sendBroadcast(i);
+
+            sHasCommittedAlert = true;
+            sCommittedAlarm = alarm;
+            sCommittedTimeString = timeString;
+            sCommittedGroupIds = groupIds;
+            sCommits++;
         }
-        Intent i = new Intent(NEXT_ALARM_TIME_SET);
-        context.sendBroadcast(i);
+    }
+
+    /**
+     * Returns true if both alarms are null, or carry the same data.
+     */
+    private static boolean isSameAlert(Alarm a, Alarm b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.id == b.id
+                && a.time == b.time
+                && a.enabled == b.enabled
+                && a.hour == b.hour
+                && a.minutes == b.minutes
+                && a.daysOfWeek.getCoded() == b.daysOfWeek.getCoded()
+                && a.vibrate == b.vibrate
+                && a.silent == b.silent
+                && a.skipCalendarId == b.skipCalendarId
+                && TextUtils.equals(a.label, b.label)
+                && (a.alert == null ? b.alert == null : a.alert.equals(b.alert));
+    }
+
+    /**
+     * Returns the number of setNextAlert calls that committed a new next
+     * alert to AlarmManager, the status bar and the system settings.
+     */
+    static synchronized int getCommittedAlertCount() {
+        return sCommits;
+    }
+
+    /**
+     * Returns the number of setNextAlert calls that found the next alert
+     * unchanged and skipped re-arming AlarmManager, the ALARM_CHANGED and
+     * NEXT_ALARM_TIME_SET broadcasts and the NEXT_ALARM_FORMATTED write.
+     */
+    static synchronized int getSkippedAlertCount() {
+        return sSkippedCommits;
     }
 
     /**
@@ -424,6 +741,13 @@ public class Alarms {
      */
     public static void enableAlert(Context context, final Alarm alarm,
             final long atTimeInMillis) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(atTimeInMillis);
+        enableAlert(context, alarm, atTimeInMillis, formatDayAndTime(context, c), new int[0]);
+    }
+
+    private static void enableAlert(Context context, final Alarm alarm,
+            final long atTimeInMillis, String timeString, int[] groupIds) {
         AlarmManager am = (AlarmManager)
                 context.getSystemService(Context.ALARM_SERVICE);
 
@@ -439,24 +763,27 @@ public class Alarms {
         // does not know about the Alarm class, it throws a
         // ClassNotFoundException.
         //
-        // To avoid this, we marshall the data ourselves and then parcel a plain
-        // byte[] array. The AlarmReceiver class knows to build the Alarm
-        // object from the byte[] array.
-        Parcel out = Parcel.obtain();
-        alarm.writeToParcel(out, 0);
-        out.setDataPosition(0);
-        intent.putExtra(ALARM_RAW_DATA, out.marshall());
+        // To avoid this, we send a small fixed-size AlarmSnapshot as a plain
+        // byte[] array. The AlarmReceiver class reads the Alarm back from the
+        // database using the snapshot.
+        intent.putExtra(ALARM_SNAPSHOT_DATA, AlarmSnapshot.encode(alarm, atTimeInMillis));
+        if (groupIds.length > 0) {
+            Log.v("Alarm ids " + Arrays.toString(groupIds) + " fire with id=" + alarm.id);
+            intent.putExtra(ALARM_GROUP_IDS, groupIds);
+        }
 
         PendingIntent sender = PendingIntent.getBroadcast(
                 context, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
 
         am.set(AlarmManager.RTC_WAKEUP, atTimeInMillis, sender);
+        final AlarmJournal journal = AlarmJournal.getInstance(context);
+        journal.record(alarm.id, AlarmJournal.EVENT_SCHEDULED, atTimeInMillis);
+        for (int id : groupIds) {
+            journal.record(id, AlarmJournal.EVENT_SCHEDULED, atTimeInMillis);
+        }
+        scheduleWarmUp(context, alarm, atTimeInMillis, getWarmUpSeconds(context));
 
         setStatusBarIcon(context, true);
-
-        Calendar c = Calendar.getInstance();
-        c.setTimeInMillis(atTimeInMillis);
-        String timeString = formatDayAndTime(context, c);
         saveNextAlarm(context, timeString);
     }
 
@@ -472,6 +799,7 @@ public class Alarms {
                 context, 0, new Intent(ALARM_ALERT_ACTION),
                 PendingIntent.FLAG_CANCEL_CURRENT);
         am.cancel(sender);
+        scheduleWarmUp(context, null, 0, 0);
         setStatusBarIcon(context, false);
         // Intentionally verbose: always log the lack of a next alarm to provide useful
         // information in bug reports.
@@ -479,119 +807,209 @@ public class Alarms {
         saveNextAlarm(context, "");
     }
 
+    private static int getWarmUpSeconds(Context context) {
+        final String seconds = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(SettingsActivity.KEY_ALARM_WARM_UP, DEFAULT_WARM_UP_SECONDS);
+        return Integer.parseInt(seconds);
+    }
+
+    /**
+     * Schedules the warm-up broadcast for the alarm the given number of
+     * seconds before atTimeInMillis, replacing any scheduled one.  A null
+     * alarm or zero seconds only cancels it.
+     */
+    private static void scheduleWarmUp(Context context, Alarm alarm, long atTimeInMillis,
+            int seconds) {
+        final AlarmManager am = (AlarmManager)
+                context.getSystemService(Context.ALARM_SERVICE);
+        final Intent intent = new Intent(ALARM_WARM_UP_ACTION);
+        final long warmUpTime = atTimeInMillis - seconds * DateUtils.SECOND_IN_MILLIS;
+        if (alarm == null || seconds <= 0 || warmUpTime <= System.currentTimeMillis()) {
+            am.cancel(PendingIntent.getBroadcast(
+                    context, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT));
+            return;
+        }
+        intent.putExtra(ALARM_SNAPSHOT_DATA, AlarmSnapshot.encode(alarm, atTimeInMillis));
+        am.set(AlarmManager.RTC_WAKEUP, warmUpTime, PendingIntent.getBroadcast(
+                context, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT));
+    }
+
+    /**
+     * Reschedules the warm-up of the committed next alert after the warm-up
+     * setting changed.
+     */
+    static void rescheduleWarmUp(Context context, int seconds) {
+        synchronized (Alarms.class) {
+            if (sCommittedAlarm != null) {
+                scheduleWarmUp(context, sCommittedAlarm, sCommittedAlarm.time, seconds);
+            }
+        }
+    }
+
     static void saveSnoozeAlert(final Context context, final int id,
             final long time) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFERENCES, 0);
         if (id == INVALID_ALARM_ID) {
-            clearAllSnoozePreferences(context, prefs);
+            clearAllSnoozes(context);
         } else {
-            final Set<String> snoozedIds =
-                    prefs.getStringSet(PREF_SNOOZE_IDS, new HashSet<String>());
-            snoozedIds.add(Integer.toString(id));
-            final SharedPreferences.Editor ed = prefs.edit();
-            ed.putStringSet(PREF_SNOOZE_IDS, snoozedIds);
-            ed.putLong(getAlarmPrefSnoozeTimeKey(id), time);
-            ed.apply();
+            final ContentValues values = new ContentValues(2);
+            values.put(Alarm.SnoozeColumns.ALARM_ID, id);
+            values.put(Alarm.SnoozeColumns.SNOOZE_TIME, time);
+            context.getContentResolver().insert(Alarm.SnoozeColumns.CONTENT_URI, values);
+            AlarmTimeline.onSnoozeChanged(id, time);
         }
         // Set the next alert after updating the snooze.
         setNextAlert(context);
     }
 
-    public static String getAlarmPrefSnoozeTimeKey(int id) {
-        return getAlarmPrefSnoozeTimeKey(Integer.toString(id));
+    /**
+     * Snoozes several alarms until the same time, as when a group of alarms
+     * that went off together is snoozed, with one write to the provider and
+     * one update of the next alert.
+     */
+    static void saveSnoozeAlerts(final Context context, final int[] ids, final long time) {
+        final ContentValues[] values = new ContentValues[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            values[i] = new ContentValues(2);
+            values[i].put(Alarm.SnoozeColumns.ALARM_ID, ids[i]);
+            values[i].put(Alarm.SnoozeColumns.SNOOZE_TIME, time);
+        }
+        context.getContentResolver().bulkInsert(Alarm.SnoozeColumns.CONTENT_URI, values);
+        for (int id : ids) {
+            AlarmTimeline.onSnoozeChanged(id, time);
+        }
+        // Set the next alert after updating the snoozes.
+        setNextAlert(context);
     }
 
+    // Snoozes used to be kept in shared preferences under these keys.
+    // AlarmDatabaseHelper moves them into the snoozes table on upgrade.
     public static String getAlarmPrefSnoozeTimeKey(String id) {
         return PREF_SNOOZE_TIME + id;
     }
 
     /**
-     * Disable the snooze alert if the given id matches the snooze id.
+     * Disable the snooze alert if the given id matches the snooze id.  Also
+     * clear the snooze notification in the window shade.
+     *
+     * @return true if the alarm was snoozed
      */
-    static void disableSnoozeAlert(final Context context, final int id) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFERENCES, 0);
-        if (hasAlarmBeenSnoozed(prefs, id)) {
-            // This is the same id so clear the shared prefs.
-            clearSnoozePreference(context, prefs, id);
-        }
-    }
-
-    // Helper to remove the snooze preference. Do not use clear because that
-    // will erase the clock preferences. Also clear the snooze notification in
-    // the window shade.
-    public static void clearSnoozePreference(final Context context,
-            final SharedPreferences prefs, final int id) {
-        final String alarmStr = Integer.toString(id);
-        final Set<String> snoozedIds =
-                prefs.getStringSet(PREF_SNOOZE_IDS, new HashSet<String>());
-        if (snoozedIds.contains(alarmStr)) {
+    static boolean disableSnoozeAlert(final Context context, final int id) {
+        final int count = context.getContentResolver().delete(
+                ContentUris.withAppendedId(Alarm.SnoozeColumns.CONTENT_URI, id), null, null);
+        if (count > 0) {
             NotificationManager nm = (NotificationManager)
                     context.getSystemService(Context.NOTIFICATION_SERVICE);
             nm.cancel(id);
+            AlarmTimeline.onSnoozeChanged(id, 0);
         }
-
-        final SharedPreferences.Editor ed = prefs.edit();
-        snoozedIds.remove(alarmStr);
-        ed.putStringSet(PREF_SNOOZE_IDS, snoozedIds);
-        ed.remove(getAlarmPrefSnoozeTimeKey(alarmStr));
-        ed.apply();
+        return count > 0;
     }
 
-    public static void clearAllSnoozePreferences(final Context context,
-            final SharedPreferences prefs) {
-        NotificationManager nm = (NotificationManager)
-                context.getSystemService(Context.NOTIFICATION_SERVICE);
-        final Set<String> snoozedIds =
-                prefs.getStringSet(PREF_SNOOZE_IDS, new HashSet<String>());
-        final SharedPreferences.Editor ed = prefs.edit();
-        for (String snoozeId : snoozedIds) {
-            nm.cancel(Integer.parseInt(snoozeId));
-            ed.remove(getAlarmPrefSnoozeTimeKey(snoozeId));
+    public static void clearAllSnoozes(final Context context) {
+        final ContentResolver cr = context.getContentResolver();
+        final Cursor cursor = cr.query(Alarm.SnoozeColumns.CONTENT_URI,
+                new String[] { Alarm.SnoozeColumns.ALARM_ID }, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    final NotificationManager nm = (NotificationManager)
+                            context.getSystemService(Context.NOTIFICATION_SERVICE);
+                    do {
+                        nm.cancel(cursor.getInt(0));
+                        AlarmTimeline.onSnoozeChanged(cursor.getInt(0), 0);
+                    } while (cursor.moveToNext());
+                }
+            } finally {
+                cursor.close();
+            }
         }
+        cr.delete(Alarm.SnoozeColumns.CONTENT_URI, null, null);
+    }
 
-        ed.remove(PREF_SNOOZE_IDS);
-        ed.apply();
+    /**
+     * Tells the StatusBar whether the alarm is enabled or disabled
+     */
+    public static void setStatusBarIcon(Context context, boolean enabled) {
+        Intent alarmChanged = new Intent("android.intent.action.ALARM_CHANGED");
+        alarmChanged.putExtra("alarmSet", enabled);
+        context.sendBroadcast(alarmChanged);
     }
 
-    public static boolean hasAlarmBeenSnoozed(final SharedPreferences prefs, final int alarmId) {
-        final Set<String> snoozedIds = prefs.getStringSet(PREF_SNOOZE_IDS, null);
+    public static long calculateAlarm(Alarm alarm) {
+        final long now = System.currentTimeMillis();
+        final long time = calculateAlarmTime(alarm.hour, alarm.minutes, alarm.daysOfWeek,
+                SkipCalendar.get(alarm.skipCalendarId), now);
+        // Every day is skipped; this is only used for display, so fall back
+        // to the weekly time.
+        return time != -1 ? time
+                : calculateAlarmTime(alarm.hour, alarm.minutes, alarm.daysOfWeek, now);
+    }
 
-        // Return true if there a valid snoozed alarmId was saved
-        return snoozedIds != null && snoozedIds.contains(Integer.toString(alarmId));
+    /**
+     * Same as {@link #calculateAlarm(int, int, Alarm.DaysOfWeek)} but works
+     * on epoch millis using the offsets cached in ZoneOffsetTable, so it does
+     * not allocate.  A time skipped by a DST change is moved forward by the
+     * size of the gap, and a time repeated by one fires the first time
+     * that is still ahead of now.
+     */
+    static long calculateAlarmTime(int hour, int minute,
+            Alarm.DaysOfWeek daysOfWeek, long now) {
+        return calculateAlarmTime(hour, minute, daysOfWeek, null, now);
     }
 
     /**
-     * Updates the specified Alarm with the additional snooze time.
-     * Returns a boolean indicating whether the alarm was updated.
+     * Same as {@link #calculateAlarmTime(int, int, Alarm.DaysOfWeek, long)}
+     * but a repeating alarm does not fire on the days skipped by the
+     * calendar.
+     *
+     * @param skip the skip calendar of the alarm, or null
+     * @return the fire time, or -1 if every day the alarm repeats on is
+     *         skipped for the next two years
      */
-    public static boolean updateAlarmTimeForSnooze(
-            final SharedPreferences prefs, final Alarm alarm) {
-        if (!hasAlarmBeenSnoozed(prefs, alarm.id)) {
-            // No need to modify the alarm
-            return false;
-        }
+    static long calculateAlarmTime(int hour, int minute,
+            Alarm.DaysOfWeek daysOfWeek, SkipCalendar skip, long now) {
+        final long local = now + ZoneOffsetTable.getOffset(now);
+        long day = floorDiv(local, ZoneOffsetTable.DAY_MILLIS);
+        final long nowMinute =
+                (local - day * ZoneOffsetTable.DAY_MILLIS) / ZoneOffsetTable.MINUTE_MILLIS;
 
-        final long time = prefs.getLong(getAlarmPrefSnoozeTimeKey(alarm.id), -1);
-        // The time in the database is either 0 (repeating) or a specific time
-        // for a non-repeating alarm. Update this value so the AlarmReceiver
-        // has the right time to compare.
-        alarm.time = time;
+        // if alarm is behind current time, advance one day
+        if (hour * 60 + minute <= nowMinute) {
+            day++;
+        }
 
-        return true;
+        final long timeOfDay = hour * ZoneOffsetTable.HOUR_MILLIS
+                + minute * ZoneOffsetTable.MINUTE_MILLIS;
+        while (true) {
+            if (skip != null && daysOfWeek.isRepeatSet()) {
+                day = skip.nextDay(day, daysOfWeek.getCoded());
+                if (day == -1) return -1;
+            } else {
+                final int addDays = daysOfWeek.getNextAlarm(dayOfWeek(day));
+                if (addDays > 0) day += addDays;
+            }
+            final long time = ZoneOffsetTable.localToUtc(
+                    day * ZoneOffsetTable.DAY_MILLIS + timeOfDay, now);
+            if (time != -1) {
+                return time;
+            }
+            // Both instants of a repeated time have passed.
+            day++;
+        }
     }
 
     /**
-     * Tells the StatusBar whether the alarm is enabled or disabled
+     * Returns the day of week, with Monday as 0, of a day counted from the
+     * epoch.
      */
-    public static void setStatusBarIcon(Context context, boolean enabled) {
-        Intent alarmChanged = new Intent("android.intent.action.ALARM_CHANGED");
-        alarmChanged.putExtra("alarmSet", enabled);
-        context.sendBroadcast(alarmChanged);
+    static int dayOfWeek(long epochDay) {
+        // 1970-01-01 was a Thursday.
+        return (int) (((epochDay + 3) % 7 + 7) % 7);
     }
 
-    public static long calculateAlarm(Alarm alarm) {
-        return calculateAlarm(alarm.hour, alarm.minutes, alarm.daysOfWeek)
-                .getTimeInMillis();
+    static long floorDiv(long x, long y) {
+        final long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
     }
 
     /**
@@ -600,10 +1018,16 @@ public class Alarms {
      */
     static Calendar calculateAlarm(int hour, int minute,
             Alarm.DaysOfWeek daysOfWeek) {
+        return calculateAlarm(hour, minute, daysOfWeek, System.currentTimeMillis());
+    }
+
+    // Package-private for tests, which compare it with calculateAlarmTime().
+    static Calendar calculateAlarm(int hour, int minute,
+            Alarm.DaysOfWeek daysOfWeek, long now) {
 
         // start with now
         Calendar c = Calendar.getInstance();
-        c.setTimeInMillis(System.currentTimeMillis());
+        c.setTimeInMillis(now);
 
         int nowHour = c.get(Calendar.HOUR_OF_DAY);
         int nowMinute = c.get(Calendar.MINUTE);
@@ -655,6 +1079,26 @@ public class Alarms {
                                   timeString);
     }
 
+    /**
+     * Returns the next alarm formatted as in the NEXT_ALARM_FORMATTED system
+     * setting, or an empty string if there is none.  Reads it from the
+     * timeline when that is loaded, instead of from the system settings.
+     */
+    public static String getNextAlarmFormatted(final Context context) {
+        final AlarmTimeline timeline = AlarmTimeline.peekInstance();
+        if (timeline == null) {
+            return Settings.System.getString(context.getContentResolver(),
+                    Settings.System.NEXT_ALARM_FORMATTED);
+        }
+        final AlarmTimeline.Occurrence next = timeline.getNext(System.currentTimeMillis());
+        if (next == null) {
+            return "";
+        }
+        final Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(next.time);
+        return formatDayAndTime(context, c);
+    }
+
     /**
      * @return true if clock is set to 24-hour mode
      */
@@ -18,24 +18,62 @@ package com.android.deskclock;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 
 /**
  * Helper class for managing the background thread used to perform io operations
- * and handle async broadcasts.
+ * and handle async broadcasts.  Work is queued in a {@link PriorityTaskQueue}
+ * so that firing alarms are handled ahead of housekeeping.
  */
 final class AsyncHandler {
 
     public static final HandlerThread sHandlerThread =
             new HandlerThread("AsyncHandler");
     public static final Handler sHandler;
+    private static final PriorityTaskQueue sQueue;
 
     static {
         sHandlerThread.start();
         sHandler = new Handler(sHandlerThread.getLooper());
+
+        final Runnable runNext = new Runnable() {
+            @Override
+            public void run() {
+                sQueue.runNext();
+            }
+        };
+        sQueue = new PriorityTaskQueue(
+                new PriorityTaskQueue.Clock() {
+                    @Override
+                    public long now() {
+                        return SystemClock.uptimeMillis();
+                    }
+                },
+                new PriorityTaskQueue.Dispatcher() {
+                    @Override
+                    public void dispatch() {
+                        sHandler.post(runNext);
+                    }
+                });
     }
 
+    /**
+     * Posts housekeeping work.
+     */
     public static void post(Runnable r) {
-        sHandler.post(r);
+        sQueue.post(PriorityTaskQueue.LANE_HOUSEKEEPING, r);
+    }
+
+    /**
+     * Posts work for a firing alarm, which runs before any queued
+     * housekeeping.
+     */
+    public static void postAlarm(Runnable r) {
+        sQueue.post(PriorityTaskQueue.LANE_ALARM, r);
+    }
+
+    static PriorityTaskQueue getQueue() {
+        return sQueue;
     }
 
     public AsyncHandler() {}
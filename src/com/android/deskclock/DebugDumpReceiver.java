@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Writes debug reports to the log.  Debug only, trigger with e.g.
+ * <pre>
+ *   adb shell am broadcast -a com.android.deskclock.DUMP_ALARM_LATENCY
+ *   adb shell am broadcast -a com.android.deskclock.DUMP_WAKE_LOCKS
+ *   adb shell am broadcast -a com.android.deskclock.DUMP_ALARM_JOURNAL
+ *   adb shell am broadcast -a com.android.deskclock.DUMP_ALARM_WRITES
+ *   adb shell am broadcast -a com.android.deskclock.DUMP_NEXT_ALERT
+ *   adb shell am broadcast -a com.android.deskclock.DUMP_ASYNC_QUEUE
+ * </pre>
+ */
+public class DebugDumpReceiver extends BroadcastReceiver {
+
+    public static final String ACTION_DUMP_ALARM_LATENCY =
+            "com.android.deskclock.DUMP_ALARM_LATENCY";
+    public static final String ACTION_DUMP_WAKE_LOCKS =
+            "com.android.deskclock.DUMP_WAKE_LOCKS";
+    // Logs the alarm journal as CSV.
+    public static final String ACTION_DUMP_ALARM_JOURNAL =
+            "com.android.deskclock.DUMP_ALARM_JOURNAL";
+    // Logs the counters of the alarm list's write-behind queue.
+    public static final String ACTION_DUMP_ALARM_WRITES =
+            "com.android.deskclock.DUMP_ALARM_WRITES";
+    // Logs how often setNextAlert committed or skipped an unchanged alert.
+    public static final String ACTION_DUMP_NEXT_ALERT =
+            "com.android.deskclock.DUMP_NEXT_ALERT";
+    // Logs the wait and run times of each lane of the AsyncHandler queue.
+    public static final String ACTION_DUMP_ASYNC_QUEUE =
+            "com.android.deskclock.DUMP_ASYNC_QUEUE";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final String report;
+        if (ACTION_DUMP_ALARM_LATENCY.equals(intent.getAction())) {
+            report = AlarmLatencyTracer.dump();
+        } else if (ACTION_DUMP_WAKE_LOCKS.equals(intent.getAction())) {
+            report = TrackedWakeLock.dump();
+        } else if (ACTION_DUMP_ALARM_JOURNAL.equals(intent.getAction())) {
+            final StringWriter csv = new StringWriter();
+            try {
+                AlarmJournal.getInstance(context).exportCsv(csv);
+            } catch (IOException e) {
+                // StringWriter does not throw.
+            }
+            report = csv.toString();
+        } else if (ACTION_DUMP_ALARM_WRITES.equals(intent.getAction())) {
+            final AlarmWriteQueue queue = AlarmWriteQueue.getInstance(context);
+            report = "Alarm writes: queued=" + queue.getQueueDepth()
+                    + " maxQueued=" + queue.getMaxQueueDepth()
+                    + " coalesced=" + queue.getCoalescedCount()
+                    + " batches=" + queue.getBatchCount()
+                    + " written=" + queue.getWriteCount();
+        } else if (ACTION_DUMP_NEXT_ALERT.equals(intent.getAction())) {
+            report = "Next alert: committed=" + Alarms.getCommittedAlertCount()
+                    + " skipped=" + Alarms.getSkippedAlertCount();
+        } else if (ACTION_DUMP_ASYNC_QUEUE.equals(intent.getAction())) {
+            report = dumpAsyncQueue();
+        } else {
+            return;
+        }
+        for (String line : report.split("\n")) {
+            Log.i(line);
+        }
+    }
+
+    private static String dumpAsyncQueue() {
+        final PriorityTaskQueue queue = AsyncHandler.getQueue();
+        final StringBuilder sb = new StringBuilder("AsyncHandler lanes (ms):\n");
+        for (int lane = 0; lane < PriorityTaskQueue.LANE_COUNT; lane++) {
+            sb.append("  ").append(lane == PriorityTaskQueue.LANE_ALARM ? "alarm" : "housekeeping")
+                    .append(": queued=").append(queue.getQueueDepth(lane))
+                    .append(" tasks=").append(queue.getTaskCount(lane))
+                    .append(" totalWait=").append(queue.getTotalWait(lane))
+                    .append(" maxWait=").append(queue.getMaxWait(lane))
+                    .append(" totalRun=").append(queue.getTotalRun(lane))
+                    .append(" maxRun=").append(queue.getMaxRun(lane))
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+}
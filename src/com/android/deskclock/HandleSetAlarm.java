@@ -60,8 +60,8 @@ public class HandleSetAlarm extends Activity {
         }
 
         Cursor c = null;
-        final long timeInMillis = Alarms.calculateAlarm(hour, minutes,
-                new Alarm.DaysOfWeek(0)).getTimeInMillis();
+        final long timeInMillis = Alarms.calculateAlarmTime(hour, minutes,
+                new Alarm.DaysOfWeek(0), System.currentTimeMillis());
         try {
             c = getContentResolver().query(
                     Alarm.Columns.CONTENT_URI,
@@ -112,6 +112,9 @@ public class HandleSetAlarm extends Activity {
             if (enable) {
                 Alarms.enableAlarm(this, alarm.id, true);
                 alarm.enabled = true;
+            } else {
+                // The alarm was inserted directly, let the scheduler know.
+                AlarmScheduler.getInstance(this).put(alarm, alarm.time);
             }
             AlarmUtils.popAlarmSetToast(this, timeInMillis);
             if (skipUi) {
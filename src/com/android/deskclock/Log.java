@@ -54,7 +54,16 @@ public class Log {
         android.util.Log.wtf(LOGTAG, logMe);
     }
 
+    // SimpleDateFormat is not thread safe and costly to create.
+    private static final ThreadLocal<SimpleDateFormat> sTimeFormat =
+            new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("HH:mm:ss.SSS/E");
+        }
+    };
+
     public static String formatTime(long millis) {
-        return new SimpleDateFormat("HH:mm:ss.SSS/E").format(new Date(millis));
+        return sTimeFormat.get().format(new Date(millis));
     }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import java.util.ArrayDeque;
+
+/**
+ * Tasks queued in priority lanes and run one at a time, highest priority lane
+ * first and in order within a lane.  Records how long each lane's tasks wait
+ * in the queue and how long they run.
+ *
+ * This class has no Android dependencies.  Whoever owns it supplies a
+ * {@link Dispatcher} that arranges for {@link #runNext()} to be called once
+ * for each posted task, e.g. by posting to a Handler, and a {@link Clock}.
+ * Tests can call runNext() directly in place of a looper.
+ */
+final class PriorityTaskQueue {
+
+    // Alarm handling that holds a wake lock or a pending broadcast result.
+    static final int LANE_ALARM = 0;
+    // Boot, time change and other background work.
+    static final int LANE_HOUSEKEEPING = 1;
+    static final int LANE_COUNT = 2;
+
+    interface Clock {
+        long now();
+    }
+
+    interface Dispatcher {
+        /**
+         * Called once for every posted task.  Must arrange for runNext() to
+         * be called once, on the thread the tasks run on.
+         */
+        void dispatch();
+    }
+
+    private static final class Task {
+        final Runnable runnable;
+        final long queuedAt;
+
+        Task(Runnable runnable, long queuedAt) {
+            this.runnable = runnable;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private static final class LaneStats {
+        int count;
+        long totalWait;
+        long maxWait;
+        long totalRun;
+        long maxRun;
+    }
+
+    private final Clock mClock;
+    private final Dispatcher mDispatcher;
+    // Guarded by this.
+    private final ArrayDeque<Task>[] mLanes;
+    private final LaneStats[] mStats;
+
+    @SuppressWarnings("unchecked")
+    PriorityTaskQueue(Clock clock, Dispatcher dispatcher) {
+        mClock = clock;
+        mDispatcher = dispatcher;
+        mLanes = new ArrayDeque[LANE_COUNT];
+        mStats = new LaneStats[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mLanes[i] = new ArrayDeque<Task>();
+            mStats[i] = new LaneStats();
+        }
+    }
+
+    void post(int lane, Runnable r) {
+        synchronized (this) {
+            mLanes[lane].add(new Task(r, mClock.now()));
+        }
+        mDispatcher.dispatch();
+    }
+
+    /**
+     * Runs the first task of the highest priority lane that has one.
+     *
+     * @return false if there was nothing to run
+     */
+    boolean runNext() {
+        Task task = null;
+        int lane;
+        synchronized (this) {
+            for (lane = 0; lane < LANE_COUNT; lane++) {
+                task = mLanes[lane].poll();
+                if (task != null) break;
+            }
+        }
+        if (task == null) {
+            return false;
+        }
+
+        final long start = mClock.now();
+        try {
+            task.runnable.run();
+        } finally {
+            final long end = mClock.now();
+            final long wait = start - task.queuedAt;
+            final long run = end - start;
+            synchronized (this) {
+                final LaneStats stats = mStats[lane];
+                stats.count++;
+                stats.totalWait += wait;
+                stats.maxWait = Math.max(stats.maxWait, wait);
+                stats.totalRun += run;
+                stats.maxRun = Math.max(stats.maxRun, run);
+            }
+        }
+        return true;
+    }
+
+    synchronized int getQueueDepth(int lane) {
+        return mLanes[lane].size();
+    }
+
+    synchronized int getTaskCount(int lane) {
+        return mStats[lane].count;
+    }
+
+    synchronized long getTotalWait(int lane) {
+        return mStats[lane].totalWait;
+    }
+
+    synchronized long getMaxWait(int lane) {
+        return mStats[lane].maxWait;
+    }
+
+    synchronized long getTotalRun(int lane) {
+        return mStats[lane].totalRun;
+    }
+
+    synchronized long getMaxRun(int lane) {
+        return mStats[lane].maxRun;
+    }
+}
@@ -298,6 +298,8 @@ public class SetAlarm extends PreferenceActivity implements Preference.OnPrefere
         alarm.hour = mHour;
         alarm.minutes = mMinute;
         alarm.daysOfWeek = mRepeatPref.getDaysOfWeek();
+        // Not edited here.
+        alarm.skipCalendarId = mOriginalAlarm.skipCalendarId;
         alarm.vibrate = mVibratePref.isChecked();
         alarm.label = mLabel.getText().toString();
         alarm.alert = mAlarmPref.getAlert();
@@ -17,6 +17,7 @@
 package com.android.deskclock;
 
 import android.app.ActionBar;
+import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.media.AudioManager;
@@ -54,6 +55,8 @@ public class SettingsActivity extends PreferenceActivity
             "volume_button_setting";
     static final String KEY_AUTO_SILENCE =
             "auto_silence";
+    static final String KEY_ALARM_WARM_UP =
+            "alarm_warm_up";
     public static final String KEY_CLOCK_STYLE =
             "clock_style";
     public static final String KEY_HOME_TZ =
@@ -154,6 +157,18 @@ public class SettingsActivity extends PreferenceActivity
             final ListPreference listPref = (ListPreference) pref;
             String delay = (String) newValue;
             updateAutoSnoozeSummary(listPref, delay);
+        } else if (KEY_ALARM_WARM_UP.equals(pref.getKey())) {
+            final ListPreference listPref = (ListPreference) pref;
+            final int idx = listPref.findIndexOfValue((String) newValue);
+            listPref.setSummary(listPref.getEntries()[idx]);
+            final int seconds = Integer.parseInt((String) newValue);
+            final Context context = getApplicationContext();
+            AsyncHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Alarms.rescheduleWarmUp(context, seconds);
+                }
+            });
         } else if (KEY_CLOCK_STYLE.equals(pref.getKey())) {
             final ListPreference listPref = (ListPreference) pref;
             final int idx = listPref.findIndexOfValue((String) newValue);
@@ -198,6 +213,10 @@ public class SettingsActivity extends PreferenceActivity
         updateAutoSnoozeSummary(listPref, delay);
         listPref.setOnPreferenceChangeListener(this);
 
+        listPref = (ListPreference) findPreference(KEY_ALARM_WARM_UP);
+        listPref.setSummary(listPref.getEntry());
+        listPref.setOnPreferenceChangeListener(this);
+
         listPref = (ListPreference) findPreference(KEY_CLOCK_STYLE);
         listPref.setSummary(listPref.getEntry());
         listPref.setOnPreferenceChangeListener(this);
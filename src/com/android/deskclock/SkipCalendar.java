@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.HashMap;
+
+/**
+ * A set of dates on which repeating alarms do not fire, such as public
+ * holidays.  Each year is a bitmap of its days, stored as a 46 byte blob in
+ * the skip_days table, and alarms refer to a calendar by id so many alarms
+ * share one copy.
+ *
+ * Bit n of a year is day n of the year, counting January 1st as 0, and is
+ * bit n % 8 of byte n / 8 in the blob.  In memory a year is six longs so the
+ * next day an alarm fires is found 64 days at a time.
+ */
+final class SkipCalendar {
+
+    static final int DAYS_PER_YEAR_MAX = 366;
+    static final int BYTES_PER_YEAR = (DAYS_PER_YEAR_MAX + 7) / 8;
+
+    private static final int WORDS_PER_YEAR = (DAYS_PER_YEAR_MAX + 63) / 64;
+    // How far ahead nextDay() looks before giving up.
+    private static final int MAX_LOOKAHEAD_DAYS = 2 * DAYS_PER_YEAR_MAX;
+    // Days from 0001-01-01 to 1970-01-01 in the proleptic Gregorian calendar.
+    private static final long DAYS_0001_TO_1970 = 719162;
+
+    // Calendars by id, loaded once per process.  Guarded by SkipCalendar.class.
+    private static HashMap<Integer, SkipCalendar> sCalendars;
+
+    final int id;
+    String name;
+    // Skipped days by year.  Guarded by this.
+    private final HashMap<Integer, long[]> mYears = new HashMap<Integer, long[]>();
+
+    SkipCalendar(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * Loads all calendars from the database unless they are loaded already.
+     */
+    static synchronized void ensureLoaded(Context context) {
+        if (sCalendars != null) {
+            return;
+        }
+        final HashMap<Integer, SkipCalendar> calendars = new HashMap<Integer, SkipCalendar>();
+        final ContentResolver cr = context.getContentResolver();
+        Cursor cursor = cr.query(Alarm.SkipCalendarColumns.CONTENT_URI,
+                Alarm.SkipCalendarColumns.QUERY_COLUMNS, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    do {
+                        final int id = cursor.getInt(0);
+                        calendars.put(id, new SkipCalendar(id, cursor.getString(1)));
+                    } while (cursor.moveToNext());
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        cursor = cr.query(Alarm.SkipCalendarColumns.DAYS_URI,
+                Alarm.SkipCalendarColumns.DAYS_QUERY_COLUMNS, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    do {
+                        final SkipCalendar calendar = calendars.get(cursor.getInt(0));
+                        if (calendar != null) {
+                            calendar.setYear(cursor.getInt(1), cursor.getBlob(2));
+                        }
+                    } while (cursor.moveToNext());
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        sCalendars = calendars;
+        if (Log.LOGV) Log.v("Loaded " + calendars.size() + " skip calendars");
+    }
+
+    /**
+     * Returns the calendar with the given id, or null if there is none or the
+     * calendars are not loaded yet.
+     */
+    static synchronized SkipCalendar get(int id) {
+        return id == 0 || sCalendars == null ? null : sCalendars.get(id);
+    }
+
+    /**
+     * Creates an empty calendar.
+     *
+     * @return the id of the calendar
+     */
+    static int addCalendar(Context context, String name) {
+        ensureLoaded(context);
+        final ContentValues values = new ContentValues(1);
+        values.put(Alarm.SkipCalendarColumns.NAME, name);
+        final Uri uri = context.getContentResolver().insert(
+                Alarm.SkipCalendarColumns.CONTENT_URI, values);
+        final int id = (int) ContentUris.parseId(uri);
+        synchronized (SkipCalendar.class) {
+            sCalendars.put(id, new SkipCalendar(id, name));
+        }
+        return id;
+    }
+
+    /**
+     * Replaces the skipped days of one year of a calendar, and reschedules
+     * the alarms.
+     *
+     * @param days BYTES_PER_YEAR bytes, bit n set if day n of the year is skipped
+     */
+    static void setSkippedDays(Context context, int calendarId, int year, byte[] days) {
+        if (days.length != BYTES_PER_YEAR) {
+            throw new IllegalArgumentException("Expected " + BYTES_PER_YEAR + " bytes, got "
+                    + days.length);
+        }
+        ensureLoaded(context);
+        final SkipCalendar calendar = get(calendarId);
+        if (calendar == null) {
+            throw new IllegalArgumentException("No skip calendar " + calendarId);
+        }
+        calendar.setYear(year, days);
+        final ContentValues values = new ContentValues(3);
+        values.put(Alarm.SkipCalendarColumns.CALENDAR_ID, calendarId);
+        values.put(Alarm.SkipCalendarColumns.YEAR, year);
+        // Stored without the bits setYear() dropped.
+        values.put(Alarm.SkipCalendarColumns.DAYS, calendar.getSkippedDays(year));
+        context.getContentResolver().insert(Alarm.SkipCalendarColumns.DAYS_URI, values);
+        onCalendarsChanged(context);
+    }
+
+    /**
+     * Deletes a calendar.  Alarms that used it no longer skip any days.
+     */
+    static void deleteCalendar(Context context, int calendarId) {
+        context.getContentResolver().delete(ContentUris.withAppendedId(
+                Alarm.SkipCalendarColumns.CONTENT_URI, calendarId), null, null);
+        synchronized (SkipCalendar.class) {
+            if (sCalendars != null) {
+                sCalendars.remove(calendarId);
+            }
+        }
+        onCalendarsChanged(context);
+    }
+
+    private static void onCalendarsChanged(Context context) {
+        // The next time of every alarm using the calendar may have changed.
+        AlarmScheduler.getInstance(context).invalidate();
+        Alarms.setNextAlert(context);
+    }
+
+    /**
+     * Replaces the skipped days of one year in memory.  Bits past the last
+     * day of the year are dropped, so they do not skip days of the next one.
+     */
+    synchronized void setYear(int year, byte[] days) {
+        final long[] words = new long[WORDS_PER_YEAR];
+        for (int i = 0; i < days.length && i < BYTES_PER_YEAR; i++) {
+            words[i >> 3] |= (days[i] & 0xffL) << ((i & 7) << 3);
+        }
+        final int length = (int) (firstDayOfYear(year + 1) - firstDayOfYear(year));
+        words[length >> 6] &= (1L << (length & 63)) - 1;
+        for (int i = (length >> 6) + 1; i < WORDS_PER_YEAR; i++) {
+            words[i] = 0;
+        }
+        mYears.put(year, words);
+    }
+
+    /**
+     * Returns the skipped days of a year in the stored format.
+     */
+    synchronized byte[] getSkippedDays(int year) {
+        final byte[] days = new byte[BYTES_PER_YEAR];
+        final long[] words = mYears.get(year);
+        if (words != null) {
+            for (int i = 0; i < BYTES_PER_YEAR; i++) {
+                days[i] = (byte) (words[i >> 3] >>> ((i & 7) << 3));
+            }
+        }
+        return days;
+    }
+
+    synchronized boolean isSkipped(long epochDay) {
+        return (skippedWord(epochDay) & 1) != 0;
+    }
+
+    /**
+     * Returns the first day, counted from the epoch, at or after the given
+     * one that is set in the days of week mask and is not skipped, or -1 if
+     * there is none in the next two years.
+     *
+     * @param daysOfWeek mask as in Alarm.DaysOfWeek, with Monday as bit 0
+     */
+    synchronized long nextDay(long epochDay, int daysOfWeek) {
+        if ((daysOfWeek & 0x7f) == 0) {
+            return -1;
+        }
+        for (long day = epochDay; day < epochDay + MAX_LOOKAHEAD_DAYS; day += 64) {
+            final long days = weekWord(daysOfWeek, Alarms.dayOfWeek(day)) & ~skippedWord(day);
+            if (days != 0) {
+                return day + Long.numberOfTrailingZeros(days);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the weekly mask repeated over 64 days, with bit i set if the
+     * mask has the day of week of the i-th day after one on firstDayOfWeek.
+     */
+    private static long weekWord(int daysOfWeek, int firstDayOfWeek) {
+        final int days = daysOfWeek & 0x7f;
+        final long rotated = ((days >>> firstDayOfWeek) | (days << (7 - firstDayOfWeek))) & 0x7f;
+        long word = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            word |= rotated << shift;
+        }
+        return word;
+    }
+
+    /**
+     * Returns the skipped days among the 64 days starting on the given one,
+     * with bit i for the i-th day.  The days span at most two years.
+     */
+    private long skippedWord(long epochDay) {
+        final int year = yearOf(epochDay);
+        final long word = yearBits(year, (int) (epochDay - firstDayOfYear(year)));
+        final long nextYearFrom = epochDay - firstDayOfYear(year + 1);
+        if (nextYearFrom <= -64) {
+            return word;
+        }
+        return word | yearBits(year + 1, (int) nextYearFrom);
+    }
+
+    /**
+     * Returns 64 bits of a year starting at bit from, which may be negative.
+     * Bits outside the year are 0.
+     */
+    private long yearBits(int year, int from) {
+        final long[] words = mYears.get(year);
+        if (words == null) {
+            return 0;
+        }
+        if (from < 0) {
+            return yearBits(year, 0) << -from;
+        }
+        final int index = from >> 6;
+        final int offset = from & 63;
+        long bits = index < WORDS_PER_YEAR ? words[index] >>> offset : 0;
+        if (offset != 0 && index + 1 < WORDS_PER_YEAR) {
+            bits |= words[index + 1] << (64 - offset);
+        }
+        return bits;
+    }
+
+    /**
+     * Returns the epoch day of January 1st of the year.
+     */
+    static long firstDayOfYear(int year) {
+        final long y = year - 1;
+        return 365 * y + Alarms.floorDiv(y, 4) - Alarms.floorDiv(y, 100)
+                + Alarms.floorDiv(y, 400) - DAYS_0001_TO_1970;
+    }
+
+    static int yearOf(long epochDay) {
+        int year = (int) (1970 + Alarms.floorDiv(epochDay * 400, 146097));
+        while (firstDayOfYear(year) > epochDay) year--;
+        while (firstDayOfYear(year + 1) <= epochDay) year++;
+        return year;
+    }
+}
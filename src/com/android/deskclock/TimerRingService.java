@@ -19,25 +19,20 @@ package com.android.deskclock;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.AssetFileDescriptor;
-import android.content.res.Resources;
-import android.media.AudioManager;
-import android.media.MediaPlayer;
-import android.media.MediaPlayer.OnErrorListener;
-import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.IBinder;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
-import com.android.deskclock.obfuscated.R;
 
 /**
  * Play the timer's ringtone. Will continue playing the same alarm until service is stopped.
  */
 public class TimerRingService extends Service {
 
+    public static final Uri TIMER_SOUND = AlarmAudioEngine.getAssetUri("sounds/Timer_Expire.ogg");
+
     public boolean mPlaying = false;
-    public MediaPlayer mMediaPlayer;
+    public AlarmAudioEngine mAudio;
     public TelephonyManager mTelephonyManager;
     public int mInitialCallState;
 
@@ -58,6 +53,7 @@ public class TimerRingService extends Service {
 
     @Override
     public void onCreate() {
+        mAudio = new AlarmAudioEngine(this);
         // Listen for incoming calls to kill the alarm.
         mTelephonyManager =
                 (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
@@ -69,6 +65,7 @@ public class TimerRingService extends Service {
     @Override
     public void onDestroy() {
         stop();
+        mAudio.release();
         // Stop listening for incoming calls.
         mTelephonyManager.listen(mPhoneStateListener, 0);
         AlarmAlertWakeLock.releaseCpuLock();
@@ -95,9 +92,6 @@ public class TimerRingService extends Service {
         return START_STICKY;
     }
 
-    // Volume suggested by media team for in-call alarms.
-    public static final float IN_CALL_VOLUME = 0.125f;
-
     public void play() {
 
         if (mPlaying) {
@@ -108,79 +102,14 @@ public class TimerRingService extends Service {
             Log.v("TimerRingService.play()");
         }
 
-        // TODO: Reuse mMediaPlayer instead of creating a new one and/or use
-        // RingtoneManager.
-        mMediaPlayer = new MediaPlayer();
-        mMediaPlayer.setOnErrorListener(new OnErrorListener() {
-            @Override
-            public boolean onError(MediaPlayer mp, int what, int extra) {
-                Log.e("Error occurred while playing audio.");
-                mp.stop();
-                mp.release();
-                mMediaPlayer = null;
-                return true;
-            }
-        });
-
-        try {
-            // Check if we are in a call. If we are, use the in-call alarm
-            // resource at a low volume to not disrupt the call.
-            if (mTelephonyManager.getCallState()
-                    != TelephonyManager.CALL_STATE_IDLE) {
-                Log.v("Using the in-call alarm");
-                mMediaPlayer.setVolume(IN_CALL_VOLUME, IN_CALL_VOLUME);
-                setDataSourceFromResource(getResources(), mMediaPlayer,
-                        R.raw.in_call_alarm);
-            } else {
-            	final AssetFileDescriptor afd = getAssets().openFd("sounds/Timer_Expire.ogg");
-                mMediaPlayer.setDataSource(
-                        afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
-            }
-            startAlarm(mMediaPlayer);
-        } catch (Exception ex) {
-            Log.v("Using the fallback ringtone");
-            // The alert may be on the sd card which could be busy right
-            // now. Use the fallback ringtone.
-            try {
-                // Must reset the media player to clear the error state.
-                mMediaPlayer.reset();
-                setDataSourceFromResource(getResources(), mMediaPlayer,
-                        R.raw.fallbackring);
-                startAlarm(mMediaPlayer);
-            } catch (Exception ex2) {
-                // At this point we just don't play anything.
-                Log.e("Failed to play fallback ringtone", ex2);
-            }
-        }
+        // Check if we are in a call. If we are, the engine uses the in-call
+        // alarm at a low volume to not disrupt the call.
+        mAudio.play(TIMER_SOUND, mTelephonyManager.getCallState()
+                != TelephonyManager.CALL_STATE_IDLE);
 
         mPlaying = true;
     }
 
-    // Do the common stuff when starting the alarm.
-    public void startAlarm(MediaPlayer player)
-            throws java.io.IOException, IllegalArgumentException,
-                   IllegalStateException {
-        final AudioManager audioManager = (AudioManager)getSystemService(Context.AUDIO_SERVICE);
-        // do not play alarms if stream volume is 0
-        // (typically because ringer mode is silent).
-        if (audioManager.getStreamVolume(AudioManager.STREAM_ALARM) != 0) {
-            player.setAudioStreamType(AudioManager.STREAM_ALARM);
-            player.setLooping(true);
-            player.prepare();
-            player.start();
-        }
-    }
-
-    public void setDataSourceFromResource(Resources resources,
-            MediaPlayer player, int res) throws java.io.IOException {
-    	final AssetFileDescriptor afd = resources.openRawResourceFd(res);
-        if (afd != null) {
-            player.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(),
-                    afd.getLength());
-            afd.close();
-        }
-    }
-
     /**
      * Stops timer audio
      */
@@ -190,11 +119,7 @@ public class TimerRingService extends Service {
             mPlaying = false;
 
             // Stop audio playing
-            if (mMediaPlayer != null) {
-                mMediaPlayer.stop();
-                mMediaPlayer.release();
-                mMediaPlayer = null;
-            }
+            mAudio.stop();
         }
     }
 
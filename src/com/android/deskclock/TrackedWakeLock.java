@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A wake lock that accounts for how it is held.  Counts acquires, releases
+ * and held time per tag, and keeps the stack of the last acquire and release
+ * of each lock.  A lock held longer than its limit is released with a
+ * warning that shows where it was acquired.
+ *
+ * The lock is not reference counted: acquiring a held lock or releasing a
+ * lock that is not held only logs a warning.
+ */
+final class TrackedWakeLock {
+
+    private static final class TagStats {
+        int acquires;
+        int releases;
+        int forcedReleases;
+        int held;
+        long totalHeld;
+        long maxHeld;
+    }
+
+    // Guarded by TrackedWakeLock.class.
+    private static final HashMap<String, TagStats> sStats = new HashMap<String, TagStats>();
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private final PowerManager.WakeLock mLock;
+    private final String mTag;
+    private final long mMaxHoldMs;
+
+    // Guarded by this.  mAcquiredAt is in elapsed realtime, 0 when not held.
+    private long mAcquiredAt;
+    private Exception mAcquireStack;
+    private Exception mReleaseStack;
+
+    private final Runnable mForceRelease = new Runnable() {
+        @Override
+        public void run() {
+            forceRelease();
+        }
+    };
+
+    TrackedWakeLock(PowerManager pm, int levelAndFlags, String tag, long maxHoldMs) {
+        mLock = pm.newWakeLock(levelAndFlags, Log.LOGTAG + "/" + tag);
+        mLock.setReferenceCounted(false);
+        mTag = tag;
+        mMaxHoldMs = maxHoldMs;
+    }
+
+    synchronized void acquire() {
+        if (mAcquiredAt != 0) {
+            Log.w("Wake lock " + mTag + " acquired while held");
+            return;
+        }
+        mLock.acquire();
+        mAcquiredAt = SystemClock.elapsedRealtime();
+        mAcquireStack = new Exception("Wake lock " + mTag + " acquired here");
+        synchronized (TrackedWakeLock.class) {
+            final TagStats stats = getStats(mTag);
+            stats.acquires++;
+            stats.held++;
+        }
+        sHandler.postDelayed(mForceRelease, mMaxHoldMs);
+    }
+
+    synchronized void release() {
+        if (mAcquiredAt == 0) {
+            Log.e("Wake lock " + mTag + " released while not held", mReleaseStack);
+            return;
+        }
+        mReleaseStack = new Exception("Wake lock " + mTag + " released here");
+        releaseLocked(false);
+    }
+
+    synchronized boolean isHeld() {
+        return mAcquiredAt != 0;
+    }
+
+    private synchronized void forceRelease() {
+        if (mAcquiredAt == 0) {
+            return;
+        }
+        Log.e("Wake lock " + mTag + " held for more than " + mMaxHoldMs
+                + " ms, releasing it", mAcquireStack);
+        mReleaseStack = new Exception("Wake lock " + mTag + " force released");
+        releaseLocked(true);
+    }
+
+    private void releaseLocked(boolean forced) {
+        sHandler.removeCallbacks(mForceRelease);
+        mLock.release();
+        final long held = SystemClock.elapsedRealtime() - mAcquiredAt;
+        mAcquiredAt = 0;
+        synchronized (TrackedWakeLock.class) {
+            final TagStats stats = getStats(mTag);
+            stats.releases++;
+            if (forced) stats.forcedReleases++;
+            stats.held--;
+            stats.totalHeld += held;
+            stats.maxHeld = Math.max(stats.maxHeld, held);
+        }
+    }
+
+    private static TagStats getStats(String tag) {
+        TagStats stats = sStats.get(tag);
+        if (stats == null) {
+            stats = new TagStats();
+            sStats.put(tag, stats);
+        }
+        return stats;
+    }
+
+    static synchronized int getAcquireCount(String tag) {
+        return getStats(tag).acquires;
+    }
+
+    static synchronized int getForcedReleaseCount(String tag) {
+        return getStats(tag).forcedReleases;
+    }
+
+    /**
+     * Number of locks with the tag that are held now.
+     */
+    static synchronized int getHeldCount(String tag) {
+        return getStats(tag).held;
+    }
+
+    /**
+     * Total time locks with the tag were held, not counting holds that have
+     * not ended.
+     */
+    static synchronized long getTotalHeldTime(String tag) {
+        return getStats(tag).totalHeld;
+    }
+
+    static synchronized long getMaxHeldTime(String tag) {
+        return getStats(tag).maxHeld;
+    }
+
+    /**
+     * Returns the counters of every tag, one line per tag.
+     */
+    static synchronized String dump() {
+        final StringBuilder sb = new StringBuilder("Wake locks:\n");
+        for (Map.Entry<String, TagStats> entry : sStats.entrySet()) {
+            final TagStats stats = entry.getValue();
+            sb.append("  ").append(entry.getKey())
+                    .append(": acquired=").append(stats.acquires)
+                    .append(" released=").append(stats.releases)
+                    .append(" forced=").append(stats.forcedReleases)
+                    .append(" held=").append(stats.held)
+                    .append(" totalMs=").append(stats.totalHeld)
+                    .append(" maxMs=").append(stats.maxHeld)
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import java.util.TimeZone;
+
+/**
+ * Cached offset transitions of the default timezone over a window of a few
+ * weeks, used to convert between epoch millis and local wall-clock millis
+ * without allocating.  Two tables are kept: lookups near now and lookups a few
+ * weeks ahead, like the next day of a skip calendar, alternate, and one table
+ * would be rebuilt on every switch.  When a time outside both windows is asked
+ * for, the older table is replaced.  Both are dropped when the timezone
+ * changes.
+ */
+final class ZoneOffsetTable {
+
+    static final long MINUTE_MILLIS = 60 * 1000L;
+    static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    // Alarms look at most a week ahead, plus slack on either side.
+    private static final long WINDOW_BEFORE = 2 * DAY_MILLIS;
+    private static final long WINDOW_AFTER = 19 * DAY_MILLIS;
+
+    // The table that was built last, and the one before it.
+    private static volatile ZoneOffsetTable sTable;
+    private static volatile ZoneOffsetTable sOtherTable;
+
+    private final long mStart;
+    private final long mEnd;
+    // mOffsets[i] applies before mTransitions[i]; the last offset applies
+    // after the last transition.
+    private final long[] mTransitions;
+    private final int[] mOffsets;
+
+    private ZoneOffsetTable(TimeZone zone, long start, long end) {
+        mStart = start;
+        mEnd = end;
+
+        // Sample the offset once a day and narrow down on each change.  No
+        // zone changes its offset more than once a day.
+        final int maxTransitions = (int) ((end - start) / DAY_MILLIS) + 1;
+        final long[] transitions = new long[maxTransitions];
+        final int[] offsets = new int[maxTransitions + 1];
+        int count = 0;
+        long prev = start;
+        int prevOffset = zone.getOffset(start);
+        offsets[0] = prevOffset;
+        while (prev < end) {
+            final long probe = Math.min(prev + DAY_MILLIS, end);
+            final int offset = zone.getOffset(probe);
+            if (offset != prevOffset) {
+                long lo = prev;
+                long hi = probe;
+                while (hi - lo > 1) {
+                    final long mid = lo + (hi - lo) / 2;
+                    if (zone.getOffset(mid) == prevOffset) {
+                        lo = mid;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                transitions[count] = hi;
+                offsets[++count] = offset;
+                prevOffset = offset;
+            }
+            prev = probe;
+        }
+
+        mTransitions = new long[count];
+        System.arraycopy(transitions, 0, mTransitions, 0, count);
+        mOffsets = new int[count + 1];
+        System.arraycopy(offsets, 0, mOffsets, 0, count + 1);
+    }
+
+    private int offsetAt(long utcMillis) {
+        int i = 0;
+        while (i < mTransitions.length && utcMillis >= mTransitions[i]) {
+            i++;
+        }
+        return mOffsets[i];
+    }
+
+    /**
+     * Returns the offset from UTC of the default timezone at the given time.
+     */
+    static int getOffset(long utcMillis) {
+        final ZoneOffsetTable table = sTable;
+        if (table != null && table.contains(utcMillis)) {
+            return table.offsetAt(utcMillis);
+        }
+        final ZoneOffsetTable other = sOtherTable;
+        if (other != null && other.contains(utcMillis)) {
+            return other.offsetAt(utcMillis);
+        }
+        // Racing threads may each build a table; they are immutable, so
+        // whichever is kept is correct.
+        final ZoneOffsetTable built = new ZoneOffsetTable(TimeZone.getDefault(),
+                utcMillis - WINDOW_BEFORE, utcMillis + WINDOW_AFTER);
+        sOtherTable = table;
+        sTable = built;
+        return built.offsetAt(utcMillis);
+    }
+
+    private boolean contains(long utcMillis) {
+        return utcMillis >= mStart && utcMillis < mEnd;
+    }
+
+    /**
+     * Converts local wall-clock millis to epoch millis.  A wall-clock time
+     * skipped by a forward transition is moved forward by the size of the
+     * gap.  A time that occurs twice because of a backward transition
+     * resolves to the earlier instant.
+     */
+    static long localToUtc(long localMillis) {
+        return localToUtc(localMillis, Long.MIN_VALUE);
+    }
+
+    /**
+     * Same as {@link #localToUtc(long)} but only returns instants after
+     * notBefore: a time that occurs twice resolves to the later instant
+     * once the earlier one has passed.
+     *
+     * @return the epoch millis, or -1 if every instant with that wall-clock
+     *         time is at or before notBefore
+     */
+    static long localToUtc(long localMillis, long notBefore) {
+        // Transitions are more than two days apart, so these are the
+        // offsets before and after any transition near localMillis.
+        final int before = getOffset(localMillis - DAY_MILLIS);
+        final int after = getOffset(localMillis + DAY_MILLIS);
+        final long early = localMillis - before;
+        if (before == after) {
+            return early > notBefore ? early : -1;
+        }
+        final boolean earlyValid = getOffset(early) == before;
+        if (earlyValid && early > notBefore) {
+            return early;
+        }
+        final long late = localMillis - after;
+        final boolean lateValid = getOffset(late) == after;
+        if (lateValid && late > notBefore) {
+            return late;
+        }
+        // In the gap: keep the offset from before the transition.
+        if (!earlyValid && !lateValid && early > notBefore) {
+            return early;
+        }
+        return -1;
+    }
+
+    /**
+     * Drops the cached table.  Called when the timezone changes.
+     */
+    static void invalidate() {
+        sTable = null;
+        sOtherTable = null;
+    }
+}
@@ -34,16 +34,24 @@ import com.android.deskclock.Utils;
 
 
 public class CountingTimerView extends View {
-    public static final String TWO_DIGITS = "%02d";
-    public static final String ONE_DIGIT = "%01d";
-    public static final String NEG_TWO_DIGITS = "-%02d";
-    public static final String NEG_ONE_DIGIT = "-%01d";
     public static final float TEXT_SIZE_TO_WIDTH_RATIO = 0.75f;
     // This is the ratio of the font typeface we need to offset the font by vertically to align it
     // vertically center.
     public static final float FONT_VERTICAL_OFFSET = 0.14f;
 
-    public String mHours, mMinutes, mSeconds, mHundredths;
+    // The characters shown for each part of the time, written in place by
+    // setTime() so it does not allocate.  A part with a length of 0 is not
+    // shown.
+    public final char[] mHours = new char[4];
+    public final char[] mMinutes = new char[3];
+    public final char[] mSeconds = new char[2];
+    public final char[] mHundredths = new char[2];
+    public int mHoursLength, mMinutesLength, mSecondsLength, mHundredthsLength;
+    // The digits 0 to 9 of the locale.
+    public final char[] mDigits = new char[10];
+    // The time in the content description, to only rebuild it when it changes.
+    public int mSpokenHours = -1, mSpokenMinutes = -1, mSpokenSeconds = -1;
+    public boolean mSpokenNeg;
 
     public boolean mShowTimeStr = true;
     public final Typeface mAndroidClockMonoThin, mAndroidClockMonoBold, mAndroidClockMonoLight;
@@ -121,19 +129,19 @@ public class CountingTimerView extends View {
             this.mLabel = label;
         }
 
-        protected void updateWidth(final String time) {
+        protected void updateWidth(final char[] time, int length) {
             mEm = mPaint.measureText(mWidest);
             mLabelWidth = mLabel == null ? 0 : mPaintLabel.measureText(mLabel);
-            mWidth = time.length() * mEm;
+            mWidth = length * mEm;
         }
 
         protected void resetWidth() {
             mWidth = mLabelWidth = 0;
         }
 
-        public float calcTotalWidth(final String time) {
-            if (time != null) {
-                updateWidth(time);
+        public float calcTotalWidth(final char[] time, int length) {
+            if (length != 0) {
+                updateWidth(time, length);
                 return mWidth + mLabelWidth;
             } else {
                 resetWidth();
@@ -149,19 +157,21 @@ public class CountingTimerView extends View {
             return mLabelWidth;
         }
 
-        protected float drawTime(Canvas canvas, final String time, int ii, float x, float y) {
+        protected float drawTime(Canvas canvas, final char[] time, int ii, int length,
+                float x, float y) {
             float textEm  = mEm / 2f;
-            while (ii < time.length()) {
+            while (ii < length) {
                 x += textEm;
-                canvas.drawText(time.substring(ii, ii + 1), x, y, mPaint);
+                canvas.drawText(time, ii, 1, x, y, mPaint);
                 x += textEm;
                 ii++;
             }
             return x;
         }
 
-        public float draw(Canvas canvas, final String time, float x, float y, float yLabel) {
-            x = drawTime(canvas, time, 0, x, y);
+        public float draw(Canvas canvas, final char[] time, int length, float x, float y,
+                float yLabel) {
+            x = drawTime(canvas, time, 0, length, x, y);
             if (mLabel != null ) {
                 canvas.drawText(mLabel, x, yLabel, mPaintLabel);
             }
@@ -175,11 +185,12 @@ public class CountingTimerView extends View {
         }
 
         @Override
-        public float draw(Canvas canvas, final String time, float x, float y, float yLabel) {
+        public float draw(Canvas canvas, final char[] time, int length, float x, float y,
+                float yLabel) {
             if (mLabel != null) {
                 canvas.drawText(mLabel, x, yLabel, mPaintLabel);
             }
-            return drawTime(canvas, time, 0, x + getLabelWidth(), y);
+            return drawTime(canvas, time, 0, length, x + getLabelWidth(), y);
         }
     }
 
@@ -195,9 +206,9 @@ public class CountingTimerView extends View {
         }
 
         @Override
-        protected void updateWidth(final String time) {
-            super.updateWidth(time);
-            if (time.contains("-")) {
+        protected void updateWidth(final char[] time, int length) {
+            super.updateWidth(time, length);
+            if (time[0] == '-') {
                 mMinusWidth = mPaint.measureText("-");
                 mWidth += (mMinusWidth - mEm);
             } else {
@@ -212,16 +223,17 @@ public class CountingTimerView extends View {
         }
 
         @Override
-        public float draw(Canvas canvas, final String time, float x, float y, float yLabel) {
+        public float draw(Canvas canvas, final char[] time, int length, float x, float y,
+                float yLabel) {
             int ii = 0;
             if (mMinusWidth != 0f) {
                 float minusWidth = mMinusWidth / 2;
                 x += minusWidth;
-                canvas.drawText(time.substring(ii, ii + 1), x, y, mPaint);
+                canvas.drawText(time, ii, 1, x, y, mPaint);
                 x += minusWidth;
                 ii++;
             }
-            x = drawTime(canvas, time, ii, x, y);
+            x = drawTime(canvas, time, ii, length, x, y);
             if (mLabel != null) {
                 canvas.drawText(mLabel, x, yLabel, mPaintLabel);
             }
@@ -278,6 +290,8 @@ public class CountingTimerView extends View {
 
         // allDigits will contain ten digits: "0123456789" in the default locale
         final String allDigits = String.format("%010d", 123456789);
+        final String digits = allDigits.length() == mDigits.length ? allDigits : "0123456789";
+        digits.getChars(0, mDigits.length, mDigits, 0);
         mBigHours = new SignedTime(mPaintBig,
                 r.getString(R.string.hours_label).toUpperCase(), allDigits);
         mBigMinutes = new SignedTime(mBigHours,
@@ -303,7 +317,6 @@ public class CountingTimerView extends View {
 
     public void setTime(long time, boolean showHundredths, boolean update) {
         boolean neg = false, showNeg = false;
-        String format = null;
         if (time < 0) {
             time = -time;
             neg = showNeg = true;
@@ -344,28 +357,24 @@ public class CountingTimerView extends View {
         int oldLength = getDigitsLength();
 
         if (hours >= 10) {
-            format = showNeg ? NEG_TWO_DIGITS : TWO_DIGITS;
-            mHours = String.format(format, hours);
+            mHoursLength = formatDigits(mHours, hours, 2, showNeg);
         } else if (hours > 0) {
-            format = showNeg ? NEG_ONE_DIGIT : ONE_DIGIT;
-            mHours = String.format(format, hours);
+            mHoursLength = formatDigits(mHours, hours, 1, showNeg);
         } else {
-            mHours = null;
+            mHoursLength = 0;
         }
 
         if (minutes >= 10 || hours > 0) {
-            format = (showNeg && hours == 0) ? NEG_TWO_DIGITS : TWO_DIGITS;
-            mMinutes = String.format(format, minutes);
+            mMinutesLength = formatDigits(mMinutes, minutes, 2, showNeg && hours == 0);
         } else {
-            format = (showNeg && hours == 0) ? NEG_ONE_DIGIT : ONE_DIGIT;
-            mMinutes = String.format(format, minutes);
+            mMinutesLength = formatDigits(mMinutes, minutes, 1, showNeg && hours == 0);
         }
 
-        mSeconds = String.format(TWO_DIGITS, seconds);
+        mSecondsLength = formatDigits(mSeconds, seconds, 2, false);
         if (showHundredths) {
-            mHundredths = String.format(TWO_DIGITS, hundreds);
+            mHundredthsLength = formatDigits(mHundredths, hundreds, 2, false);
         } else {
-            mHundredths = null;
+            mHundredthsLength = 0;
         }
 
         int newLength = getDigitsLength();
@@ -377,23 +386,51 @@ public class CountingTimerView extends View {
         }
 
         if (update) {
-            setContentDescription(getTimeStringForAccessibility((int) hours, (int) minutes,
-                    (int) seconds, showNeg, getResources()));
+            if (hours != mSpokenHours || minutes != mSpokenMinutes || seconds != mSpokenSeconds
+                    || showNeg != mSpokenNeg) {
+                mSpokenHours = (int) hours;
+                mSpokenMinutes = (int) minutes;
+                mSpokenSeconds = (int) seconds;
+                mSpokenNeg = showNeg;
+                setContentDescription(getTimeStringForAccessibility((int) hours, (int) minutes,
+                        (int) seconds, showNeg, getResources()));
+            }
             invalidate();
         }
     }
 
+    /**
+     * Writes a value with the locale's digits, zero padded to at least
+     * minDigits digits and after a minus sign if neg.
+     *
+     * @return the number of characters written
+     */
+    protected int formatDigits(char[] buffer, long value, int minDigits, boolean neg) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        final int start = neg ? 1 : 0;
+        final int length = start + Math.max(digits, minDigits);
+        for (int i = length - 1; i >= start; i--) {
+            buffer[i] = mDigits[(int) (value % 10)];
+            value /= 10;
+        }
+        if (neg) {
+            buffer[0] = '-';
+        }
+        return length;
+    }
+
     public int getDigitsLength() {
-        return ((mHours == null) ? 0 : mHours.length())
-                + ((mMinutes == null) ? 0 : mMinutes.length())
-                + ((mSeconds == null) ? 0 : mSeconds.length())
-                + ((mHundredths == null) ? 0 : mHundredths.length());
+        return mHoursLength + mMinutesLength + mSecondsLength + mHundredthsLength;
     }
 
     public void calcTotalTextWidth() {
-        mTotalTextWidth = mBigHours.calcTotalWidth(mHours) + mBigMinutes.calcTotalWidth(mMinutes)
-                + mBigThinSeconds.calcTotalWidth(mSeconds)
-                + mMedHundredths.calcTotalWidth(mHundredths);
+        mTotalTextWidth = mBigHours.calcTotalWidth(mHours, mHoursLength)
+                + mBigMinutes.calcTotalWidth(mMinutes, mMinutesLength)
+                + mBigThinSeconds.calcTotalWidth(mSeconds, mSecondsLength)
+                + mMedHundredths.calcTotalWidth(mHundredths, mHundredthsLength);
     }
 
     public void setTotalTextWidth() {
@@ -438,8 +475,10 @@ public class CountingTimerView extends View {
     }
 
     public void showTime(boolean visible) {
-        mShowTimeStr = visible;
-        invalidate();
+        if (mShowTimeStr != visible) {
+            mShowTimeStr = visible;
+            invalidate();
+        }
     }
 
     public void redTimeStr(boolean red, boolean forceUpdate) {
@@ -451,17 +490,17 @@ public class CountingTimerView extends View {
     }
 
     public String getTimeString() {
-        // Though only called from Stopwatch Share, so hundredth are never null,
-        // protect the future and check for null mHundredths
-        if (mHundredths == null) {
-            if (mHours == null) {
-                return String.format("%s:%s", mMinutes, mSeconds);
-            }
-            return String.format("%s:%s:%s", mHours, mMinutes, mSeconds);
-        } else if (mHours == null) {
-            return String.format("%s:%s.%s", mMinutes, mSeconds, mHundredths);
+        // Though only called from Stopwatch Share, so hundredth are always shown,
+        // protect the future and check for hidden mHundredths
+        final StringBuilder time = new StringBuilder();
+        if (mHoursLength != 0) {
+            time.append(mHours, 0, mHoursLength).append(':');
+        }
+        time.append(mMinutes, 0, mMinutesLength).append(':').append(mSeconds, 0, mSecondsLength);
+        if (mHundredthsLength != 0) {
+            time.append('.').append(mHundredths, 0, mHundredthsLength);
         }
-        return String.format("%s:%s:%s.%s", mHours, mMinutes, mSeconds, mHundredths);
+        return time.toString();
     }
 
     public static String getTimeStringForAccessibility(int hours, int minutes, int seconds,
@@ -602,18 +641,20 @@ public class CountingTimerView extends View {
         mPaintLabel.setColor(textColor);
         mPaintMed.setColor(textColor);
 
-        if (mHours != null) {
-            textXstart = mBigHours.draw(canvas, mHours, textXstart, textYstart, labelYStart);
+        if (mHoursLength != 0) {
+            textXstart = mBigHours.draw(canvas, mHours, mHoursLength,
+                    textXstart, textYstart, labelYStart);
         }
-        if (mMinutes != null) {
-            textXstart = mBigMinutes.draw(canvas, mMinutes, textXstart, textYstart, labelYStart);
+        if (mMinutesLength != 0) {
+            textXstart = mBigMinutes.draw(canvas, mMinutes, mMinutesLength,
+                    textXstart, textYstart, labelYStart);
         }
-        if (mSeconds != null) {
-            textXstart = mBigThinSeconds.draw(canvas, mSeconds,
+        if (mSecondsLength != 0) {
+            textXstart = mBigThinSeconds.draw(canvas, mSeconds, mSecondsLength,
                     textXstart, textYstart, labelYStart);
         }
-        if (mHundredths != null) {
-            textXstart = mMedHundredths.draw(canvas, mHundredths,
+        if (mHundredthsLength != 0) {
+            textXstart = mMedHundredths.draw(canvas, mHundredths, mHundredthsLength,
                     textXstart, textYstart, textYstart);
         }
     }
@@ -37,6 +37,7 @@ import android.view.ViewGroup;
 import android.view.ViewGroup.LayoutParams;
 import android.view.animation.AccelerateInterpolator;
 import android.view.animation.DecelerateInterpolator;
+import android.widget.AbsListView;
 import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.FrameLayout;
@@ -76,7 +77,13 @@ public class TimerFragment extends DeskClockFragment
     public TimerSetupView mTimerSetup;
     public TimersListAdapter mAdapter;
     public boolean mTicking = false;
+    // Adapter positions of the rows shown when the clock last ticked.
+    public int mTickedFirst = -1, mTickedLast = -1;
+    // Runs of mClockTick and the time spent in them, for TimerTickBenchmark.
+    int mTickCount;
+    long mTickNanos;
     public SharedPreferences mPrefs;
+    public TimerRegistry mRegistry;
     public NotificationManager mNotificationManager;
     public OnEmptyListListener mOnEmptyListListener;
     public View mLastVisibleView = null;  // used to decide if to set the view or animate to it.
@@ -150,7 +157,7 @@ public class TimerFragment extends DeskClockFragment
                     if (t.mView != null) {
                         ((TimerListItem) t.mView).stop();
                     }
-                    t.deleteFromSharedPref(mmPrefs);
+                    mRegistry.remove(id);
                     mTimers.remove(i);
                     notifyDataSetChanged();
                     return;
@@ -260,16 +267,16 @@ public class TimerFragment extends DeskClockFragment
         }
 
         public void onSaveInstanceState(Bundle outState) {
-            TimerObj.putTimersInSharedPrefs(mmPrefs, mTimers);
+            mRegistry.putAll(mTimers);
         }
 
         public void onRestoreInstanceState(Bundle outState) {
-            TimerObj.getTimersFromSharedPrefs(mmPrefs, mTimers);
+            mRegistry.copyTimers(mTimers);
             sort();
         }
 
         public void saveGlobalState() {
-            TimerObj.putTimersInSharedPrefs(mmPrefs, mTimers);
+            mRegistry.putAll(mTimers);
         }
 
         public void sort() {
@@ -332,7 +339,7 @@ public class TimerFragment extends DeskClockFragment
         @Override
         public void onRestoreInstanceState(Bundle outState) {
             // This adapter loads a subset
-            TimerObj.getTimersFromSharedPrefs(mmPrefs, mTimers, TimerObj.STATE_TIMESUP);
+            mRegistry.copyTimers(mTimers, TimerObj.STATE_TIMESUP);
 
             if (getCount() == 0) {
                 mOnEmptyListListener.onEmptyList();
@@ -347,6 +354,10 @@ public class TimerFragment extends DeskClockFragment
         }
     }
 
+    // Runs when a shown timer's digits or blink phase change, or a timer
+    // that is not shown is up, and not at all when no timer is ticking or
+    // blinking.  It is posted for the next frame so its updates are drawn in
+    // that frame.
     public final Runnable mClockTick = new Runnable() {
         boolean mVisible = true;
         final static int TIME_PERIOD_MS = 1000;
@@ -354,38 +365,94 @@ public class TimerFragment extends DeskClockFragment
 
         @Override
         public void run() {
+            final long startNanos = System.nanoTime();
+            final long now = Utils.getTimeNow();
             // Setup for blinking
-            boolean visible = Utils.getTimeNow() % TIME_PERIOD_MS < SPLIT;
-            boolean toggle = mVisible != visible;
-            mVisible = visible;
+            mVisible = now % TIME_PERIOD_MS < SPLIT;
+            final int headers = mTimersList.getHeaderViewsCount();
+            mTickedFirst = mTimersList.getFirstVisiblePosition() - headers;
+            mTickedLast = mTimersList.getLastVisiblePosition() - headers;
+            long nextTick = Long.MAX_VALUE;
             for (int i = 0; i < mAdapter.getCount(); i ++) {
                 TimerObj t = (TimerObj) mAdapter.getItem(i);
+                final TimerListItem view = i >= mTickedFirst && i <= mTickedLast
+                        ? (TimerListItem) t.mView : null;
                 if (t.mState == TimerObj.STATE_RUNNING || t.mState == TimerObj.STATE_TIMESUP) {
                     long timeLeft = t.updateTimeLeft(false);
-                    if ((TimerListItem)(t.mView) != null) {
-                        ((TimerListItem)(t.mView)).setTime(timeLeft, false);
+                    if (view != null) {
+                        view.setTime(timeLeft, false);
+                        nextTick = Math.min(nextTick, getTimeUntilDigitsChange(timeLeft));
+                    } else if (t.mState == TimerObj.STATE_RUNNING && timeLeft > 0) {
+                        // Not shown, but it still has to become times up.
+                        nextTick = Math.min(nextTick, timeLeft);
                     }
                 }
                 if (t.mTimeLeft <= 0 && t.mState != TimerObj.STATE_DONE
                         && t.mState != TimerObj.STATE_RESTART) {
                     t.mState = TimerObj.STATE_TIMESUP;
                     TimerFragment.this.setTimerButtons(t);
-                    if ((TimerListItem)(t.mView) != null) {
-                        ((TimerListItem)(t.mView)).timesUp();
+                    if (view != null) {
+                        view.timesUp();
                     }
                 }
 
                 // The blinking
-                if (toggle && (TimerListItem)(t.mView) != null) {
+                if (view != null) {
                     if (t.mState == TimerObj.STATE_TIMESUP) {
-                        ((TimerListItem)(t.mView)).setCircleBlink(mVisible);
+                        view.setCircleBlink(mVisible);
                     }
                     if (t.mState == TimerObj.STATE_STOPPED) {
-                        ((TimerListItem)(t.mView)).setTextBlink(mVisible);
+                        view.setTextBlink(mVisible);
+                    }
+                    if (t.mState == TimerObj.STATE_TIMESUP
+                            || t.mState == TimerObj.STATE_STOPPED) {
+                        nextTick = Math.min(nextTick, SPLIT - now % SPLIT);
                     }
                 }
             }
-            mTimersList.postDelayed(mClockTick, 20);
+            if (nextTick != Long.MAX_VALUE) {
+                mTimersList.postOnAnimationDelayed(mClockTick, nextTick);
+            }
+            mTickCount++;
+            mTickNanos += System.nanoTime() - startNanos;
+        }
+    };
+
+    /**
+     * Returns how long until a timer showing the given time left shows
+     * another number of seconds.  Times left are rounded up to seconds, and
+     * past the end the time is shown rounded down.
+     */
+    static long getTimeUntilDigitsChange(long timeLeft) {
+        if (timeLeft > 0) {
+            return timeLeft % 1000 + 1;
+        }
+        return 1000 - (-timeLeft % 1000);
+    }
+
+    // The adapters work on copies of the timers.  Changes made to them here
+    // are put in the registry as they happen; this picks up the ones made
+    // elsewhere, like a timer stopped from its notification.
+    public final TimerRegistry.OnTimersChangedListener mTimersChangedListener =
+            new TimerRegistry.OnTimersChangedListener() {
+        @Override
+        public void onTimerChanged(int timerId) {
+            if (mAdapter == null) {
+                return;
+            }
+            final int position = mAdapter.findTimerPositionById(timerId);
+            final TimerObj timer = mRegistry.get(timerId);
+            if (position < 0 || timer == null) {
+                return;
+            }
+            final TimerObj t = (TimerObj) mAdapter.getItem(position);
+            if (t.mState != timer.mState) {
+                t.set(timer);
+                setTimerButtons(t);
+                mAdapter.notifyDataSetChanged();
+                updateTimesUpMode(t);
+                updateClockTicks();
+            }
         }
     };
 
@@ -418,6 +485,22 @@ public class TimerFragment extends DeskClockFragment
         }
 
         mTimersList = (ListView)v.findViewById(R.id.timers_list);
+        mTimersList.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                // Rows that scroll into view need the clock to tick for them.
+                final int headers = mTimersList.getHeaderViewsCount();
+                if (firstVisibleItem - headers != mTickedFirst
+                        || firstVisibleItem + visibleItemCount - 1 - headers != mTickedLast) {
+                    updateClockTicks();
+                }
+            }
+        });
 
         // Use light's out if this fragment is within the DeskClock
         LayoutParams params;
@@ -486,6 +569,7 @@ public class TimerFragment extends DeskClockFragment
         mTimerFooter = v.findViewById(R.id.timer_footer);
         mTimerFooter.setVisibility(mOnEmptyListListener == null ? View.VISIBLE : View.GONE);
         mPrefs = PreferenceManager.getDefaultSharedPreferences(getActivity());
+        mRegistry = TimerRegistry.getInstance(getActivity());
         mNotificationManager = (NotificationManager)
                 getActivity().getSystemService(Context.NOTIFICATION_SERVICE);
 
@@ -506,6 +590,7 @@ public class TimerFragment extends DeskClockFragment
         }
         super.onResume();
         mPrefs.registerOnSharedPreferenceChangeListener(this);
+        mRegistry.addListener(mTimersChangedListener);
 
         mAdapter = createAdapter(getActivity(), mPrefs);
         mAdapter.onRestoreInstanceState(null);
@@ -558,6 +643,7 @@ public class TimerFragment extends DeskClockFragment
             mAdapter.saveGlobalState ();
         }
         mPrefs.unregisterOnSharedPreferenceChangeListener(this);
+        mRegistry.removeListener(mTimersChangedListener);
         // This is called because the lock screen was activated, the window stay
         // active under it and when we unlock the screen, we see the old time for
         // a fraction of a second.
@@ -853,8 +939,10 @@ public class TimerFragment extends DeskClockFragment
     }
 
     public void setLabel(TimerObj timer, String label) {
-        ((TimerObj) mAdapter.getItem(
-                mAdapter.findTimerPositionById(timer.mTimerId))).mLabel = label;
+        final TimerObj t = (TimerObj) mAdapter.getItem(
+                mAdapter.findTimerPositionById(timer.mTimerId));
+        t.mLabel = label;
+        mRegistry.put(t);
         if (timer.mState == TimerObj.STATE_TIMESUP) {
             // Timer is in timesup mode.
             TimerReceiver.showExpiredAlarmNotification(
@@ -920,9 +1008,20 @@ public class TimerFragment extends DeskClockFragment
     }
 
     public void startClockTicks() {
-        mTimersList.postDelayed(mClockTick, 20);
+        mTimersList.removeCallbacks(mClockTick);
+        mTimersList.postOnAnimation(mClockTick);
         mTicking = true;
     }
+
+    /**
+     * Ticks the clock on the next frame if the timers are shown, after a
+     * change that can start a timer ticking or blinking.
+     */
+    public void updateClockTicks() {
+        if (mTicking) {
+            startClockTicks();
+        }
+    }
     public void stopClockTicks() {
         if (mTicking) {
             mTimersList.removeCallbacks(mClockTick);
@@ -932,12 +1031,13 @@ public class TimerFragment extends DeskClockFragment
 
     public void updateTimersState(TimerObj t, String action) {
         if (!Timers.DELETE_TIMER.equals(action)) {
-            t.writeToSharedPref(mPrefs);
+            mRegistry.put(t);
         }
         Intent i = new Intent();
         i.setAction(action);
         i.putExtra(Timers.TIMER_INTENT_EXTRA, t.mTimerId);
         getActivity().sendBroadcast(i);
+        updateClockTicks();
     }
 
     public void cancelTimerNotification(int timerId) {
@@ -982,6 +1082,7 @@ public class TimerFragment extends DeskClockFragment
                     cancelTimerNotification(timerId);
                 }
                 mTimersList.setAdapter(mAdapter);
+                updateClockTicks();
                 SharedPreferences.Editor editor = prefs.edit();
                 editor.putBoolean(Timers.FROM_NOTIFICATION, false);
                 editor.apply();
@@ -995,6 +1096,7 @@ public class TimerFragment extends DeskClockFragment
                 mAdapter = createAdapter(getActivity(), mPrefs);
                 mAdapter.onRestoreInstanceState(null);
                 mTimersList.setAdapter(mAdapter);
+                updateClockTicks();
             }
         }
     }
@@ -76,6 +76,18 @@ public class TimerObj implements Parcelable {
 
     public void writeToSharedPref(SharedPreferences prefs) {
         final SharedPreferences.Editor editor = prefs.edit();
+        writeToEditor(editor);
+        final Set <String> timersList = prefs.getStringSet(PREF_TIMERS_LIST, new HashSet<String>());
+        timersList.add(Integer.toString(mTimerId));
+        editor.putStringSet(PREF_TIMERS_LIST, timersList);
+        editor.apply();
+    }
+
+    /**
+     * Writes the timer to an editor, except for its id in PREF_TIMERS_LIST.
+     * The caller applies the editor.
+     */
+    public void writeToEditor(SharedPreferences.Editor editor) {
         String key = PREF_TIMER_ID + Integer.toString(mTimerId);
         final String id = Integer.toString(mTimerId);
         editor.putInt (key, mTimerId);
@@ -89,12 +101,8 @@ public class TimerObj implements Parcelable {
         editor.putLong (key, mSetupLength);
         key = PREF_STATE + id;
         editor.putInt (key, mState);
-        final Set <String> timersList = prefs.getStringSet(PREF_TIMERS_LIST, new HashSet<String>());
-        timersList.add(id);
-        editor.putStringSet(PREF_TIMERS_LIST, timersList);
         key = PREF_LABEL + id;
         editor.putString(key, mLabel);
-        editor.apply();
     }
 
 
@@ -171,6 +179,26 @@ public class TimerObj implements Parcelable {
       init(timerLength);
     }
 
+    /**
+     * Creates a copy of a timer, without its view.
+     */
+    public TimerObj(final TimerObj timer) {
+        set(timer);
+    }
+
+    /**
+     * Copies the state of a timer, but not its view.
+     */
+    public void set(final TimerObj timer) {
+        mTimerId = timer.mTimerId;
+        mStartTime = timer.mStartTime;
+        mTimeLeft = timer.mTimeLeft;
+        mOriginalLength = timer.mOriginalLength;
+        mSetupLength = timer.mSetupLength;
+        mState = timer.mState;
+        mLabel = timer.mLabel;
+    }
+
 
     public void init (final long length) {
 
@@ -33,7 +33,6 @@ import com.android.deskclock.TimerRingService;
 import com.android.deskclock.Utils;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 
 public class TimerReceiver extends BroadcastReceiver {
     public static final String TAG = "TimerReceiver";
@@ -42,19 +41,19 @@ public class TimerReceiver extends BroadcastReceiver {
     // Must also be different than StopwatchService.NOTIFICATION_ID
     public static final int IN_USE_NOTIFICATION_ID = Integer.MAX_VALUE - 2;
 
-    ArrayList<TimerObj> mTimers;
+    // Timers up within this long of the one the alarm went off for are
+    // handled with it, so timers set to go off together ring once.
+    private static final long TIMES_UP_WINDOW_MS = 500;
+
+    TimerRegistry mRegistry;
 
     @Override
     public void onReceive(final Context context, final Intent intent) {
         int timer;
         String actionType = intent.getAction();
 
-        // Get the updated timers data.
-        if (mTimers == null) {
-            mTimers = new ArrayList<TimerObj> ();
-        }
+        mRegistry = TimerRegistry.getInstance(context);
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        TimerObj.getTimersFromSharedPrefs(prefs, mTimers);
 
 
         if (intent.hasExtra(Timers.TIMER_INTENT_EXTRA)) {
@@ -75,7 +74,7 @@ public class TimerReceiver extends BroadcastReceiver {
             return;
         }
 
-        final TimerObj t = Timers.findTimer(mTimers, timer);
+        final TimerObj t = mRegistry.get(timer);
 
         if (intent.getBooleanExtra(Timers.UPDATE_NOTIFICATION, false)) {
             if (Timers.TIMER_STOP.equals(actionType)) {
@@ -83,8 +82,9 @@ public class TimerReceiver extends BroadcastReceiver {
                     Log.d(TAG, "timer not found in list - can't stop it.");
                     return;
                 }
-                t.mState = TimerObj.STATE_DONE;
-                t.writeToSharedPref(prefs);
+                final TimerObj done = new TimerObj(t);
+                done.mState = TimerObj.STATE_DONE;
+                mRegistry.put(done);
                 final SharedPreferences.Editor editor = prefs.edit();
                 editor.putBoolean(Timers.FROM_NOTIFICATION, true);
                 editor.putLong(Timers.NOTIF_TIME, Utils.getTimeNow());
@@ -102,22 +102,28 @@ public class TimerReceiver extends BroadcastReceiver {
         }
 
         if (Timers.TIMES_UP.equals(actionType)) {
-            // Find the timer (if it doesn't exists, it was probably deleted).
-            if (t == null) {
-                Log.d(TAG, " timer not found in list - do nothing");
+            // Take every timer that is up now, not only the one in the intent, and
+            // mark them all in one write.
+            final ArrayList<TimerObj> timesUp = new ArrayList<TimerObj>();
+            mRegistry.copyRunningTimersUpBy(Utils.getTimeNow() + TIMES_UP_WINDOW_MS, timesUp);
+            if (timesUp.isEmpty()) {
+                // The timer was probably deleted or stopped meanwhile.
+                Log.d(TAG, " no timer is up - do nothing");
+                updateNextTimesup(context);
                 return;
             }
-
-            t.mState = TimerObj.STATE_TIMESUP;
-            t.writeToSharedPref(prefs);
+            for (TimerObj timesUpTimer : timesUp) {
+                timesUpTimer.mState = TimerObj.STATE_TIMESUP;
+            }
+            mRegistry.putAll(timesUp);
             // Play ringtone by using TimerRingService service with a default alarm.
-            Log.d(TAG, "playing ringtone");
+            Log.d(TAG, "playing ringtone for " + timesUp.size() + " timers");
             final Intent si = new Intent();
             si.setClass(context, TimerRingService.class);
             context.startService(si);
 
             // Update the in-use notification
-            if (getNextRunningTimer(mTimers, false, Utils.getTimeNow()) == null) {
+            if (mRegistry.getNextRunningTimer(false, Utils.getTimeNow()) == null) {
                 // Found no running timers.
                 cancelInUseNotification(context);
             } else {
@@ -140,7 +146,7 @@ public class TimerReceiver extends BroadcastReceiver {
     }
 
     public void stopRingtoneIfNoTimesup(final Context context) {
-        if (Timers.findExpiredTimer(mTimers) == null) {
+        if (!mRegistry.hasTimesUpTimer()) {
             // Stop ringtone
             Log.d(TAG, "stopping ringtone");
             final Intent si = new Intent();
@@ -154,7 +160,7 @@ public class TimerReceiver extends BroadcastReceiver {
     // If no timer exists, clear "time's up" message.
 
     public void updateNextTimesup(Context context) {
-        final TimerObj t = getNextRunningTimer(mTimers, false, Utils.getTimeNow());
+        final TimerObj t = mRegistry.getNextRunningTimer(false, Utils.getTimeNow());
         final long nextTimesup = (t == null) ? -1 : t.getTimesupTime();
         final int timerId = (t == null) ? -1 : t.mTimerId;
 
@@ -162,7 +168,7 @@ public class TimerReceiver extends BroadcastReceiver {
         final Intent intent = new Intent();
         intent.setAction(Timers.TIMES_UP);
         intent.setClass(context, TimerReceiver.class);
-        if (!mTimers.isEmpty()) {
+        if (mRegistry.size() > 0) {
             intent.putExtra(Timers.TIMER_INTENT_EXTRA, timerId);
         }
         AlarmManager mngr = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
@@ -181,7 +187,9 @@ public class TimerReceiver extends BroadcastReceiver {
     public void showInUseNotification(final Context context) {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         final boolean appOpen = prefs.getBoolean(Timers.NOTIF_APP_OPEN, false);
-        final ArrayList<TimerObj> timersInUse = Timers.timersInUse(mTimers);
+        final ArrayList<TimerObj> timers = new ArrayList<TimerObj>();
+        mRegistry.getTimers(timers);
+        final ArrayList<TimerObj> timersInUse = Timers.timersInUse(timers);
         final int numTimersInUse = timersInUse.size();
 
 
@@ -204,7 +212,7 @@ public class TimerReceiver extends BroadcastReceiver {
                 nextBroadcastTime = getBroadcastTime(now, timeLeft);
             }
         } else {
-            final TimerObj timer = getNextRunningTimer(timersInUse, false, now);
+            final TimerObj timer = mRegistry.getNextRunningTimer(false, now);
             if (timer == null) {
                 // No running timers.
                 title = String.format(
@@ -219,7 +227,7 @@ public class TimerReceiver extends BroadcastReceiver {
                 contentText = String.format(context.getString(R.string.next_timer_notif),
                         buildTimeRemaining(context, timeLeft));
                 if (timeLeft <= 60 * 1000) {
-                    final TimerObj timerWithUpdate = getNextRunningTimer(timersInUse, true, now);
+                    final TimerObj timerWithUpdate = mRegistry.getNextRunningTimer(true, now);
                     if (timerWithUpdate != null) {
                         completionTime = timerWithUpdate.getTimesupTime();
                         timeLeft = completionTime - now;
@@ -329,32 +337,6 @@ public class TimerReceiver extends BroadcastReceiver {
         return String.format(formats[index], hourSeq, minSeq);
     }
 
-    public TimerObj getNextRunningTimer(
-            ArrayList<TimerObj> timers, boolean requireNextUpdate, long now) {
-        long nextTimesup = Long.MAX_VALUE;
-        boolean nextTimerFound = false;
-        final Iterator<TimerObj> i = timers.iterator();
-        TimerObj t = null;
-        while(i.hasNext()) {
-            final TimerObj tmp = i.next();
-            if (tmp.mState == TimerObj.STATE_RUNNING) {
-                final long timesupTime = tmp.getTimesupTime();
-                final long timeLeft = timesupTime - now;
-                if (timesupTime < nextTimesup && (!requireNextUpdate || timeLeft > 60) ) {
-                    nextTimesup = timesupTime;
-                    nextTimerFound = true;
-                    t = tmp;
-                }
-            }
-        }
-        if (nextTimerFound) {
-            return t;
-        } else {
-            return null;
-        }
-    }
-
-
     public void cancelInUseNotification(final Context context) {
         final NotificationManager notificationManager =
 
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.timer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * The timers of the process, loaded from the shared preferences once and
+ * shared by the timer fragments, the receiver and the notifications.  Every
+ * change is written through to the shared preferences and reported to the
+ * listeners on the main thread.
+ *
+ * The registry owns the TimerObj instances it returns: they have no view and
+ * must only be changed through {@link #put}.  Code that keeps its own state
+ * in a timer, like the list adapters, works on copies.
+ *
+ * The running timers are also kept in a min-heap by the time they are up,
+ * so the next one is found without going through all the timers.
+ */
+public final class TimerRegistry {
+
+    public interface OnTimersChangedListener {
+        /**
+         * Called after a timer was added, changed or removed.  Get it with
+         * {@link TimerRegistry#get}, which returns null if it was removed.
+         */
+        public void onTimerChanged(int timerId);
+    }
+
+    private static TimerRegistry sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Guarded by this.
+    private final HashMap<Integer, TimerObj> mTimers = new HashMap<Integer, TimerObj>();
+    // The timers in STATE_RUNNING.  Guarded by this.
+    private final PriorityQueue<TimerObj> mRunning =
+            new PriorityQueue<TimerObj>(11, SOONEST_FIRST);
+    // Timers taken off mRunning by getNextRunningTimer().  Guarded by this.
+    private final ArrayList<TimerObj> mSkipped = new ArrayList<TimerObj>();
+    // The number of timers in STATE_TIMESUP.  Guarded by this.
+    private int mTimesUpCount;
+    // Only used on the main thread.
+    private final ArrayList<OnTimersChangedListener> mListeners =
+            new ArrayList<OnTimersChangedListener>();
+
+    public static synchronized TimerRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TimerRegistry(PreferenceManager.getDefaultSharedPreferences(
+                    context.getApplicationContext()));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Replaces the registry getInstance() returns, and returns the one it
+     * replaced, which may be null.  For benchmarks that run the timer UI on
+     * their own timers.
+     */
+    static synchronized TimerRegistry setInstance(TimerRegistry registry) {
+        final TimerRegistry old = sInstance;
+        sInstance = registry;
+        return old;
+    }
+
+    // Package-private for tests, which use their own shared preferences.
+    TimerRegistry(SharedPreferences prefs) {
+        mPrefs = prefs;
+        final ArrayList<TimerObj> timers = new ArrayList<TimerObj>();
+        TimerObj.getTimersFromSharedPrefs(prefs, timers);
+        for (TimerObj t : timers) {
+            mTimers.put(t.mTimerId, t);
+            indexLocked(t);
+        }
+    }
+
+    /**
+     * Returns the timer with the given id, or null if there is none.  The
+     * timer is owned by the registry.
+     */
+    public synchronized TimerObj get(int timerId) {
+        return mTimers.get(timerId);
+    }
+
+    public synchronized int size() {
+        return mTimers.size();
+    }
+
+    /**
+     * Returns the running timer that is up first, or null if no timer is
+     * running.
+     *
+     * @param requireNextUpdate if true, skip the timers that are up within
+     *        60 ms of now
+     */
+    public synchronized TimerObj getNextRunningTimer(boolean requireNextUpdate, long now) {
+        TimerObj next = mRunning.peek();
+        if (next == null || !requireNextUpdate || next.getTimesupTime() - now > 60) {
+            return next;
+        }
+        // Only the few timers up within 60 ms are taken off the heap, and
+        // put back once the next one is found.
+        while (next != null && next.getTimesupTime() - now <= 60) {
+            mSkipped.add(mRunning.poll());
+            next = mRunning.peek();
+        }
+        mRunning.addAll(mSkipped);
+        mSkipped.clear();
+        return next;
+    }
+
+    /**
+     * Returns true if a timer is up and not yet stopped.
+     */
+    public synchronized boolean hasTimesUpTimer() {
+        return mTimesUpCount > 0;
+    }
+
+    /**
+     * Adds copies of the running timers that are up at or before the given
+     * time to the list, soonest first.
+     */
+    public synchronized void copyRunningTimersUpBy(long time, ArrayList<TimerObj> timers) {
+        final int start = timers.size();
+        for (TimerObj t : mRunning) {
+            if (t.getTimesupTime() <= time) {
+                timers.add(new TimerObj(t));
+            }
+        }
+        Collections.sort(timers.subList(start, timers.size()), SOONEST_FIRST);
+    }
+
+    /**
+     * Adds the timers owned by the registry to the list, newest first.
+     */
+    public synchronized void getTimers(ArrayList<TimerObj> timers) {
+        timers.addAll(mTimers.values());
+        Collections.sort(timers, NEWEST_FIRST);
+    }
+
+    /**
+     * Adds copies of the timers to the list, newest first.
+     */
+    public synchronized void copyTimers(ArrayList<TimerObj> timers) {
+        final int start = timers.size();
+        for (TimerObj t : mTimers.values()) {
+            timers.add(new TimerObj(t));
+        }
+        Collections.sort(timers.subList(start, timers.size()), NEWEST_FIRST);
+    }
+
+    /**
+     * Adds copies of the timers in the given state to the list, in no
+     * particular order.
+     */
+    public synchronized void copyTimers(ArrayList<TimerObj> timers, int state) {
+        for (TimerObj t : mTimers.values()) {
+            if (t.mState == state) {
+                timers.add(new TimerObj(t));
+            }
+        }
+    }
+
+    /**
+     * Adds or updates a timer from a copy, and writes it to the shared
+     * preferences.
+     */
+    public void put(TimerObj timer) {
+        final ArrayList<TimerObj> timers = new ArrayList<TimerObj>(1);
+        timers.add(timer);
+        putAll(timers);
+    }
+
+    /**
+     * Adds or updates several timers from copies, in one write to the shared
+     * preferences.
+     */
+    public void putAll(ArrayList<TimerObj> timers) {
+        final int[] ids = new int[timers.size()];
+        synchronized (this) {
+            final SharedPreferences.Editor editor = mPrefs.edit();
+            for (int i = 0; i < ids.length; i++) {
+                final TimerObj timer = timers.get(i);
+                putLocked(timer).writeToEditor(editor);
+                ids[i] = timer.mTimerId;
+            }
+            editor.putStringSet(TimerObj.PREF_TIMERS_LIST, getIdsLocked());
+            editor.apply();
+        }
+        for (int id : ids) {
+            notifyChanged(id);
+        }
+    }
+
+    private TimerObj putLocked(TimerObj timer) {
+        TimerObj t = mTimers.get(timer.mTimerId);
+        if (t == null) {
+            t = new TimerObj(timer);
+            mTimers.put(t.mTimerId, t);
+        } else {
+            // Its place in the heap may change.
+            unindexLocked(t);
+            t.set(timer);
+        }
+        indexLocked(t);
+        return t;
+    }
+
+    private HashSet<String> getIdsLocked() {
+        final HashSet<String> ids = new HashSet<String>();
+        for (Integer id : mTimers.keySet()) {
+            ids.add(id.toString());
+        }
+        return ids;
+    }
+
+    private void indexLocked(TimerObj t) {
+        if (t.mState == TimerObj.STATE_RUNNING) {
+            mRunning.add(t);
+        } else if (t.mState == TimerObj.STATE_TIMESUP) {
+            mTimesUpCount++;
+        }
+    }
+
+    private void unindexLocked(TimerObj t) {
+        if (t.mState == TimerObj.STATE_RUNNING) {
+            mRunning.remove(t);
+        } else if (t.mState == TimerObj.STATE_TIMESUP) {
+            mTimesUpCount--;
+        }
+    }
+
+    /**
+     * Removes a timer and deletes it from the shared preferences.
+     */
+    public void remove(int timerId) {
+        synchronized (this) {
+            final TimerObj t = mTimers.remove(timerId);
+            if (t == null) {
+                return;
+            }
+            unindexLocked(t);
+            t.deleteFromSharedPref(mPrefs);
+        }
+        notifyChanged(timerId);
+    }
+
+    /**
+     * Puts every timer back to its setup length, not started, as after a
+     * reboot.
+     */
+    public void resetAll() {
+        final int[] ids;
+        synchronized (this) {
+            ids = new int[mTimers.size()];
+            mRunning.clear();
+            mTimesUpCount = 0;
+            final SharedPreferences.Editor editor = mPrefs.edit();
+            int i = 0;
+            final Iterator<TimerObj> it = mTimers.values().iterator();
+            while (it.hasNext()) {
+                final TimerObj t = it.next();
+                t.mState = TimerObj.STATE_RESTART;
+                t.mTimeLeft = t.mOriginalLength = t.mSetupLength;
+                t.writeToEditor(editor);
+                ids[i++] = t.mTimerId;
+            }
+            editor.apply();
+        }
+        for (int id : ids) {
+            notifyChanged(id);
+        }
+    }
+
+    /**
+     * Adds a listener.  Must be called on the main thread.
+     */
+    public void addListener(OnTimersChangedListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.  Must be called on the main thread.
+     */
+    public void removeListener(OnTimersChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void notifyChanged(final int timerId) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyChanged(timerId);
+                }
+            });
+            return;
+        }
+        // Copied so a listener can remove itself.
+        final OnTimersChangedListener[] listeners = mListeners.toArray(
+                new OnTimersChangedListener[mListeners.size()]);
+        for (OnTimersChangedListener listener : listeners) {
+            listener.onTimerChanged(timerId);
+        }
+    }
+
+    // Ties go to the newest timer, as when the timers were scanned newest
+    // first for the one with the lowest time.
+    private static final Comparator<TimerObj> SOONEST_FIRST = new Comparator<TimerObj>() {
+        @Override
+        public int compare(TimerObj timerObj1, TimerObj timerObj2) {
+            final long timesup1 = timerObj1.getTimesupTime();
+            final long timesup2 = timerObj2.getTimesupTime();
+            if (timesup1 != timesup2) {
+                return timesup1 < timesup2 ? -1 : 1;
+            }
+            return timerObj2.mTimerId - timerObj1.mTimerId;
+        }
+    };
+
+    private static final Comparator<TimerObj> NEWEST_FIRST = new Comparator<TimerObj>() {
+        @Override
+        public int compare(TimerObj timerObj1, TimerObj timerObj2) {
+            return timerObj2.mTimerId - timerObj1.mTimerId;
+        }
+    };
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks that the alarm queries are answered from the indexes of
+ * AlarmDatabaseHelper rather than by scanning or sorting the table.
+ */
+public class AlarmDatabaseIndexTest extends AndroidTestCase {
+
+    private static final int ALARMS = 10000;
+
+    // 2013-06-10T00:00:00Z
+    private static final long START = 1370822400000L;
+    private static final long HOUR = ZoneOffsetTable.HOUR_MILLIS;
+
+    private Context mContext;
+    private AlarmDatabaseHelper mHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new RenamingDelegatingContext(getContext(), "test.");
+        mContext.deleteDatabase(AlarmDatabaseHelper.DATABASE_NAME);
+        mHelper = new AlarmDatabaseHelper(mContext);
+        mDb = mHelper.getWritableDatabase();
+
+        // Half repeating, a tenth enabled, spread over the day and a week.
+        final Random random = new Random(1);
+        final ContentValues values = new ContentValues();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < ALARMS; i++) {
+                final boolean repeating = random.nextBoolean();
+                values.put(Alarm.Columns.HOUR, random.nextInt(24));
+                values.put(Alarm.Columns.MINUTES, random.nextInt(60));
+                values.put(Alarm.Columns.DAYS_OF_WEEK, repeating ? 1 + random.nextInt(0x7f) : 0);
+                values.put(Alarm.Columns.ALARM_TIME,
+                        repeating ? 0 : START + (long) random.nextInt(7 * 24) * HOUR);
+                values.put(Alarm.Columns.ENABLED, random.nextInt(10) == 0 ? 1 : 0);
+                values.put(Alarm.Columns.VIBRATE, 1);
+                values.put(Alarm.Columns.MESSAGE, "");
+                values.put(Alarm.Columns.ALERT, "");
+                mDb.insert("alarms", null, values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        mContext.deleteDatabase(AlarmDatabaseHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    /**
+     * Returns the detail column of each row of the query plan.
+     */
+    private ArrayList<String> explain(String sql) {
+        final ArrayList<String> plan = new ArrayList<String>();
+        final Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            while (c.moveToNext()) {
+                plan.add(c.getString(3));
+            }
+        } finally {
+            c.close();
+        }
+        return plan;
+    }
+
+    /**
+     * Asserts that every access to the alarms table goes through the index,
+     * and, if sorted is true, that no temporary b-tree sorts the rows.
+     */
+    private void assertUsesIndex(String sql, String index, boolean sorted) {
+        final ArrayList<String> plan = explain(sql);
+        int accesses = 0;
+        for (String detail : plan) {
+            if (detail.startsWith("SCAN") || detail.startsWith("SEARCH")) {
+                accesses++;
+                assertTrue(sql + "\n" + plan, detail.contains("INDEX " + index));
+            }
+            if (sorted) {
+                assertFalse(sql + "\n" + plan, detail.contains("TEMP B-TREE"));
+            }
+        }
+        assertTrue(sql + "\n" + plan, accesses > 0);
+    }
+
+    private static String select(String where, String sort, String limit) {
+        return SQLiteQueryBuilder.buildQueryString(false, "alarms",
+                Alarm.Columns.ALARM_QUERY_COLUMNS, where, null, null, sort, limit);
+    }
+
+    private static String selectKeyset(int[] after, int[] through, String limit) {
+        final Uri.Builder builder = Alarm.Columns.CONTENT_URI.buildUpon();
+        if (after != null) {
+            builder.appendQueryParameter(Alarm.Columns.PARAM_AFTER,
+                    after[0] + "," + after[1] + "," + after[2]);
+        }
+        if (through != null) {
+            builder.appendQueryParameter(Alarm.Columns.PARAM_THROUGH,
+                    through[0] + "," + through[1] + "," + through[2]);
+        }
+        final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables("alarms");
+        assertTrue(AlarmProvider.appendKeysetWhere(qb, builder.build()));
+        return qb.buildQuery(Alarm.Columns.ALARM_QUERY_COLUMNS, null, null, null,
+                Alarm.Columns.DEFAULT_SORT_ORDER, limit);
+    }
+
+    public void testEnabledAlarms() {
+        assertUsesIndex(select(Alarm.Columns.WHERE_ENABLED, null, null),
+                "alarms_enabled_time_hour", false);
+    }
+
+    public void testDefaultSortOrder() {
+        assertUsesIndex(select(null, Alarm.Columns.DEFAULT_SORT_ORDER, null),
+                "alarms_sort", true);
+    }
+
+    public void testKeysetPages() {
+        // The first page, a middle page, the last page, and a page bounded
+        // by the start of the next one.
+        assertUsesIndex(select(null, Alarm.Columns.DEFAULT_SORT_ORDER, "50"),
+                "alarms_sort", true);
+        assertUsesIndex(selectKeyset(new int[] { 7, 30, 5000 }, null, "50"),
+                "alarms_sort", true);
+        assertUsesIndex(selectKeyset(new int[] { 23, 59, 1 }, null, "50"),
+                "alarms_sort", true);
+        assertUsesIndex(selectKeyset(new int[] { 7, 30, 5000 }, new int[] { 9, 0, 20 }, null),
+                "alarms_sort", true);
+        assertUsesIndex(selectKeyset(null, new int[] { 9, 0, 20 }, null),
+                "alarms_sort", true);
+    }
+
+    public void testFiringBetween() {
+        // An hour, a range crossing midnight, a few days, and more than a
+        // week, which takes every repeating alarm.
+        final long[][] ranges = {
+            { START + 7 * HOUR, START + 8 * HOUR },
+            { START + 22 * HOUR, START + 26 * HOUR },
+            { START, START + 3 * 24 * HOUR },
+            { START, START + 8 * 24 * HOUR },
+        };
+        for (long[] range : ranges) {
+            assertUsesIndex(AlarmProvider.buildFiringQuery(Alarm.Columns.ALARM_QUERY_COLUMNS,
+                    range[0], range[1], Alarm.Columns.DEFAULT_SORT_ORDER),
+                    "alarms_enabled_time_hour", false);
+        }
+    }
+}
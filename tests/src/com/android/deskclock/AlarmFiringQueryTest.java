@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+/**
+ * Checks the alarms returned by the firing query against the fire times
+ * of every alarm, for ranges around the DST changes of several zones.
+ */
+public class AlarmFiringQueryTest extends AndroidTestCase {
+
+    private static final long MINUTE = ZoneOffsetTable.MINUTE_MILLIS;
+    private static final long HOUR = ZoneOffsetTable.HOUR_MILLIS;
+    private static final long DAY = ZoneOffsetTable.DAY_MILLIS;
+
+    // 2013-01-01T00:00:00Z
+    private static final long YEAR_START = 1356998400000L;
+
+    private static final String[] ZONES = {
+        "UTC", "Europe/Berlin", "America/Los_Angeles", "America/Sao_Paulo",
+        // A 30 minute change, and one at midnight.
+        "Australia/Lord_Howe", "Asia/Tehran",
+    };
+
+    private static final String[] ID_COLUMN = { Alarm.Columns._ID };
+
+    private Context mContext;
+    private AlarmDatabaseHelper mHelper;
+    private SQLiteDatabase mDb;
+    private TimeZone mDefaultZone;
+    // id, minute of the day and days of week of each repeating alarm.
+    private final ArrayList<int[]> mAlarms = new ArrayList<int[]>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDefaultZone = TimeZone.getDefault();
+        mContext = new RenamingDelegatingContext(getContext(), "test.");
+        mContext.deleteDatabase(AlarmDatabaseHelper.DATABASE_NAME);
+        mHelper = new AlarmDatabaseHelper(mContext);
+        mDb = mHelper.getWritableDatabase();
+        mDb.delete("alarms", null, null);
+
+        // Every five minutes: daily, on one day, and on the weekend.
+        final ContentValues values = new ContentValues();
+        mDb.beginTransaction();
+        try {
+            for (int minute = 0; minute < AlarmTimingWheel.MINUTES_PER_DAY; minute += 5) {
+                final int[] masks = { 0x7f, 1 << (minute / 5 % 7), 0x60 };
+                for (int days : masks) {
+                    values.put(Alarm.Columns.HOUR, minute / 60);
+                    values.put(Alarm.Columns.MINUTES, minute % 60);
+                    values.put(Alarm.Columns.DAYS_OF_WEEK, days);
+                    values.put(Alarm.Columns.ALARM_TIME, 0);
+                    values.put(Alarm.Columns.ENABLED, 1);
+                    values.put(Alarm.Columns.VIBRATE, 1);
+                    values.put(Alarm.Columns.MESSAGE, "");
+                    values.put(Alarm.Columns.ALERT, "");
+                    final int id = (int) mDb.insert("alarms", null, values);
+                    mAlarms.add(new int[] { id, minute, days });
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        mContext.deleteDatabase(AlarmDatabaseHelper.DATABASE_NAME);
+        TimeZone.setDefault(mDefaultZone);
+        ZoneOffsetTable.invalidate();
+        super.tearDown();
+    }
+
+    private static void setZone(String zone) {
+        TimeZone.setDefault(TimeZone.getTimeZone(zone));
+        ZoneOffsetTable.invalidate();
+    }
+
+    /**
+     * Returns the DST changes of the default zone in 2013, to the minute.
+     */
+    private static ArrayList<Long> changesIn2013() {
+        final ArrayList<Long> changes = new ArrayList<Long>();
+        for (long t = YEAR_START; t < YEAR_START + 365 * DAY; t += MINUTE) {
+            if (ZoneOffsetTable.getOffset(t) != ZoneOffsetTable.getOffset(t - MINUTE)) {
+                changes.add(t);
+            }
+        }
+        return changes;
+    }
+
+    private TreeSet<Integer> query(long start, long end) {
+        final TreeSet<Integer> ids = new TreeSet<Integer>();
+        final Cursor c = mDb.rawQuery(
+                AlarmProvider.buildFiringQuery(ID_COLUMN, start, end, null), null);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getInt(0));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the alarms with a fire time in [start, end), computed for
+     * each day the way Alarms.calculateAlarmTime() does.
+     */
+    private TreeSet<Integer> expected(long start, long end) {
+        final TreeSet<Integer> ids = new TreeSet<Integer>();
+        final long first = Alarms.floorDiv(start + ZoneOffsetTable.getOffset(start), DAY) - 2;
+        final long last = Alarms.floorDiv(end + ZoneOffsetTable.getOffset(end), DAY) + 2;
+        for (int[] alarm : mAlarms) {
+            for (long day = first; day <= last; day++) {
+                if ((alarm[2] & (1 << Alarms.dayOfWeek(day))) == 0) continue;
+                final long time = ZoneOffsetTable.localToUtc(day * DAY + alarm[1] * MINUTE);
+                if (time >= start && time < end) {
+                    ids.add(alarm[0]);
+                    break;
+                }
+            }
+        }
+        return ids;
+    }
+
+    private void assertFiring(String zone, long start, long end) {
+        assertEquals(zone + " [" + start + ", " + end + ")", expected(start, end),
+                query(start, end));
+    }
+
+    public void testRangesAroundDstChanges() {
+        final long[] lengths = { 30 * MINUTE, HOUR, 2 * HOUR, DAY, 3 * DAY };
+        for (String zone : ZONES) {
+            setZone(zone);
+            for (long change : changesIn2013()) {
+                // Starting or ending before, in and after the skipped or
+                // repeated hour.
+                for (long start = change - 3 * HOUR; start <= change + 3 * HOUR;
+                        start += 10 * MINUTE) {
+                    for (long length : lengths) {
+                        assertFiring(zone, start, start + length);
+                        assertFiring(zone, start - length, start);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testRandomRanges() {
+        final Random random = new Random(1);
+        for (String zone : ZONES) {
+            setZone(zone);
+            for (int i = 0; i < 200; i++) {
+                final long start = YEAR_START + (long) (random.nextDouble() * 365 * DAY);
+                final long length = random.nextInt(4) == 0
+                        ? (long) (random.nextDouble() * 9 * DAY)
+                        : (long) (random.nextDouble() * 2 * DAY);
+                assertFiring(zone, start, start + length);
+            }
+        }
+    }
+}
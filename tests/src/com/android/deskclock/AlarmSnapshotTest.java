@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class AlarmSnapshotTest extends TestCase {
+
+    private static final long[] TIMES = {
+        0L, 1L, -1L, 1370822400000L, -1370822400000L,
+        // Year 2100, and the extremes.
+        4102444800000L, Long.MAX_VALUE, Long.MIN_VALUE,
+    };
+
+    private static Alarm alarm(int id, int hour, int minute, int days, String label) {
+        final Alarm a = new Alarm();
+        a.id = id;
+        a.hour = hour;
+        a.minutes = minute;
+        a.daysOfWeek = new Alarm.DaysOfWeek(days);
+        a.label = label;
+        return a;
+    }
+
+    public void testRoundTripEverySchedule() {
+        for (int hour = 0; hour < 24; hour++) {
+            for (int minute = 0; minute < 60; minute++) {
+                for (int days = 0; days <= 0x7f; days++) {
+                    final Alarm a = alarm(hour * 60 + minute, hour, minute, days, "");
+                    final byte[] data = AlarmSnapshot.encode(a, 1370822400000L);
+                    assertEquals(AlarmSnapshot.SIZE, data.length);
+                    assertEquals(AlarmSnapshot.VERSION, data[0]);
+                    final AlarmSnapshot s = AlarmSnapshot.decode(data);
+                    assertNotNull(s);
+                    assertEquals(a.id, s.id);
+                    assertEquals(hour, s.getHour());
+                    assertEquals(minute, s.getMinutes());
+                    assertEquals(days, s.getDaysOfWeek());
+                    assertEquals(1370822400000L, s.time);
+                }
+            }
+        }
+    }
+
+    public void testRoundTripTimesIdsAndLabels() {
+        final int[] ids = { 0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        final String[] labels = { null, "", "Wake up", "⏰ été" };
+        for (long time : TIMES) {
+            for (int id : ids) {
+                for (String label : labels) {
+                    final AlarmSnapshot s = AlarmSnapshot.decode(
+                            AlarmSnapshot.encode(alarm(id, 23, 59, 0x7f, label), time));
+                    assertNotNull(s);
+                    assertEquals(id, s.id);
+                    assertEquals(time, s.time);
+                    assertEquals(label == null ? 0 : label.hashCode(), s.labelHash);
+                    assertEquals(23, s.getHour());
+                    assertEquals(59, s.getMinutes());
+                    assertEquals(0x7f, s.getDaysOfWeek());
+                }
+            }
+        }
+    }
+
+    public void testLayout() {
+        // Intents scheduled by this version must keep decoding after an
+        // upgrade, so the bytes are pinned.
+        final byte[] expected = {
+            1,
+            0, 0, 0, 42,
+            // 7:30 on Monday to Friday: 7 | 30 << 5 | 0x1f << 11
+            0, 0, (byte) 0xfb, (byte) 0xc7,
+            0, 0, 0x01, 0x3f, 0x2b, 0x5b, (byte) 0xbd, (byte) 0x80,
+            0, 0, 0, 0,
+        };
+        final byte[] data = AlarmSnapshot.encode(alarm(42, 7, 30, 0x1f, ""), 1370822000000L);
+        assertTrue(Arrays.toString(data), Arrays.equals(expected, data));
+    }
+
+    public void testRejectsOtherVersions() {
+        final byte[] data = AlarmSnapshot.encode(alarm(1, 7, 30, 0, "x"), 1L);
+        for (int version = Byte.MIN_VALUE; version <= Byte.MAX_VALUE; version++) {
+            data[0] = (byte) version;
+            if (version == AlarmSnapshot.VERSION) {
+                assertNotNull(AlarmSnapshot.decode(data));
+            } else {
+                assertNull("version " + version, AlarmSnapshot.decode(data));
+            }
+        }
+    }
+
+    public void testRejectsWrongSize() {
+        assertNull(AlarmSnapshot.decode(null));
+        final byte[] data = AlarmSnapshot.encode(alarm(1, 7, 30, 0, "x"), 1L);
+        for (int length = 0; length <= AlarmSnapshot.SIZE + 8; length++) {
+            if (length == AlarmSnapshot.SIZE) continue;
+            assertNull("length " + length, AlarmSnapshot.decode(Arrays.copyOf(data, length)));
+        }
+    }
+
+    public void testRejectsCorruptSchedule() {
+        final byte[] data = AlarmSnapshot.encode(alarm(1, 0, 0, 0, "x"), 1L);
+        // Hours 24-31, minutes 60-63 and any bit above the days of week.
+        for (int schedule : new int[] { 24, 31, 60 << 5, 63 << 5, 1 << 18, 1 << 31, -1 }) {
+            data[5] = (byte) (schedule >>> 24);
+            data[6] = (byte) (schedule >>> 16);
+            data[7] = (byte) (schedule >>> 8);
+            data[8] = (byte) schedule;
+            assertNull("schedule " + Integer.toHexString(schedule), AlarmSnapshot.decode(data));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+public class AlarmTimelineTest extends TestCase {
+
+    private static final long MINUTE = ZoneOffsetTable.MINUTE_MILLIS;
+    private static final long HOUR = ZoneOffsetTable.HOUR_MILLIS;
+    private static final long DAY = ZoneOffsetTable.DAY_MILLIS;
+
+    // 2013-06-10T00:00:00Z, a Monday.
+    private static final long MONDAY = 1370822400000L;
+
+    private TimeZone mDefaultZone;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDefaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        ZoneOffsetTable.invalidate();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TimeZone.setDefault(mDefaultZone);
+        ZoneOffsetTable.invalidate();
+        super.tearDown();
+    }
+
+    private static Alarm alarm(int id, int hour, int minute, int days) {
+        final Alarm a = new Alarm();
+        a.id = id;
+        a.enabled = true;
+        a.hour = hour;
+        a.minutes = minute;
+        a.daysOfWeek = new Alarm.DaysOfWeek(days);
+        return a;
+    }
+
+    public void testNextAfterCachedRangeIsNotInThePast() {
+        final AlarmTimeline timeline = new AlarmTimeline();
+        timeline.add(alarm(1, 7, 0, 0x7f), 0);
+        timeline.add(alarm(2, 8, 0, 0x7f), 0);
+
+        // Caches only the 7:00 alarm; the 8:00 one stays pending.
+        AlarmTimeline.Occurrence next = timeline.getNext(MONDAY + 6 * HOUR);
+        assertEquals(1, next.alarmId);
+        assertEquals(MONDAY + 7 * HOUR, next.time);
+
+        // At 9:00 both have gone off today.
+        next = timeline.getNext(MONDAY + 9 * HOUR);
+        assertEquals(1, next.alarmId);
+        assertEquals(MONDAY + DAY + 7 * HOUR, next.time);
+        assertEquals(MONDAY + DAY + 8 * HOUR, timeline.getNextTime(2, MONDAY + 9 * HOUR));
+    }
+
+    public void testNextTimeAfterCachedRangeIsNotInThePast() {
+        final AlarmTimeline timeline = new AlarmTimeline();
+        timeline.add(alarm(1, 7, 0, 0x7f), 0);
+        timeline.add(alarm(2, 8, 0, 0x7f), 0);
+        timeline.getNext(MONDAY + 6 * HOUR);
+
+        // Not cached, so it comes from the cursor of the alarm.
+        assertEquals(MONDAY + DAY + 8 * HOUR, timeline.getNextTime(2, MONDAY + 9 * HOUR));
+        assertEquals(MONDAY + DAY + 7 * HOUR, timeline.getNextTime(1, MONDAY + 9 * HOUR));
+    }
+
+    public void testSnoozeAndOneShotBehindCachedRange() {
+        final AlarmTimeline timeline = new AlarmTimeline();
+        timeline.add(alarm(1, 7, 0, 0x7f), 0);
+        // A one-shot alarm at 10:00 today, and alarm 1 snoozed until 7:30.
+        timeline.add(alarm(2, 10, 0, 0), MONDAY + 10 * HOUR);
+        timeline.addSnooze(1, MONDAY + 7 * HOUR + 30 * MINUTE);
+
+        AlarmTimeline.Occurrence next = timeline.getNext(MONDAY + 6 * HOUR);
+        assertEquals(1, next.alarmId);
+        assertTrue(next.snoozed);
+
+        next = timeline.getNext(MONDAY + 11 * HOUR);
+        assertEquals(1, next.alarmId);
+        assertFalse(next.snoozed);
+        assertEquals(MONDAY + DAY + 7 * HOUR, next.time);
+        // The one-shot alarm has gone off.
+        assertEquals(-1, timeline.getNextTime(2, MONDAY + 11 * HOUR));
+    }
+
+    /**
+     * Asks one timeline for random times, mostly moving forward by up to a
+     * few days, and checks each answer against a timeline built for that
+     * time alone.
+     */
+    public void testCachedMatchesFresh() {
+        final Random random = new Random(1);
+        final Alarm[] alarms = new Alarm[12];
+        for (int i = 0; i < alarms.length; i++) {
+            alarms[i] = alarm(i + 1, random.nextInt(24), random.nextInt(60),
+                    i % 4 == 0 ? 0 : 1 + random.nextInt(0x7f));
+        }
+        final AlarmTimeline cached = new AlarmTimeline();
+        for (int i = 0; i < alarms.length; i++) {
+            cached.add(alarms[i], oneShotTime(alarms[i], i));
+        }
+
+        long now = MONDAY;
+        for (int step = 0; step < 2000; step++) {
+            now += random.nextInt(10) == 0 ? -random.nextInt((int) DAY)
+                    : random.nextInt((int) (3 * DAY));
+            final AlarmTimeline fresh = new AlarmTimeline();
+            for (int i = 0; i < alarms.length; i++) {
+                fresh.add(alarms[i], oneShotTime(alarms[i], i));
+            }
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertSameTime(fresh.getNext(now), cached.getNext(now), now);
+                    break;
+                case 1: {
+                    final int count = 1 + random.nextInt(5);
+                    assertSameTime(fresh.getNext(now, count), cached.getNext(now, count), now);
+                    break;
+                }
+                default: {
+                    final int id = 1 + random.nextInt(alarms.length);
+                    assertEquals("now=" + now, fresh.getNextTime(id, now),
+                            cached.getNextTime(id, now));
+                    break;
+                }
+            }
+        }
+    }
+
+    // One-shot alarms sit at fixed times within the first two weeks.
+    private static long oneShotTime(Alarm alarm, int i) {
+        return alarm.daysOfWeek.isRepeatSet() ? 0
+                : MONDAY + i * DAY + alarm.hour * HOUR + alarm.minutes * MINUTE;
+    }
+
+    private static void assertSameTime(AlarmTimeline.Occurrence expected,
+            AlarmTimeline.Occurrence actual, long now) {
+        if (expected == null) {
+            assertNull("now=" + now, actual);
+            return;
+        }
+        assertNotNull("now=" + now, actual);
+        assertEquals("now=" + now, expected.time, actual.time);
+        assertTrue("now=" + now, actual.time >= now);
+    }
+
+    private static void assertSameTime(List<AlarmTimeline.Occurrence> expected,
+            List<AlarmTimeline.Occurrence> actual, long now) {
+        assertEquals("now=" + now, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSameTime(expected.get(i), actual.get(i), now);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Checks AlarmTimingWheel.next() against Alarms.calculateAlarm(int, int,
+ * DaysOfWeek), which computes the time of one alarm with Calendar, and
+ * against Alarms.calculateAlarmTime() for several alarms.
+ */
+public class AlarmTimingWheelTest extends TestCase {
+
+    private static final long MINUTE = ZoneOffsetTable.MINUTE_MILLIS;
+    private static final long HOUR = ZoneOffsetTable.HOUR_MILLIS;
+    private static final long DAY = ZoneOffsetTable.DAY_MILLIS;
+    private static final long WEEK = 7 * DAY;
+
+    // Alarm times at both ends of the day and in between, and in and
+    // around the hours skipped or repeated by DST changes.
+    private static final int[][] TIMES = {
+        { 0, 0 }, { 0, 1 }, { 1, 0 }, { 1, 30 }, { 1, 59 }, { 2, 0 }, { 2, 15 },
+        { 2, 30 }, { 2, 59 }, { 3, 0 }, { 7, 30 }, { 12, 0 }, { 23, 58 }, { 23, 59 },
+    };
+
+    private static final Set<Integer> NONE_SNOOZED = Collections.<Integer>emptySet();
+
+    private TimeZone mDefaultZone;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDefaultZone = TimeZone.getDefault();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TimeZone.setDefault(mDefaultZone);
+        ZoneOffsetTable.invalidate();
+        super.tearDown();
+    }
+
+    private static void setZone(String id) {
+        TimeZone.setDefault(TimeZone.getTimeZone(id));
+        ZoneOffsetTable.invalidate();
+    }
+
+    /**
+     * Returns local midnight of the Monday of the week of the given date.
+     */
+    private static long mondayOf(int year, int month, int day) {
+        final Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(year, month, day);
+        while (c.get(Calendar.DAY_OF_WEEK) != Calendar.MONDAY) {
+            c.add(Calendar.DAY_OF_MONTH, -1);
+        }
+        return c.getTimeInMillis();
+    }
+
+    private static Alarm alarm(int id, int hour, int minute, int days) {
+        final Alarm a = new Alarm();
+        a.id = id;
+        a.enabled = true;
+        a.hour = hour;
+        a.minutes = minute;
+        a.daysOfWeek = new Alarm.DaysOfWeek(days);
+        return a;
+    }
+
+    /**
+     * The times to ask for the next alarm from: the start and end of the
+     * week, the start and end of each day, every 10 minutes of the first
+     * four hours of each day, so both passes of a repeated hour are hit,
+     * and the minutes around the alarm on every day, so both the forward
+     * scan and the wrap-around are hit.
+     */
+    private static long[] nowsAround(long monday, int hour, int minute) {
+        final ArrayList<Long> nows = new ArrayList<Long>();
+        nows.add(monday);
+        nows.add(monday - 1);
+        nows.add(monday + WEEK - MINUTE);
+        nows.add(monday + WEEK - 1);
+        nows.add(monday + WEEK);
+        for (int day = 0; day < 7; day++) {
+            final long midnight = monday + day * DAY;
+            nows.add(midnight);
+            nows.add(midnight + DAY - 1);
+            for (long t = midnight + 10 * MINUTE; t < midnight + 4 * HOUR; t += 10 * MINUTE) {
+                nows.add(t);
+            }
+            final long at = midnight + (hour * 60 + minute) * MINUTE;
+            nows.add(at - MINUTE);
+            nows.add(at - 1);
+            nows.add(at);
+            nows.add(at + 30 * 1000);
+            nows.add(at + MINUTE - 1);
+            nows.add(at + MINUTE);
+        }
+        final long[] result = new long[nows.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = nows.get(i);
+        }
+        return result;
+    }
+
+    private void checkEveryDayMask(long monday) {
+        final AlarmTimingWheel wheel = new AlarmTimingWheel();
+        for (int days = 1; days <= 0x7f; days++) {
+            for (int[] time : TIMES) {
+                final Alarm a = alarm(1, time[0], time[1], days);
+                wheel.clear();
+                wheel.add(a);
+                for (long now : nowsAround(monday, time[0], time[1])) {
+                    final long expected = Alarms.calculateAlarm(
+                            a.hour, a.minutes, a.daysOfWeek, now).getTimeInMillis();
+                    final Alarm next = wheel.next(now, NONE_SNOOZED, null);
+                    assertNotNull(next);
+                    ZoneOffsetTableTest.assertMatchesCalendar("days=" + days + " at "
+                            + time[0] + ":" + time[1] + " now=" + now,
+                            time[0] * 60 + time[1], now, expected, next.time);
+                }
+            }
+        }
+    }
+
+    public void testEveryDayMaskUtc() {
+        setZone("UTC");
+        checkEveryDayMask(mondayOf(2013, Calendar.JUNE, 10));
+    }
+
+    public void testEveryDayMaskAcrossSpringForward() {
+        // Clocks went forward at 02:00 on Sunday, March 31 2013.
+        setZone("Europe/Berlin");
+        checkEveryDayMask(mondayOf(2013, Calendar.MARCH, 25));
+    }
+
+    public void testEveryDayMaskAcrossFallBack() {
+        // Clocks went back at 02:00 on Sunday, November 3 2013.
+        setZone("America/Los_Angeles");
+        checkEveryDayMask(mondayOf(2013, Calendar.NOVEMBER, 3));
+    }
+
+    public void testEveryDayMaskAcrossHalfHourChange() {
+        // Clocks went back half an hour at 02:00 on Sunday, April 7 2013.
+        setZone("Australia/Lord_Howe");
+        checkEveryDayMask(mondayOf(2013, Calendar.APRIL, 7));
+    }
+
+    public void testEveryMinuteOfTheWeek() {
+        setZone("UTC");
+        final long monday = mondayOf(2013, Calendar.JUNE, 10);
+        final AlarmTimingWheel wheel = new AlarmTimingWheel();
+        // One alarm on Wednesday and one on Sunday night, so every now has
+        // to either scan forward or wrap around to the start of the week.
+        final Alarm wednesday = alarm(1, 9, 15, 0x04);
+        final Alarm sunday = alarm(2, 23, 59, 0x40);
+        wheel.add(wednesday);
+        wheel.add(sunday);
+        for (int slot = 0; slot < AlarmTimingWheel.SLOTS; slot++) {
+            final long now = monday + slot * MINUTE;
+            final long expected = Math.min(
+                    Alarms.calculateAlarmTime(9, 15, wednesday.daysOfWeek, now),
+                    Alarms.calculateAlarmTime(23, 59, sunday.daysOfWeek, now));
+            assertEquals("slot=" + slot, expected, wheel.next(now, NONE_SNOOZED, null).time);
+        }
+    }
+
+    public void testSeveralAlarmsMatchTheSoonest() {
+        setZone("Europe/Berlin");
+        checkSeveralAlarms(mondayOf(2013, Calendar.MARCH, 25));
+        setZone("America/Los_Angeles");
+        checkSeveralAlarms(mondayOf(2013, Calendar.NOVEMBER, 3));
+    }
+
+    private void checkSeveralAlarms(long monday) {
+        final AlarmTimingWheel wheel = new AlarmTimingWheel();
+        final ArrayList<Alarm> alarms = new ArrayList<Alarm>();
+        int id = 1;
+        for (int days = 1; days <= 0x7f; days += 9) {
+            for (int[] time : TIMES) {
+                final Alarm a = alarm(id++, time[0], time[1], days);
+                alarms.add(a);
+                wheel.add(a);
+            }
+        }
+        for (long now = monday - DAY; now < monday + 2 * WEEK; now += 17 * MINUTE + 1) {
+            long expected = Long.MAX_VALUE;
+            for (Alarm a : alarms) {
+                expected = Math.min(expected,
+                        Alarms.calculateAlarmTime(a.hour, a.minutes, a.daysOfWeek, now));
+            }
+            assertEquals("now=" + now, expected, wheel.next(now, NONE_SNOOZED, null).time);
+        }
+    }
+
+    public void testGroupAndSnoozed() {
+        setZone("UTC");
+        final long monday = mondayOf(2013, Calendar.JUNE, 10);
+        final AlarmTimingWheel wheel = new AlarmTimingWheel();
+        final Alarm first = alarm(1, 7, 0, 0x01);
+        final Alarm second = alarm(2, 7, 0, 0x7f);
+        final Alarm third = alarm(3, 7, 0, 0x03);
+        wheel.add(first);
+        wheel.add(second);
+        wheel.add(third);
+
+        final ArrayList<Alarm> group = new ArrayList<Alarm>();
+        Alarm next = wheel.next(monday, NONE_SNOOZED, group);
+        assertEquals(1, next.id);
+        assertEquals(monday + 7 * 60 * MINUTE, next.time);
+        assertEquals(2, group.size());
+        assertEquals(2, group.get(0).id);
+        assertEquals(3, group.get(1).id);
+        assertEquals(next.time, group.get(0).time);
+
+        // With the first two snoozed, the third fires alone at the same time.
+        final HashSet<Integer> snoozed = new HashSet<Integer>();
+        snoozed.add(1);
+        snoozed.add(2);
+        group.clear();
+        next = wheel.next(monday, snoozed, group);
+        assertEquals(3, next.id);
+        assertEquals(monday + 7 * 60 * MINUTE, next.time);
+        assertTrue(group.isEmpty());
+
+        // Removing the alarms empties their slots.
+        wheel.remove(first);
+        wheel.remove(third);
+        next = wheel.next(monday + 7 * 60 * MINUTE, NONE_SNOOZED, null);
+        assertEquals(2, next.id);
+        assertEquals(monday + DAY + 7 * 60 * MINUTE, next.time);
+        wheel.remove(second);
+        assertNull(wheel.next(monday, NONE_SNOOZED, null));
+    }
+
+    public void testSkippedTimeFiresAfterLaterSlots() {
+        // Clocks went forward at 02:00 on Sunday, March 31 2013.
+        setZone("Europe/Berlin");
+        final long monday = mondayOf(2013, Calendar.MARCH, 25);
+        final long sunday = monday + 6 * DAY;
+        final AlarmTimingWheel wheel = new AlarmTimingWheel();
+        final Alarm skipped = alarm(1, 2, 30, 0x7f);
+        final Alarm three = alarm(2, 3, 0, 0x7f);
+        final Alarm halfPastThree = alarm(3, 3, 30, 0x7f);
+        wheel.add(skipped);
+        wheel.add(three);
+        wheel.add(halfPastThree);
+
+        // 02:30 does not exist and fires at 03:30 CEST, after 03:00 CEST.
+        final ArrayList<Alarm> group = new ArrayList<Alarm>();
+        Alarm next = wheel.next(sunday, NONE_SNOOZED, group);
+        assertEquals(2, next.id);
+        assertEquals(sunday + 2 * HOUR, next.time);
+        assertTrue(group.isEmpty());
+
+        // With 03:00 snoozed, 02:30 and 03:30 fire together.
+        final HashSet<Integer> snoozed = new HashSet<Integer>();
+        snoozed.add(2);
+        group.clear();
+        next = wheel.next(sunday, snoozed, group);
+        assertEquals(1, next.id);
+        assertEquals(sunday + 2 * HOUR + 30 * MINUTE, next.time);
+        assertEquals(1, group.size());
+        assertEquals(3, group.get(0).id);
+        assertEquals(next.time, group.get(0).time);
+    }
+
+    public void testRepeatedTimeFiresOnTheSecondPass() {
+        // Clocks went back at 02:00 on Sunday, November 3 2013.
+        setZone("America/Los_Angeles");
+        final long sunday = mondayOf(2013, Calendar.NOVEMBER, 3) + 6 * DAY;
+        final AlarmTimingWheel wheel = new AlarmTimingWheel();
+        wheel.add(alarm(1, 1, 45, 0x7f));
+
+        // 01:45 PDT is ahead at 01:30 PDT.
+        final long firstPass = sunday + HOUR + 30 * MINUTE;
+        assertEquals(firstPass + 15 * MINUTE, wheel.next(firstPass, NONE_SNOOZED, null).time);
+        // At 01:30 PST, an hour later, 01:45 PDT has passed and 01:45 PST
+        // is next.
+        final long secondPass = firstPass + HOUR;
+        assertEquals(secondPass + 15 * MINUTE, wheel.next(secondPass, NONE_SNOOZED, null).time);
+    }
+}
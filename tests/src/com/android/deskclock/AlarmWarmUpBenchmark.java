@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from an alarm firing to its first audio, with the
+ * ringtone prepared by a warm-up ahead of time and without, the way
+ * AlarmKlaxon plays it.  The "alerted - scheduled" percentiles of
+ * AlarmLatencyTracer are logged for each.
+ */
+public class AlarmWarmUpBenchmark extends InstrumentationTestCase {
+
+    private static final int RUNS = 20;
+    // How long before the alarm the warm-up prepares the ringtone.
+    private static final long WARM_UP_LEAD_MS = 2000;
+    private static final long START_TIMEOUT_MS = 10000;
+
+    private Context mContext;
+    private AudioManager mAudioManager;
+    private int mAlarmVolume;
+    private Uri mRingtone;
+    private AlarmAudioEngine mEngine;
+    private CountDownLatch mStarted;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mRingtone = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM);
+        // Nothing starts on a muted alarm stream.
+        mAudioManager = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
+        mAlarmVolume = mAudioManager.getStreamVolume(AudioManager.STREAM_ALARM);
+        mAudioManager.setStreamVolume(AudioManager.STREAM_ALARM, 1, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        releaseEngine();
+        mAudioManager.setStreamVolume(AudioManager.STREAM_ALARM, mAlarmVolume, 0);
+        AlarmLatencyTracer.clear();
+        super.tearDown();
+    }
+
+    private void createEngine() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mEngine = new AlarmAudioEngine(mContext);
+            }
+        });
+    }
+
+    private void releaseEngine() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if (mEngine != null) {
+                    mEngine.release();
+                    mEngine = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Fires an alarm the way AlarmReceiver and AlarmKlaxon record it, and
+     * waits for its audio to start.
+     */
+    private void fire(final int id) throws InterruptedException {
+        mStarted = new CountDownLatch(1);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mEngine.setOnStartListener(new AlarmAudioEngine.OnStartListener() {
+                    @Override
+                    public void onStart() {
+                        AlarmLatencyTracer.onAlerted(id, System.currentTimeMillis());
+                        mStarted.countDown();
+                    }
+                });
+                final long now = System.currentTimeMillis();
+                AlarmLatencyTracer.onDelivered(id, now, now, now);
+                mEngine.play(mRingtone, false);
+            }
+        });
+        assertTrue("alarm " + id + " did not start",
+                mStarted.await(START_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mEngine.stop();
+            }
+        });
+    }
+
+    private String measure(boolean warmUp) throws InterruptedException {
+        AlarmLatencyTracer.clear();
+        for (int i = 0; i < RUNS; i++) {
+            // Each alarm gets a new service and so a new engine.
+            createEngine();
+            if (warmUp) {
+                getInstrumentation().runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        mEngine.prepare(mRingtone);
+                    }
+                });
+            }
+            // Let the fallback ringtone, and the warm-up if any, finish
+            // preparing before the alarm fires.
+            Thread.sleep(WARM_UP_LEAD_MS);
+            fire(i + 1);
+            releaseEngine();
+        }
+        final String report = AlarmLatencyTracer.dump();
+        assertTrue(report, report.contains("alerted - scheduled: n=" + RUNS + " "));
+        return report;
+    }
+
+    public void testFireToFirstAudio() throws InterruptedException {
+        // An unmeasured fire first, so the first measured one does not also
+        // pay for loading the codec.
+        createEngine();
+        Thread.sleep(WARM_UP_LEAD_MS);
+        fire(0);
+        releaseEngine();
+
+        final String cold = measure(false);
+        final String warm = measure(true);
+        Log.i("Fire to first audio, " + RUNS + " runs, warm-up off:\n" + cold);
+        Log.i("Fire to first audio, " + RUNS + " runs, warm-up on:\n" + warm);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Checks that Alarms.setNextAlert() only re-arms the next alert and sends
+ * NEXT_ALARM_TIME_SET when the alert changed.
+ */
+public class AlarmsTest extends InstrumentationTestCase {
+
+    /**
+     * Counts the NEXT_ALARM_TIME_SET broadcasts sent through it.
+     */
+    private static class BroadcastCountingContext extends ContextWrapper {
+        int mNextAlarmTimeSet;
+
+        BroadcastCountingContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public void sendBroadcast(Intent intent) {
+            if (Alarms.NEXT_ALARM_TIME_SET.equals(intent.getAction())) {
+                mNextAlarmTimeSet++;
+            }
+            super.sendBroadcast(intent);
+        }
+    }
+
+    public void testUnchangedNextAlertIsNotCommittedAgain() {
+        final BroadcastCountingContext context =
+                new BroadcastCountingContext(getInstrumentation().getTargetContext());
+        // Commits the next alert, unless this process already has.
+        Alarms.setNextAlert(context);
+        final int committed = Alarms.getCommittedAlertCount();
+        final int skipped = Alarms.getSkippedAlertCount();
+        final int broadcasts = context.mNextAlarmTimeSet;
+
+        Alarms.setNextAlert(context);
+        assertEquals(committed, Alarms.getCommittedAlertCount());
+        assertEquals(skipped + 1, Alarms.getSkippedAlertCount());
+        assertEquals(broadcasts, context.mNextAlarmTimeSet);
+    }
+}
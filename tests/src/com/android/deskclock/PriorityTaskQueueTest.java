@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+public class PriorityTaskQueueTest extends TestCase {
+
+    private static final int ALARM = PriorityTaskQueue.LANE_ALARM;
+    private static final int HOUSEKEEPING = PriorityTaskQueue.LANE_HOUSEKEEPING;
+
+    // A clock moved by hand, and a dispatcher that only counts; the test
+    // calls runNext() in place of a looper.
+    private long mNow;
+    private int mDispatched;
+    private PriorityTaskQueue mQueue;
+    private final ArrayList<String> mRan = new ArrayList<String>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new PriorityTaskQueue(
+                new PriorityTaskQueue.Clock() {
+                    @Override
+                    public long now() {
+                        return mNow;
+                    }
+                },
+                new PriorityTaskQueue.Dispatcher() {
+                    @Override
+                    public void dispatch() {
+                        mDispatched++;
+                    }
+                });
+    }
+
+    private Runnable task(final String name, final long runsFor) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRan.add(name);
+                mNow += runsFor;
+            }
+        };
+    }
+
+    public void testAlarmLaneRunsBeforeHousekeeping() {
+        mQueue.post(HOUSEKEEPING, task("boot", 0));
+        mQueue.post(HOUSEKEEPING, task("time changed", 0));
+        mQueue.post(ALARM, task("alarm 1", 0));
+        mQueue.post(ALARM, task("alarm 2", 0));
+        assertEquals(4, mDispatched);
+        assertEquals(2, mQueue.getQueueDepth(ALARM));
+        assertEquals(2, mQueue.getQueueDepth(HOUSEKEEPING));
+
+        assertTrue(mQueue.runNext());
+        // An alarm posted while housekeeping waits still goes first.
+        mQueue.post(ALARM, task("alarm 3", 0));
+        while (mQueue.runNext()) {
+        }
+        assertFalse(mQueue.runNext());
+
+        assertEquals("[alarm 1, alarm 2, alarm 3, boot, time changed]", mRan.toString());
+        assertEquals(5, mDispatched);
+        assertEquals(0, mQueue.getQueueDepth(ALARM));
+        assertEquals(0, mQueue.getQueueDepth(HOUSEKEEPING));
+        assertEquals(3, mQueue.getTaskCount(ALARM));
+        assertEquals(2, mQueue.getTaskCount(HOUSEKEEPING));
+    }
+
+    public void testWaitAndRunCounters() {
+        mNow = 1000;
+        mQueue.post(HOUSEKEEPING, task("boot", 50));
+        mNow = 1010;
+        mQueue.post(ALARM, task("alarm 1", 5));
+        mNow = 1030;
+        mQueue.post(ALARM, task("alarm 2", 7));
+
+        mNow = 1100;
+        // alarm 1 waits 90 and runs until 1105; alarm 2 waits 75 and runs
+        // until 1112; boot waits 112 and runs until 1162.
+        assertTrue(mQueue.runNext());
+        assertTrue(mQueue.runNext());
+        assertTrue(mQueue.runNext());
+        assertEquals(1162, mNow);
+
+        assertEquals(2, mQueue.getTaskCount(ALARM));
+        assertEquals(90 + 75, mQueue.getTotalWait(ALARM));
+        assertEquals(90, mQueue.getMaxWait(ALARM));
+        assertEquals(5 + 7, mQueue.getTotalRun(ALARM));
+        assertEquals(7, mQueue.getMaxRun(ALARM));
+
+        assertEquals(1, mQueue.getTaskCount(HOUSEKEEPING));
+        assertEquals(112, mQueue.getTotalWait(HOUSEKEEPING));
+        assertEquals(112, mQueue.getMaxWait(HOUSEKEEPING));
+        assertEquals(50, mQueue.getTotalRun(HOUSEKEEPING));
+        assertEquals(50, mQueue.getMaxRun(HOUSEKEEPING));
+    }
+
+    public void testFailingTaskIsCounted() {
+        mQueue.post(ALARM, new Runnable() {
+            @Override
+            public void run() {
+                mNow += 3;
+                throw new IllegalStateException();
+            }
+        });
+        mQueue.post(ALARM, task("next", 0));
+        try {
+            mQueue.runNext();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, mQueue.getTaskCount(ALARM));
+        assertEquals(3, mQueue.getTotalRun(ALARM));
+        assertTrue(mQueue.runNext());
+        assertEquals("[next]", mRan.toString());
+    }
+}
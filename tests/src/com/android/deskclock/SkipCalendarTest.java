@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+public class SkipCalendarTest extends TestCase {
+
+    private static final int MONDAY = 0x01;
+    private static final int EVERY_DAY = 0x7f;
+
+    private static byte[] allDays() {
+        final byte[] days = new byte[SkipCalendar.BYTES_PER_YEAR];
+        Arrays.fill(days, (byte) 0xff);
+        return days;
+    }
+
+    private static byte[] days(int... daysOfYear) {
+        final byte[] days = new byte[SkipCalendar.BYTES_PER_YEAR];
+        for (int day : daysOfYear) {
+            days[day >> 3] |= 1 << (day & 7);
+        }
+        return days;
+    }
+
+    private static long day(int year, int dayOfYear) {
+        return SkipCalendar.firstDayOfYear(year) + dayOfYear;
+    }
+
+    public void testYearBoundaries() {
+        assertEquals(0, SkipCalendar.firstDayOfYear(1970));
+        assertEquals(365, SkipCalendar.firstDayOfYear(1971));
+        for (int year = 1900; year < 2200; year++) {
+            final boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+            assertEquals("" + year, leap ? 366 : 365,
+                    SkipCalendar.firstDayOfYear(year + 1) - SkipCalendar.firstDayOfYear(year));
+            assertEquals(year, SkipCalendar.yearOf(day(year, 0)));
+            assertEquals(year - 1, SkipCalendar.yearOf(day(year, 0) - 1));
+        }
+    }
+
+    public void testBitsPastTheYearAreDropped() {
+        final SkipCalendar calendar = new SkipCalendar(1, "test");
+        // 2013 has 365 days, so bits 365 to 367 of the blob are not days.
+        calendar.setYear(2013, allDays());
+        assertTrue(calendar.isSkipped(day(2013, 364)));
+        assertFalse(calendar.isSkipped(day(2014, 0)));
+        assertFalse(calendar.isSkipped(day(2014, 1)));
+        assertFalse(calendar.isSkipped(day(2014, 2)));
+        final byte[] stored = calendar.getSkippedDays(2013);
+        assertEquals(0x1f, stored[45] & 0xff);
+
+        // 2012 has 366, so only bits 366 and 367 are dropped.
+        calendar.setYear(2012, allDays());
+        assertTrue(calendar.isSkipped(day(2012, 365)));
+        assertEquals(0x3f, calendar.getSkippedDays(2012)[45] & 0xff);
+    }
+
+    public void testNextDayAcrossYearEnd() {
+        final SkipCalendar calendar = new SkipCalendar(1, "test");
+        calendar.setYear(2013, allDays());
+        // Every day of 2013 is skipped, none of 2014.
+        for (long d = day(2013, 300); d <= day(2013, 364); d++) {
+            assertEquals(day(2014, 0), calendar.nextDay(d, EVERY_DAY));
+        }
+
+        // Only the last day of a year, then the first of the next.
+        calendar.setYear(2013, days(364));
+        calendar.setYear(2014, days(0));
+        assertEquals(day(2014, 1), calendar.nextDay(day(2013, 364), EVERY_DAY));
+        assertEquals(day(2013, 363), calendar.nextDay(day(2013, 363), EVERY_DAY));
+    }
+
+    public void testLeapDayAndLastDayOfLeapYear() {
+        final SkipCalendar calendar = new SkipCalendar(1, "test");
+        // February 29th and December 31st 2012.
+        calendar.setYear(2012, days(59, 365));
+        assertEquals(day(2012, 60), calendar.nextDay(day(2012, 59), EVERY_DAY));
+        assertEquals(day(2013, 0), calendar.nextDay(day(2012, 365), EVERY_DAY));
+        assertFalse(calendar.isSkipped(day(2013, 0)));
+    }
+
+    public void testFullyMaskedWeeks() {
+        final SkipCalendar calendar = new SkipCalendar(1, "test");
+        // Skip every Monday of 2013.
+        final long first = SkipCalendar.firstDayOfYear(2013);
+        final int[] mondays = new int[53];
+        int count = 0;
+        for (int d = 0; d < 365; d++) {
+            if (Alarms.dayOfWeek(first + d) == 0) {
+                mondays[count++] = d;
+            }
+        }
+        calendar.setYear(2013, days(Arrays.copyOf(mondays, count)));
+        // A Monday-only alarm waits for the first Monday of 2014, while one
+        // on every day fires on the next Tuesday.
+        long firstMonday2014 = day(2014, 0);
+        while (Alarms.dayOfWeek(firstMonday2014) != 0) firstMonday2014++;
+        assertEquals(firstMonday2014, calendar.nextDay(day(2013, 0), MONDAY));
+        assertEquals(day(2013, mondays[0]) + 1,
+                calendar.nextDay(day(2013, mondays[0]), EVERY_DAY));
+
+        // With every day skipped there is nothing within the look-ahead.
+        calendar.setYear(2014, allDays());
+        calendar.setYear(2015, allDays());
+        assertEquals(-1, calendar.nextDay(day(2013, 0), MONDAY));
+        calendar.setYear(2013, allDays());
+        assertEquals(-1, calendar.nextDay(day(2013, 0), EVERY_DAY));
+        assertEquals(-1, calendar.nextDay(day(2013, 0), 0));
+    }
+
+    /**
+     * Checks nextDay() against a day by day search over random calendars,
+     * with blobs that have their padding bits set.
+     */
+    public void testNextDayMatchesDayByDay() {
+        final Random random = new Random(1);
+        for (int round = 0; round < 50; round++) {
+            final SkipCalendar calendar = new SkipCalendar(1, "test");
+            final HashMap<Integer, byte[]> years = new HashMap<Integer, byte[]>();
+            for (int year = 2011; year <= 2017; year++) {
+                final byte[] days = new byte[SkipCalendar.BYTES_PER_YEAR];
+                random.nextBytes(days);
+                // Mostly skipped, so the search crosses years.
+                for (int i = 0; i < days.length; i++) {
+                    days[i] |= (byte) random.nextInt();
+                }
+                calendar.setYear(year, days);
+                years.put(year, days);
+            }
+            for (int i = 0; i < 200; i++) {
+                final long from = day(2012, 0) + random.nextInt(3 * 365);
+                final int mask = 1 + random.nextInt(EVERY_DAY);
+                assertEquals("from=" + from + " mask=" + mask,
+                        nextDayByDay(years, from, mask), calendar.nextDay(from, mask));
+            }
+        }
+    }
+
+    private static long nextDayByDay(HashMap<Integer, byte[]> years, long from, int mask) {
+        for (long d = from; d < from + 2 * SkipCalendar.DAYS_PER_YEAR_MAX; d++) {
+            if ((mask & (1 << Alarms.dayOfWeek(d))) == 0) continue;
+            final int year = SkipCalendar.yearOf(d);
+            final int dayOfYear = (int) (d - SkipCalendar.firstDayOfYear(year));
+            final byte[] days = years.get(year);
+            if (days == null || (days[dayOfYear >> 3] & (1 << (dayOfYear & 7))) == 0) {
+                return d;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.TimeZone;
+
+/**
+ * Checks ZoneOffsetTable against TimeZone in zones with and without DST, and
+ * measures its lookups.  Also checks Alarms.calculateAlarmTime(), which is
+ * built on it, against the Calendar code it replaced.
+ */
+public class ZoneOffsetTableTest extends TestCase {
+
+    private static final long MINUTE = ZoneOffsetTable.MINUTE_MILLIS;
+    private static final long HOUR = ZoneOffsetTable.HOUR_MILLIS;
+    private static final long DAY = ZoneOffsetTable.DAY_MILLIS;
+
+    // Northern and southern DST, a half hour DST shift, odd offsets and no
+    // DST at all.
+    private static final String[] ZONES = {
+        "America/Los_Angeles", "Europe/Berlin", "Australia/Sydney",
+        "Australia/Lord_Howe", "Asia/Kolkata", "Asia/Kathmandu", "UTC",
+    };
+
+    // 2013-01-01T00:00:00Z
+    private static final long START = 1356998400000L;
+
+    private static final int BENCHMARK_LOOKUPS = 200000;
+
+    private TimeZone mDefaultZone;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDefaultZone = TimeZone.getDefault();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TimeZone.setDefault(mDefaultZone);
+        ZoneOffsetTable.invalidate();
+        super.tearDown();
+    }
+
+    private static TimeZone setZone(String id) {
+        final TimeZone zone = TimeZone.getTimeZone(id);
+        TimeZone.setDefault(zone);
+        ZoneOffsetTable.invalidate();
+        return zone;
+    }
+
+    public void testOffsetsMatchTimeZone() {
+        for (String id : ZONES) {
+            final TimeZone zone = setZone(id);
+            // Every 7 minutes for a year, so every transition is crossed.
+            for (long t = START; t < START + 366 * DAY; t += 7 * MINUTE) {
+                assertEquals(id + " at " + t, zone.getOffset(t), ZoneOffsetTable.getOffset(t));
+            }
+        }
+    }
+
+    public void testOffsetsMatchAroundTransitions() {
+        for (String id : ZONES) {
+            final TimeZone zone = setZone(id);
+            for (long t = START; t < START + 366 * DAY; t += HOUR) {
+                if (zone.getOffset(t) == zone.getOffset(t + HOUR)) continue;
+                for (long u = t; u <= t + HOUR; u += 1000) {
+                    assertEquals(id + " at " + u, zone.getOffset(u), ZoneOffsetTable.getOffset(u));
+                }
+            }
+        }
+    }
+
+    public void testAlternatingNearAndFarLookups() {
+        for (String id : ZONES) {
+            final TimeZone zone = setZone(id);
+            for (long t = START; t < START + 366 * DAY; t += 5 * HOUR) {
+                final long far = t + 30 * DAY + 7 * MINUTE;
+                assertEquals(id, zone.getOffset(t), ZoneOffsetTable.getOffset(t));
+                assertEquals(id, zone.getOffset(far), ZoneOffsetTable.getOffset(far));
+                final long farther = t + 90 * DAY;
+                assertEquals(id, zone.getOffset(farther), ZoneOffsetTable.getOffset(farther));
+            }
+        }
+    }
+
+    public void testLocalToUtc() {
+        for (String id : ZONES) {
+            final TimeZone zone = setZone(id);
+            for (long t = START; t < START + 366 * DAY; t += 15 * MINUTE) {
+                final long local = t + zone.getOffset(t);
+                final long utc = ZoneOffsetTable.localToUtc(local);
+                // Wall-clock times that exist once map back to themselves;
+                // repeated ones resolve to the earlier instant.
+                assertTrue(id + " at " + t, utc <= t);
+                assertEquals(id + " at " + t, local, utc + zone.getOffset(utc));
+            }
+        }
+    }
+
+    public void testTimeZoneChange() {
+        setZone("America/Los_Angeles");
+        assertEquals(-8 * HOUR, ZoneOffsetTable.getOffset(START));
+        setZone("Asia/Kolkata");
+        assertEquals(5 * HOUR + 30 * MINUTE, ZoneOffsetTable.getOffset(START));
+    }
+
+    /**
+     * Times lookups of the offset in each zone: TimeZone itself, lookups
+     * near one time, lookups that alternate between now and 30 days ahead,
+     * as SkipCalendar.nextDay() and AlarmTimeline do, and lookups spread
+     * over three windows, which rebuild a table each time.
+     */
+    public void testBenchmarkLookups() {
+        final long[] near = new long[BENCHMARK_LOOKUPS];
+        final long[] alternating = new long[BENCHMARK_LOOKUPS];
+        final long[] scattered = new long[BENCHMARK_LOOKUPS];
+        for (int i = 0; i < BENCHMARK_LOOKUPS; i++) {
+            final long t = START + (i % 1000) * MINUTE;
+            near[i] = t;
+            alternating[i] = (i & 1) == 0 ? t : t + 30 * DAY;
+            scattered[i] = t + (i % 3) * 30 * DAY;
+        }
+        for (String id : ZONES) {
+            final TimeZone zone = setZone(id);
+            long sum = 0;
+            long start = System.nanoTime();
+            for (long t : near) {
+                sum += zone.getOffset(t);
+            }
+            final long timeZoneNs = System.nanoTime() - start;
+
+            ZoneOffsetTable.invalidate();
+            start = System.nanoTime();
+            for (long t : near) {
+                sum += ZoneOffsetTable.getOffset(t);
+            }
+            final long nearNs = System.nanoTime() - start;
+
+            ZoneOffsetTable.invalidate();
+            start = System.nanoTime();
+            for (long t : alternating) {
+                sum += ZoneOffsetTable.getOffset(t);
+            }
+            final long alternatingNs = System.nanoTime() - start;
+
+            ZoneOffsetTable.invalidate();
+            start = System.nanoTime();
+            for (long t : scattered) {
+                sum += ZoneOffsetTable.getOffset(t);
+            }
+            final long scatteredNs = System.nanoTime() - start;
+
+            Log.i("ZoneOffsetTable " + id + " ns/lookup: TimeZone "
+                    + timeZoneNs / BENCHMARK_LOOKUPS
+                    + ", near " + nearNs / BENCHMARK_LOOKUPS
+                    + ", near and far " + alternatingNs / BENCHMARK_LOOKUPS
+                    + ", three windows " + scatteredNs / BENCHMARK_LOOKUPS
+                    + " (" + sum + ")");
+        }
+    }
+
+    /**
+     * Returns the "now" values to calculate alarms from: every 5 hours of
+     * the year, and every 10 minutes within three hours of each transition.
+     */
+    private static long[] nowsOfTheYear(TimeZone zone) {
+        final ArrayList<Long> nows = new ArrayList<Long>();
+        for (long t = START; t < START + 366 * DAY; t += 5 * HOUR) {
+            nows.add(t);
+            if (zone.getOffset(t) == zone.getOffset(t + 5 * HOUR)) continue;
+            for (long u = t - 3 * HOUR; u <= t + 8 * HOUR; u += 10 * MINUTE) {
+                nows.add(u);
+            }
+        }
+        final long[] result = new long[nows.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = nows.get(i);
+        }
+        return result;
+    }
+
+    // How a fire time compares with the one the Calendar code gives.
+    static final int SAME = 0;
+    static final int REPEATED = 1;
+    static final int SKIPPED = 2;
+
+    /**
+     * Checks a fire time after now against the one
+     * Alarms.calculateAlarm(int, int, DaysOfWeek) gives for the same alarm
+     * and now, in the default zone.  They may only differ around a DST
+     * change: in the repeated hour Calendar resolves to the later instant
+     * and we fire at the earlier one if it is still ahead.  In the skipped
+     * hour Calendar moves the time back by the gap when add() lands in it,
+     * where we move it forward, and when it sets the time on the day of the
+     * change and then adds days, it keeps the shifted time.
+     *
+     * @param minute the minute of the day of the alarm
+     * @return SAME, REPEATED or SKIPPED
+     */
+    static int assertMatchesCalendar(String message, int minute, long now,
+            long calendarTime, long actual) {
+        assertTrue(message, actual > now);
+        if (actual == calendarTime) {
+            return SAME;
+        }
+        final TimeZone zone = TimeZone.getDefault();
+        assertTrue(message, Math.abs(calendarTime - actual) <= HOUR);
+        final long wall = actual + zone.getOffset(actual);
+        if (wall == calendarTime + zone.getOffset(calendarTime)) {
+            assertTrue(message, actual < calendarTime);
+            return REPEATED;
+        }
+        final long calendarWall = calendarTime + zone.getOffset(calendarTime);
+        assertTrue(message, (calendarWall / MINUTE) % (24 * 60) != minute);
+        assertTrue(message, (wall / MINUTE) % (24 * 60) == minute || actual > calendarTime);
+        return SKIPPED;
+    }
+
+    /**
+     * Compares calculateAlarmTime() with calculateAlarm(int, int, DaysOfWeek)
+     * for alarms every 15 minutes of the day, daily, once a week and on
+     * weekends, over a year of DST gaps and overlaps, and logs the time each
+     * takes.
+     */
+    public void testCalculateAlarmTimeMatchesCalendar() {
+        final Alarm.DaysOfWeek[] days = {
+            new Alarm.DaysOfWeek(0), new Alarm.DaysOfWeek(0x7f),
+            new Alarm.DaysOfWeek(1 << 6), new Alarm.DaysOfWeek(0x60),
+        };
+        for (String id : ZONES) {
+            final TimeZone zone = setZone(id);
+            final long[] nows = nowsOfTheYear(zone);
+            int count = 0;
+            int repeated = 0;
+            int skipped = 0;
+            long calendarNs = 0;
+            long tableNs = 0;
+            for (long now : nows) {
+                for (int minute = 0; minute < 24 * 60; minute += 15) {
+                    for (Alarm.DaysOfWeek d : days) {
+                        final int h = minute / 60;
+                        final int m = minute % 60;
+                        long start = System.nanoTime();
+                        final long expected = Alarms.calculateAlarm(h, m, d, now).getTimeInMillis();
+                        calendarNs += System.nanoTime() - start;
+                        start = System.nanoTime();
+                        final long actual = Alarms.calculateAlarmTime(h, m, d, now);
+                        tableNs += System.nanoTime() - start;
+                        count++;
+
+                        final int kind = assertMatchesCalendar(
+                                id + " now=" + now + " " + h + ":" + m + " " + d,
+                                minute, now, expected, actual);
+                        if (kind == REPEATED) repeated++;
+                        if (kind == SKIPPED) skipped++;
+                    }
+                }
+            }
+            Log.i("calculateAlarm " + id + " ns/alarm: Calendar " + calendarNs / count
+                    + ", ZoneOffsetTable " + tableNs / count
+                    + " (" + count + " alarms, " + repeated + " in the repeated hour, "
+                    + skipped + " in the skipped hour)");
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.timer;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+public class CountingTimerViewTest extends AndroidTestCase {
+
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+
+    private CountingTimerView mView;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mView = new CountingTimerView(getContext());
+    }
+
+    public void testFormatDigitsMatchesStringFormat() {
+        // The hours buffer is the longest, and fits "-999".
+        final char[] buffer = mView.mHours;
+        for (long value = 0; value <= 999; value++) {
+            for (int minDigits = 1; minDigits <= 2; minDigits++) {
+                for (int i = 0; i < 2; i++) {
+                    final boolean neg = i == 1;
+                    final String expected =
+                            String.format((neg ? "-" : "") + "%0" + minDigits + "d", value);
+                    final int length = mView.formatDigits(buffer, value, minDigits, neg);
+                    assertEquals(expected, new String(buffer, 0, length));
+                }
+            }
+        }
+        // 999:59:59 and a bit, rounded up to the next second.
+        final int length = mView.formatDigits(buffer, 1000, 2, false);
+        assertEquals(String.format("%02d", 1000), new String(buffer, 0, length));
+    }
+
+    /**
+     * The time setTime() showed when it formatted each part with
+     * String.format(), in the layout of getTimeString().
+     */
+    private static String formatTheOldWay(long time, boolean showHundredths) {
+        boolean neg = false, showNeg = false;
+        if (time < 0) {
+            time = -time;
+            neg = showNeg = true;
+        }
+        long hundreds, seconds, minutes, hours;
+        seconds = time / 1000;
+        hundreds = (time - seconds * 1000) / 10;
+        minutes = seconds / 60;
+        seconds = seconds - minutes * 60;
+        hours = minutes / 60;
+        minutes = minutes - hours * 60;
+        if (hours > 999) {
+            hours = 0;
+        }
+        if (hours == 0 && minutes == 0 && seconds == 0) {
+            showNeg = false;
+        }
+        if (!showHundredths && !neg && hundreds != 0) {
+            seconds++;
+            if (seconds == 60) {
+                seconds = 0;
+                minutes++;
+                if (minutes == 60) {
+                    minutes = 0;
+                    hours++;
+                }
+            }
+        }
+
+        final StringBuilder s = new StringBuilder();
+        if (hours >= 10) {
+            s.append(String.format(showNeg ? "-%02d" : "%02d", hours)).append(':');
+        } else if (hours > 0) {
+            s.append(String.format(showNeg ? "-%01d" : "%01d", hours)).append(':');
+        }
+        final boolean negMinutes = showNeg && hours == 0;
+        if (minutes >= 10 || hours > 0) {
+            s.append(String.format(negMinutes ? "-%02d" : "%02d", minutes));
+        } else {
+            s.append(String.format(negMinutes ? "-%01d" : "%01d", minutes));
+        }
+        s.append(':').append(String.format("%02d", seconds));
+        if (showHundredths) {
+            s.append('.').append(String.format("%02d", hundreds));
+        }
+        return s.toString();
+    }
+
+    public void testSetTimeMatchesOldFormatting() {
+        final long[] hours = { 0, 1, 9, 10, 99, 100, 999, 1000, 1001 };
+        final long[] minutes = { 0, 9, 10, 59 };
+        final long[] seconds = { 0, 1, 59 };
+        final long[] millis = { 0, 5, 10, 500, 990, 995, 999 };
+        for (long h : hours) {
+            for (long m : minutes) {
+                for (long s : seconds) {
+                    for (long ms : millis) {
+                        final long time = h * HOUR + m * MINUTE + s * SECOND + ms;
+                        assertSetTime(time);
+                        assertSetTime(-time);
+                    }
+                }
+            }
+        }
+        // 999:59:59.01 rounds up to 1000 hours, which fills mHours.
+        mView.setTime(999 * HOUR + 59 * MINUTE + 59 * SECOND + 10, false, false);
+        assertEquals(4, mView.mHoursLength);
+        assertEquals("1000:00:00", mView.getTimeString());
+    }
+
+    private void assertSetTime(long time) {
+        for (int i = 0; i < 2; i++) {
+            final boolean showHundredths = i == 1;
+            mView.setTime(time, showHundredths, false);
+            assertEquals("time=" + time + " showHundredths=" + showHundredths,
+                    formatTheOldWay(time, showHundredths), mView.getTimeString());
+        }
+    }
+
+    /**
+     * Ticks like the stopwatch, every 10 ms with hundredths for eleven
+     * minutes, and like a timer row, every 10 ms within one second.
+     */
+    private void tick() {
+        for (long time = 0; time < 11 * MINUTE; time += 10) {
+            mView.setTime(time, true, false);
+        }
+        for (long time = 5 * MINUTE + 10; time < 5 * MINUTE + SECOND; time += 10) {
+            mView.setTime(time, false, false);
+        }
+    }
+
+    public void testSetTimeDoesNotAllocate() {
+        tick();
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            tick();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        assertEquals(0, Debug.getThreadAllocCount());
+    }
+
+    /**
+     * Ticks like the stopwatch, which calls setTime(time, true, true) every
+     * 10 ms.  Only the calls that change the spoken time, once a second, may
+     * allocate, for the new content description.
+     */
+    public void testUpdateOnlyAllocatesWhenTheSpokenTimeChanges() {
+        for (long time = 0; time < MINUTE; time += 10) {
+            mView.setTime(time, true, true);
+        }
+        int changes = 0;
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            for (long time = MINUTE; time < 11 * MINUTE; time += 10) {
+                final int spoken = mView.mSpokenHours * 3600 + mView.mSpokenMinutes * 60
+                        + mView.mSpokenSeconds;
+                final int before = Debug.getThreadAllocCount();
+                mView.setTime(time, true, true);
+                final int after = Debug.getThreadAllocCount();
+                if (spoken != mView.mSpokenHours * 3600 + mView.mSpokenMinutes * 60
+                        + mView.mSpokenSeconds) {
+                    changes++;
+                } else if (after != before) {
+                    fail("time=" + time + " allocated " + (after - before));
+                }
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        assertEquals(10 * 60, changes);
+    }
+}
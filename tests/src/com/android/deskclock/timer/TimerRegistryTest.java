@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.timer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Checks the registry against a plain list of the timers, searched the way
+ * TimerReceiver did before the registry: newest first, for the running
+ * timer with the lowest time up.
+ */
+public class TimerRegistryTest extends AndroidTestCase {
+
+    private static final long NOW = 1000000;
+
+    private SharedPreferences mPrefs;
+    private TimerRegistry mRegistry;
+    // The timers as they should be, by id.
+    private final HashMap<Integer, TimerObj> mExpected = new HashMap<Integer, TimerObj>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = getContext().getSharedPreferences("test.timers", Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+        mRegistry = new TimerRegistry(mPrefs);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPrefs.edit().clear().commit();
+        super.tearDown();
+    }
+
+    private static TimerObj timer(int id, int state, long startTime, long length) {
+        final TimerObj t = new TimerObj(length);
+        t.mTimerId = id;
+        t.mState = state;
+        t.mStartTime = startTime;
+        return t;
+    }
+
+    private void put(TimerObj t) {
+        mRegistry.put(t);
+        mExpected.put(t.mTimerId, new TimerObj(t));
+    }
+
+    private void remove(int id) {
+        mRegistry.remove(id);
+        mExpected.remove(id);
+    }
+
+    /**
+     * The search of TimerReceiver before the registry, over the timers
+     * sorted newest first as TimerObj.getTimersFromSharedPrefs() sorted them.
+     */
+    private TimerObj scan(boolean requireNextUpdate, long now) {
+        final ArrayList<TimerObj> timers = new ArrayList<TimerObj>(mExpected.values());
+        Collections.sort(timers, new Comparator<TimerObj>() {
+            @Override
+            public int compare(TimerObj timerObj1, TimerObj timerObj2) {
+                return timerObj2.mTimerId - timerObj1.mTimerId;
+            }
+        });
+        long nextTimesup = Long.MAX_VALUE;
+        TimerObj t = null;
+        for (TimerObj tmp : timers) {
+            if (tmp.mState == TimerObj.STATE_RUNNING) {
+                final long timesupTime = tmp.getTimesupTime();
+                if (timesupTime < nextTimesup && (!requireNextUpdate || timesupTime - now > 60)) {
+                    nextTimesup = timesupTime;
+                    t = tmp;
+                }
+            }
+        }
+        return t;
+    }
+
+    private void assertNextRunningTimer(TimerRegistry registry, long now) {
+        for (int i = 0; i < 2; i++) {
+            final boolean requireNextUpdate = i == 1;
+            final TimerObj expected = scan(requireNextUpdate, now);
+            final TimerObj actual = registry.getNextRunningTimer(requireNextUpdate, now);
+            final String message = "now=" + now + " requireNextUpdate=" + requireNextUpdate;
+            if (expected == null) {
+                assertNull(message, actual);
+            } else {
+                assertNotNull(message, actual);
+                assertEquals(message, expected.mTimerId, actual.mTimerId);
+            }
+        }
+    }
+
+    private void assertTimesUp(TimerRegistry registry) {
+        boolean timesUp = false;
+        for (TimerObj t : mExpected.values()) {
+            timesUp |= t.mState == TimerObj.STATE_TIMESUP;
+        }
+        assertEquals(timesUp, registry.hasTimesUpTimer());
+    }
+
+    public void testTiesGoToTheNewestTimer() {
+        put(timer(1, TimerObj.STATE_RUNNING, NOW, 5000));
+        put(timer(3, TimerObj.STATE_RUNNING, NOW, 5000));
+        put(timer(2, TimerObj.STATE_RUNNING, NOW, 5000));
+        assertEquals(3, mRegistry.getNextRunningTimer(false, NOW).mTimerId);
+        assertNextRunningTimer(mRegistry, NOW);
+
+        // Within 60 ms of being up, all three are passed over together.
+        put(timer(4, TimerObj.STATE_RUNNING, NOW, 6000));
+        assertEquals(3, mRegistry.getNextRunningTimer(true, NOW + 4900).mTimerId);
+        assertEquals(4, mRegistry.getNextRunningTimer(true, NOW + 4950).mTimerId);
+        assertNextRunningTimer(mRegistry, NOW + 4950);
+        // And they are still there afterwards.
+        assertEquals(3, mRegistry.getNextRunningTimer(false, NOW + 4950).mTimerId);
+    }
+
+    public void testNothingRunning() {
+        assertNull(mRegistry.getNextRunningTimer(false, NOW));
+        put(timer(1, TimerObj.STATE_STOPPED, NOW, 5000));
+        put(timer(2, TimerObj.STATE_TIMESUP, NOW, 5000));
+        assertNull(mRegistry.getNextRunningTimer(false, NOW));
+        put(timer(3, TimerObj.STATE_RUNNING, NOW, 30));
+        assertEquals(3, mRegistry.getNextRunningTimer(false, NOW).mTimerId);
+        assertNull(mRegistry.getNextRunningTimer(true, NOW));
+    }
+
+    /**
+     * Adds, changes and removes timers at random, with times up often equal
+     * or within 60 ms of each other, and compares every answer with the
+     * search over the list.  A registry loaded from the same preferences
+     * must give the same answers.
+     */
+    public void testRandomOperationsMatchListSearch() {
+        final Random random = new Random(1);
+        final ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (int step = 0; step < 5000; step++) {
+            final long now = NOW + step * 7;
+            final int op = random.nextInt(4);
+            if (op == 0 || ids.isEmpty()) {
+                final int id = random.nextInt(300);
+                // Started on a 100 ms boundary, so times up are often equal.
+                put(timer(id, 1 + random.nextInt(5), now / 100 * 100 - random.nextInt(3) * 20,
+                        random.nextInt(5) * 1000));
+                if (!ids.contains(id)) {
+                    ids.add(id);
+                }
+            } else if (op == 1) {
+                remove(ids.remove(random.nextInt(ids.size())));
+            } else {
+                final TimerObj t = new TimerObj(mExpected.get(ids.get(random.nextInt(ids.size()))));
+                t.mState = 1 + random.nextInt(5);
+                if (random.nextBoolean()) {
+                    t.mOriginalLength += random.nextInt(3) * 1000;
+                }
+                put(t);
+            }
+            assertEquals(mExpected.size(), mRegistry.size());
+            assertNextRunningTimer(mRegistry, now);
+            assertTimesUp(mRegistry);
+            if (step % 500 == 0) {
+                final TimerRegistry loaded = new TimerRegistry(mPrefs);
+                assertNextRunningTimer(loaded, now);
+                assertTimesUp(loaded);
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.timer;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.test.ActivityInstrumentationTestCase2;
+
+import com.android.deskclock.DeskClock;
+import com.android.deskclock.Log;
+import com.android.deskclock.Utils;
+import com.android.deskclock.obfuscated.R;
+
+import java.util.ArrayList;
+
+/**
+ * Measures the clock tick of the timer list with 50 running timers, against
+ * the loop it replaced, which ran every 20 ms and updated every timer.  The
+ * ticks per second and the time spent in run() are logged for each.  The
+ * timers live in a registry on their own shared preferences, so the timers
+ * of the device are left alone.
+ */
+public class TimerTickBenchmark extends ActivityInstrumentationTestCase2<DeskClock> {
+
+    private static final int TIMERS = 50;
+    private static final long TIMER_LENGTH = 60 * 60 * 1000;
+    private static final long RUN_MS = 10000;
+
+    private SharedPreferences mPrefs;
+    // The registry of the device, put back after the benchmark.
+    private TimerRegistry mSaved;
+    private TimerFragment mFragment;
+
+    public TimerTickBenchmark() {
+        super(DeskClock.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = getInstrumentation().getTargetContext().getSharedPreferences(
+                "test.timers.benchmark", Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+        final TimerRegistry registry = new TimerRegistry(mPrefs);
+        mSaved = TimerRegistry.setInstance(registry);
+
+        // Started 20 ms apart, so their digits change at different times.
+        final long now = Utils.getTimeNow();
+        final ArrayList<TimerObj> timers = new ArrayList<TimerObj>();
+        for (int i = 0; i < TIMERS; i++) {
+            final TimerObj t = new TimerObj(TIMER_LENGTH);
+            t.mTimerId = i + 1;
+            t.mStartTime = now - i * 20;
+            t.mState = TimerObj.STATE_RUNNING;
+            timers.add(t);
+        }
+        registry.putAll(timers);
+
+        final Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.putExtra(DeskClock.SELECT_TAB_INTENT_EXTRA, DeskClock.TIMER_TAB_INDEX);
+        setActivityIntent(intent);
+        final DeskClock activity = getActivity();
+        getInstrumentation().waitForIdleSync();
+        // The pager puts the timers first, or last in right-to-left layouts.
+        for (int position : new int[] { 0, 2 }) {
+            final Object f = activity.getFragmentManager().findFragmentByTag(
+                    "android:switcher:" + R.id.desk_clock_pager + ":" + position);
+            if (f instanceof TimerFragment) {
+                mFragment = (TimerFragment) f;
+            }
+        }
+        assertNotNull(mFragment);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Closes the activity first, so nothing uses the test registry after.
+        super.tearDown();
+        TimerRegistry.setInstance(mSaved);
+        mPrefs.edit().clear().commit();
+    }
+
+    /**
+     * The clock tick before it only updated the shown rows, kept as it was
+     * apart from the counters.
+     */
+    private class OldClockTick implements Runnable {
+        boolean mVisible = true;
+        int mCount;
+        long mNanos;
+
+        @Override
+        public void run() {
+            final long startNanos = System.nanoTime();
+            // Setup for blinking
+            boolean visible = Utils.getTimeNow() % 1000 < 500;
+            boolean toggle = mVisible != visible;
+            mVisible = visible;
+            for (int i = 0; i < mFragment.mAdapter.getCount(); i ++) {
+                TimerObj t = (TimerObj) mFragment.mAdapter.getItem(i);
+                if (t.mState == TimerObj.STATE_RUNNING || t.mState == TimerObj.STATE_TIMESUP) {
+                    long timeLeft = t.updateTimeLeft(false);
+                    if ((TimerListItem)(t.mView) != null) {
+                        ((TimerListItem)(t.mView)).setTime(timeLeft, false);
+                    }
+                }
+                if (t.mTimeLeft <= 0 && t.mState != TimerObj.STATE_DONE
+                        && t.mState != TimerObj.STATE_RESTART) {
+                    t.mState = TimerObj.STATE_TIMESUP;
+                    mFragment.setTimerButtons(t);
+                    if ((TimerListItem)(t.mView) != null) {
+                        ((TimerListItem)(t.mView)).timesUp();
+                    }
+                }
+
+                // The blinking
+                if (toggle && (TimerListItem)(t.mView) != null) {
+                    if (t.mState == TimerObj.STATE_TIMESUP) {
+                        ((TimerListItem)(t.mView)).setCircleBlink(mVisible);
+                    }
+                    if (t.mState == TimerObj.STATE_STOPPED) {
+                        ((TimerListItem)(t.mView)).setTextBlink(mVisible);
+                    }
+                }
+            }
+            mFragment.mTimersList.postDelayed(this, 20);
+            mCount++;
+            mNanos += System.nanoTime() - startNanos;
+        }
+    }
+
+    private static String report(String name, int count, long nanos) {
+        final double seconds = RUN_MS / 1000.0;
+        return String.format("%s: %.1f ticks/s, %.1f us per tick, %.2f ms/s in run()",
+                name, count / seconds, count == 0 ? 0 : nanos / 1000.0 / count,
+                nanos / 1000000.0 / seconds);
+    }
+
+    public void testClockTick() throws InterruptedException {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mFragment.stopClockTicks();
+                mFragment.mTickCount = 0;
+                mFragment.mTickNanos = 0;
+                mFragment.startClockTicks();
+            }
+        });
+        Thread.sleep(RUN_MS);
+        final int[] count = new int[2];
+        final long[] nanos = new long[2];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mFragment.stopClockTicks();
+                count[0] = mFragment.mTickCount;
+                nanos[0] = mFragment.mTickNanos;
+            }
+        });
+
+        final OldClockTick old = new OldClockTick();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mFragment.mTimersList.post(old);
+            }
+        });
+        Thread.sleep(RUN_MS);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mFragment.mTimersList.removeCallbacks(old);
+                count[1] = old.mCount;
+                nanos[1] = old.mNanos;
+            }
+        });
+
+        Log.i(report("Timer clock tick, " + TIMERS + " timers", count[0], nanos[0]));
+        Log.i(report("Old 20 ms loop, " + TIMERS + " timers", count[1], nanos[1]));
+        assertTrue("the timers did not tick", count[0] > 0);
+        assertTrue("the tick ran more often than the old loop", count[0] < count[1]);
+    }
+}